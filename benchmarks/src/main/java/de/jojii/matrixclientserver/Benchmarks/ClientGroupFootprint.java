@@ -0,0 +1,166 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.jojii.matrixclientserver.Bot.Client;
+import de.jojii.matrixclientserver.Bot.ClientGroup;
+import de.jojii.matrixclientserver.Bot.SyncScheduler;
+import de.jojii.matrixclientserver.File.InMemorySyncTokenStore;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and heap per account while all accounts sit in a long poll against
+ * a local stub server. Not a JMH benchmark, footprint is measured once after
+ * the accounts settled. Run each mode in its own JVM:
+ * <pre>
+ * java -cp target/benchmarks.jar de.jojii.matrixclientserver.Benchmarks.ClientGroupFootprint dedicated 500
+ * java -cp target/benchmarks.jar de.jojii.matrixclientserver.Benchmarks.ClientGroupFootprint group 500
+ * java -cp target/benchmarks.jar de.jojii.matrixclientserver.Benchmarks.ClientGroupFootprint pool 500
+ * </pre>
+ * <code>dedicated</code> are plain clients with a sync thread each,
+ * <code>group</code> a {@link ClientGroup} on the default scheduler (virtual
+ * threads where available, small stack threads otherwise), <code>pool</code> a
+ * group on 16 threads with a 1 second poll timeout. Threads of the stub server
+ * are not counted. Thread stacks are native memory and not part of the heap
+ * figure.
+ */
+public class ClientGroupFootprint {
+
+    private static final int POLL_HOLD = 30000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "group";
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        HttpServer server = stubServer();
+        String host = "http://127.0.0.1:" + server.getAddress().getPort();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        int threadsBefore = countThreads();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+        List<Client> clients = new ArrayList<>();
+        ClientGroup group = null;
+        if (mode.equals("group")) {
+            group = new ClientGroup(PooledHttpTransport.shared(), HttpExecutor.shared(), SyncScheduler.create(), tokens);
+        } else if (mode.equals("pool")) {
+            group = new ClientGroup(PooledHttpTransport.shared(), HttpExecutor.shared(),
+                    new SyncScheduler(Executors.newFixedThreadPool(16), 1000), tokens);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) {
+            Client client;
+            if (group != null) {
+                client = group.newClient(host);
+            } else {
+                client = new Client(host);
+                client.setSyncTokenStore(tokens);
+            }
+            client.loginSync("@bot" + i + ":example.org", "secret");
+            clients.add(client);
+        }
+        for (int i = 0; i < accounts; i++) {
+            while (tokens.load("@bot" + i + ":example.org/footprint") == null) {
+                Thread.sleep(5);
+            }
+        }
+        long startup = (System.nanoTime() - start) / 1000000;
+        // let the second polls reach the server
+        Thread.sleep(2000);
+        System.gc();
+        System.gc();
+        int threads = countThreads() - threadsBefore;
+        long heap = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+
+        System.out.printf("mode=%s accounts=%d java=%s%n", mode, accounts, System.getProperty("java.version"));
+        System.out.printf("startup to first sync: %d ms%n", startup);
+        System.out.printf("threads: %d total, %.2f per account%n", threads, threads / (double) accounts);
+        System.out.printf("heap: %d KiB total, %.1f KiB per account%n", heap / 1024, heap / 1024.0 / accounts);
+
+        if (group != null) {
+            group.close();
+        } else {
+            for (Client client : clients) {
+                client.stopSync();
+            }
+        }
+        server.stop(0);
+        System.exit(0);
+    }
+
+    private static int countThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("stub-") && !thread.getName().startsWith("HTTP-Dispatcher")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static HttpServer stubServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/_matrix/client/r0/login", exchange -> {
+            String user = new JSONObject(readAll(exchange.getRequestBody())).getString("user");
+            JSONObject login = new JSONObject();
+            login.put("user_id", user);
+            login.put("access_token", "token-" + user);
+            login.put("device_id", "footprint");
+            login.put("home_server", "example.org");
+            respond(exchange, login.toString());
+        });
+        server.createContext("/_matrix/client/r0/user/", exchange -> respond(exchange, "{\"filter_id\":\"1\"}"));
+        server.createContext("/_matrix/client/r0/sync", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains("since=")) {
+                int timeout = Integer.parseInt(query.replaceAll(".*timeout=(\\d+).*", "$1"));
+                try {
+                    Thread.sleep(Math.min(timeout, POLL_HOLD));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            respond(exchange, "{\"next_batch\":\"s1\"}");
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, String response) throws IOException {
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
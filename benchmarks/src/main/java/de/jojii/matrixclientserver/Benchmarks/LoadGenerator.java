@@ -0,0 +1,259 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.Bot.Client;
+import de.jojii.matrixclientserver.Bot.ClientGroup;
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import de.jojii.matrixclientserver.Bot.FakeHomeserver;
+import de.jojii.matrixclientserver.Bot.SyncScheduler;
+import de.jojii.matrixclientserver.File.InMemorySyncTokenStore;
+import de.jojii.matrixclientserver.Metrics.Histogram;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many clients against a {@link FakeHomeserver} in the same JVM. Every
+ * client logs in, syncs and sends text messages at a fixed rate into a room
+ * shared with <code>roomSize - 1</code> other clients. Not a JMH benchmark,
+ * it prints one line per interval and a summary:
+ * <pre>
+ * java -cp target/benchmarks.jar de.jojii.matrixclientserver.Benchmarks.LoadGenerator [mode] [clients] [rate] [seconds] [roomSize] [latencyMillis]
+ * java -cp target/benchmarks.jar de.jojii.matrixclientserver.Benchmarks.LoadGenerator dedicated 200 0.5 60 10 5
+ * </pre>
+ * <code>mode</code> is one of <code>dedicated</code> (a sync thread per client,
+ * the shared request executor), <code>group</code> (a {@link ClientGroup} on
+ * the default scheduler) and <code>pool</code> (a group on 16 threads with a 1
+ * second poll timeout). <code>rate</code> are messages per second and client,
+ * <code>latencyMillis</code> is added by the server to every request.
+ * <p>
+ * <code>echo</code> is the time from handing a message to
+ * {@link Client#sendRoomEvent(String, String, JSONObject)} until it came back
+ * to its sender through sync, <code>lag</code> the time from the server
+ * accepting an event until a member received it. CPU and heap include the
+ * server, the thread count does not.
+ */
+public class LoadGenerator {
+
+    private static final String SERVER = "starship-enterprise.com";
+
+    private static final AtomicReference<Window> window = new AtomicReference<>(new Window());
+    private static final Window total = new Window();
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "group";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int roomSize = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        long latency = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+        FakeHomeserver server = new FakeHomeserver(SERVER).setMaxPollTimeout(30000);
+        if (latency > 0) {
+            server.setLatency(FakeHomeserver.ALL, latency, latency);
+        }
+        String host = server.getHost();
+        for (int i = 0; i < clients; i++) {
+            server.createRoom(roomId(i / roomSize), userId(i));
+        }
+
+        InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+        ClientGroup group = null;
+        if (mode.equals("group")) {
+            group = new ClientGroup(PooledHttpTransport.shared(), HttpExecutor.shared(), SyncScheduler.create(), tokens);
+        } else if (mode.equals("pool")) {
+            group = new ClientGroup(PooledHttpTransport.shared(), HttpExecutor.shared(),
+                    new SyncScheduler(Executors.newFixedThreadPool(16), 1000), tokens);
+        }
+
+        System.out.printf("mode=%s clients=%d rate=%.2f/s seconds=%d roomSize=%d latency=%d ms java=%s cpus=%d%n", mode,
+                clients, rate, seconds, roomSize, latency, System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors());
+
+        long loginStart = System.nanoTime();
+        List<Client> started = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Client client;
+            if (group != null) {
+                client = group.newClient(host);
+            } else {
+                client = new Client(host);
+                client.setSyncTokenStore(tokens);
+            }
+            String userId = userId(i);
+            client.registerRoomEventListener(roomEvents -> received(userId, roomEvents));
+            client.loginSync(userId, "engage");
+            started.add(client);
+        }
+        for (int i = 0; i < clients; i++) {
+            while (tokens.load(userId(i) + "/" + started.get(i).getLoginData().getDevice_id()) == null) {
+                Thread.sleep(5);
+            }
+        }
+        System.out.printf("logged in and synced in %d ms%n", (System.nanoTime() - loginStart) / 1000000);
+        window.set(new Window());
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, (long) (1000000 / rate));
+        for (int i = 0; i < clients; i++) {
+            Client client = started.get(i);
+            String roomId = roomId(i / roomSize);
+            long offset = ThreadLocalRandom.current().nextLong(period);
+            senders.scheduleAtFixedRate(() -> send(client, roomId), offset, period, TimeUnit.MICROSECONDS);
+        }
+
+        Sampler sampler = new Sampler();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        int interval = Math.min(5, Math.max(1, seconds));
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(interval * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            Window last = window.getAndSet(new Window());
+            System.out.println(sampler.line(last));
+        }
+        senders.shutdownNow();
+        // let the messages in flight come back
+        long deadline = System.currentTimeMillis() + 5000;
+        while (total.echoes.get() + total.failed.get() < total.sent.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.println("total " + new Sampler().summary(total, seconds));
+
+        if (group != null) {
+            group.close();
+        } else {
+            for (Client client : started) {
+                client.stopSync();
+            }
+        }
+        server.close();
+        System.exit(0);
+    }
+
+    private static void send(Client client, String roomId) {
+        JSONObject content = new JSONObject();
+        content.put("msgtype", "m.text");
+        content.put("body", "load");
+        content.put("sent_nanos", System.nanoTime());
+        window.get().sent.incrementAndGet();
+        total.sent.incrementAndGet();
+        client.sendRoomEvent("m.room.message", roomId, content).whenComplete((response, failure) -> {
+            if (failure != null) {
+                window.get().failed.incrementAndGet();
+                total.failed.incrementAndGet();
+            }
+        });
+    }
+
+    private static void received(String userId, List<RoomEvent> roomEvents) {
+        long now = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        Window window = LoadGenerator.window.get();
+        for (RoomEvent event : roomEvents) {
+            JSONObject content = event.getContent();
+            if (!content.has("sent_nanos")) {
+                continue;
+            }
+            long lag = Math.max(0, now - event.getRaw().optLong("origin_server_ts", now));
+            window.lag.record(lag);
+            total.lag.record(lag);
+            if (userId.equals(event.getSender())) {
+                long echo = (nanos - content.getLong("sent_nanos")) / 1000;
+                window.echo.record(echo);
+                total.echo.record(echo);
+                window.echoes.incrementAndGet();
+                total.echoes.incrementAndGet();
+            }
+        }
+    }
+
+    private static String userId(int index) {
+        return "@crew" + index + ":" + SERVER;
+    }
+
+    private static String roomId(int index) {
+        return "!deck" + index + ":" + SERVER;
+    }
+
+    private static class Window {
+        final long start = System.nanoTime();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong echoes = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        /** microseconds */
+        final Histogram echo = new Histogram();
+        /** milliseconds */
+        final Histogram lag = new Histogram();
+    }
+
+    private static class Sampler {
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private long lastCpu = processCpuTime();
+        private long lastTime = System.nanoTime();
+
+        String line(Window window) {
+            double seconds = (System.nanoTime() - window.start) / 1e9;
+            return String.format("sent %7.1f/s echoed %7.1f/s failed %4d | echo p50 %7.2f p99 %7.2f max %7.2f ms"
+                            + " | lag p50 %4d p99 %4d ms | %s",
+                    window.sent.get() / seconds, window.echoes.get() / seconds, window.failed.get(),
+                    window.echo.getPercentile(50) / 1000.0, window.echo.getPercentile(99) / 1000.0,
+                    window.echo.getMax() / 1000.0, window.lag.getPercentile(50), window.lag.getPercentile(99),
+                    resources());
+        }
+
+        String summary(Window total, int seconds) {
+            return String.format("sent %d echoed %d failed %d (%.1f/s) | echo p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f"
+                            + " max %.2f ms | lag p50 %d p99 %d max %d ms | peak jvm threads %d",
+                    total.sent.get(), total.echoes.get(), total.failed.get(), total.sent.get() / (double) seconds,
+                    total.echo.getPercentile(50) / 1000.0, total.echo.getPercentile(90) / 1000.0,
+                    total.echo.getPercentile(99) / 1000.0, total.echo.getPercentile(99.9) / 1000.0,
+                    total.echo.getMax() / 1000.0, total.lag.getPercentile(50), total.lag.getPercentile(99),
+                    total.lag.getMax(), threads.getPeakThreadCount());
+        }
+
+        private String resources() {
+            long cpu = processCpuTime();
+            long time = System.nanoTime();
+            String load = cpu < 0 ? "n/a" : String.format("%3.0f%%", 100.0 * (cpu - lastCpu) / (time - lastTime)
+                    / Runtime.getRuntime().availableProcessors());
+            lastCpu = cpu;
+            lastTime = time;
+            Runtime runtime = Runtime.getRuntime();
+            long heap = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+            return String.format("cpu %s heap %4d MiB threads %4d", load, heap, countClientThreads());
+        }
+
+        private long processCpuTime() {
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return -1;
+        }
+
+        private static int countClientThreads() {
+            int count = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                String name = thread.getName();
+                if (!name.startsWith("fake-homeserver") && !name.startsWith("HTTP-Dispatcher")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
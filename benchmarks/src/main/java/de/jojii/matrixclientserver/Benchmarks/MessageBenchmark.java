@@ -0,0 +1,59 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.Bot.Message;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Message#parseMessageContent(JSONObject)} for a text and an image
+ * message, on an already parsed content object as a listener gets it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    private JSONObject text;
+    private JSONObject image;
+
+    @Setup
+    public void setUp() {
+        text = SyncPayloads.messageEvent(0, 256).getJSONObject("content");
+
+        JSONObject info = new JSONObject();
+        info.put("xyz.amorgan.blurhash", "LEHV6nWB2yk8pyo0adR*.7kCMdnj");
+        info.put("size", 123456);
+        info.put("w", 800);
+        info.put("h", 600);
+        info.put("mimetype", "image/png");
+        image = new JSONObject();
+        image.put("msgtype", "m.image");
+        image.put("body", "logo.png");
+        image.put("url", "mxc://example.org/AbCdEfGh");
+        image.put("info", info);
+    }
+
+    @Benchmark
+    public Message text() {
+        return Message.parseMessageContent(text);
+    }
+
+    @Benchmark
+    public Message image() {
+        return Message.parseMessageContent(image);
+    }
+}
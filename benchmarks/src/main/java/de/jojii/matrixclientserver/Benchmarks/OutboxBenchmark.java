@@ -0,0 +1,98 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.File.Outbox;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Cost per message of making a send durable in the {@link Outbox}: append,
+ * fsync and acknowledge. A single append pays a whole fsync, batched appends,
+ * either by {@link Outbox#appendAll(List)} or by concurrent senders sharing a
+ * group commit, spread it over the batch. The difference to
+ * <code>fsync=false</code> is the price of durability. Results depend heavily
+ * on the storage device the temp directory is on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboxBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    private Path directory;
+    private Outbox outbox;
+    private JSONObject content;
+    private final AtomicLong txnIds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("outbox-benchmark");
+        outbox = new Outbox(directory, Outbox.DEFAULT_SEGMENT_SIZE, fsync);
+        content = SyncPayloads.messageEvent(0, 64).getJSONObject("content");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        outbox.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long append_single() throws IOException {
+        Outbox.Entry entry = outbox.append("!room:example.org", "m.room.message", "t." + txnIds.incrementAndGet(), content);
+        outbox.acknowledge(entry.getId());
+        return entry.getId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long append_concurrent() throws IOException {
+        return append_single();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int appendAll_batch() throws IOException {
+        List<Outbox.Entry> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new Outbox.Entry("!room:example.org", "m.room.message", "t." + txnIds.incrementAndGet(), content));
+        }
+        List<Outbox.Entry> entries = outbox.appendAll(batch);
+        for (Outbox.Entry entry : entries) {
+            outbox.acknowledge(entry.getId());
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,54 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.Networking.HttpHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpHelper#readResponse(java.io.Reader)} on response bodies of
+ * different sizes, decoded from UTF-8 bytes like a body coming from the
+ * transport. Pretty printed bodies have many lines, which the reader trims
+ * and joins one by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseReadBenchmark {
+
+    @Param({"1", "20"})
+    public int rooms;
+
+    @Param({"false", "true"})
+    public boolean pretty;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        String json = pretty ? SyncPayloads.sync(rooms, 20, 128).toString(2) : SyncPayloads.sync(rooms, 20, 128).toString();
+        body = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String readResponse() throws IOException {
+        return HttpHelper.readResponse(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+    }
+}
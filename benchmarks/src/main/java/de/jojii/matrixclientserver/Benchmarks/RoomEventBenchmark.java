@@ -0,0 +1,62 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.Bot.Events.LazyRoomEvent;
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eager {@link RoomEvent} against {@link LazyRoomEvent} for a listener that
+ * only looks at the event type. Run with <code>-prof gc</code> and compare
+ * <code>gc.alloc.rate.norm</code> for the allocation per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomEventBenchmark {
+
+    @Param({"64", "2048"})
+    public int bodySize;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        json = SyncPayloads.messageEvent(0, bodySize).toString();
+    }
+
+    @Benchmark
+    public String eager_type() {
+        return RoomEvent.fetchRoomEvent(new JSONObject(json), "!room:example.org").getType();
+    }
+
+    @Benchmark
+    public String lazy_type() {
+        return new LazyRoomEvent(json, "!room:example.org").getType();
+    }
+
+    @Benchmark
+    public JSONObject eager_content() {
+        return RoomEvent.fetchRoomEvent(new JSONObject(json), "!room:example.org").getContent();
+    }
+
+    @Benchmark
+    public JSONObject lazy_content() {
+        return new LazyRoomEvent(json, "!room:example.org").getContent();
+    }
+}
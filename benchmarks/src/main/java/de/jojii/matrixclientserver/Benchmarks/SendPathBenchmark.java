@@ -0,0 +1,113 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.jojii.matrixclientserver.Bot.Client;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Client#sendRoomEvent(String, String, JSONObject)} end to end: send
+ * queue, executor, pooled transport and a local stub answering the PUT with an
+ * event id. <code>single</code> waits for every send, <code>rooms</code> keeps
+ * one send per room in flight for 16 rooms. The stub runs in the same JVM, so
+ * its cost is part of the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without it the stub's separate header and body writes meet the delayed ACK
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class SendPathBenchmark {
+
+    private static final int ROOMS = 16;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private Client client;
+    private JSONObject content;
+    private final AtomicLong eventIds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        server.createContext("/_matrix/client/r0/login", exchange -> {
+            drain(exchange.getRequestBody());
+            respond(exchange, "{\"user_id\":\"@bench:example.org\",\"access_token\":\"token\","
+                    + "\"device_id\":\"BENCH\",\"home_server\":\"example.org\"}");
+        });
+        server.createContext("/_matrix/client/r0/rooms/", exchange -> {
+            drain(exchange.getRequestBody());
+            respond(exchange, "{\"event_id\":\"$" + eventIds.incrementAndGet() + "\"}");
+        });
+        serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        client = new Client("http://127.0.0.1:" + server.getAddress().getPort(), HttpExecutor.bounded(8, 1024));
+        // the JWT login does not start the sync loop, which the stub does not serve
+        client.loginWithJWTSync("jwt", "BENCH");
+        content = SyncPayloads.messageEvent(0, 64).getJSONObject("content");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public String single() {
+        return client.sendRoomEvent("m.room.message", "!room0:example.org", content).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROOMS)
+    public int rooms() {
+        CompletableFuture<?>[] sends = new CompletableFuture<?>[ROOMS];
+        for (int i = 0; i < ROOMS; i++) {
+            sends[i] = client.sendRoomEvent("m.room.message", "!room" + i + ":example.org", content);
+        }
+        CompletableFuture.allOf(sends).join();
+        return sends.length;
+    }
+
+    private static void respond(HttpExchange exchange, String response) throws IOException {
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+}
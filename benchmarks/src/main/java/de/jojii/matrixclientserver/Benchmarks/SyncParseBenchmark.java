@@ -0,0 +1,67 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import de.jojii.matrixclientserver.Bot.Events.SyncStreamParser;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole sync responses of different sizes: the tree based
+ * {@link RoomEvent#parseAllEvents(JSONObject)} against the streaming
+ * {@link SyncStreamParser}, eager and lazy. Run with <code>-prof gc</code> for
+ * the allocation per response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncParseBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int rooms;
+
+    @Param({"10", "100"})
+    public int eventsPerRoom;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        json = SyncPayloads.sync(rooms, eventsPerRoom, 128).toString();
+    }
+
+    @Benchmark
+    public List<RoomEvent> parseAllEvents() {
+        return RoomEvent.parseAllEvents(new JSONObject(json));
+    }
+
+    @Benchmark
+    public String stream_eager(Blackhole blackhole) throws IOException {
+        return SyncStreamParser.parse(new StringReader(json), (roomId, roomEvents) -> blackhole.consume(roomEvents),
+                false);
+    }
+
+    @Benchmark
+    public String stream_lazy(Blackhole blackhole) throws IOException {
+        return SyncStreamParser.parse(new StringReader(json), (roomId, roomEvents) -> blackhole.consume(roomEvents),
+                true);
+    }
+}
@@ -0,0 +1,73 @@
+package de.jojii.matrixclientserver.Benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Synthetic events and sync responses shaped like the ones synapse sends.
+ */
+public class SyncPayloads {
+
+    public static JSONObject messageEvent(int index, int bodySize) {
+        StringBuilder body = new StringBuilder(bodySize);
+        while (body.length() < bodySize) {
+            body.append("lorem ipsum ");
+        }
+        body.setLength(bodySize);
+
+        JSONObject content = new JSONObject();
+        content.put("msgtype", "m.text");
+        content.put("body", body.toString());
+
+        JSONObject unsigned = new JSONObject();
+        unsigned.put("age", 1234);
+
+        JSONObject event = new JSONObject();
+        event.put("type", "m.room.message");
+        event.put("event_id", "$event" + index + "_QzHMPQ9p3XG4QP4dDho_5nz-F8");
+        event.put("sender", "@user" + (index % 17) + ":example.org");
+        event.put("origin_server_ts", 1700000000000L + index);
+        event.put("unsigned", unsigned);
+        event.put("content", content);
+        return event;
+    }
+
+    /**
+     * @return a sync response with <code>rooms</code> joined rooms holding
+     *         <code>eventsPerRoom</code> timeline events each
+     */
+    public static JSONObject sync(int rooms, int eventsPerRoom, int bodySize) {
+        JSONObject join = new JSONObject();
+        int index = 0;
+        for (int r = 0; r < rooms; r++) {
+            JSONArray events = new JSONArray();
+            for (int e = 0; e < eventsPerRoom; e++) {
+                events.put(messageEvent(index++, bodySize));
+            }
+            JSONObject timeline = new JSONObject();
+            timeline.put("limited", false);
+            timeline.put("prev_batch", "p" + r);
+            timeline.put("events", events);
+
+            JSONObject notifications = new JSONObject();
+            notifications.put("highlight_count", 0);
+            notifications.put("notification_count", eventsPerRoom);
+
+            JSONObject room = new JSONObject();
+            room.put("summary", new JSONObject());
+            room.put("timeline", timeline);
+            room.put("state", new JSONObject().put("events", new JSONArray()));
+            room.put("ephemeral", new JSONObject().put("events", new JSONArray()));
+            room.put("account_data", new JSONObject().put("events", new JSONArray()));
+            room.put("unread_notifications", notifications);
+            join.put("!room" + r + ":example.org", room);
+        }
+
+        JSONObject sync = new JSONObject();
+        sync.put("rooms", new JSONObject().put("join", join));
+        sync.put("presence", new JSONObject().put("events", new JSONArray()));
+        sync.put("device_one_time_keys_count", new JSONObject().put("signed_curve25519", 0));
+        sync.put("next_batch", "s" + index + "_1");
+        return sync;
+    }
+}
@@ -0,0 +1,308 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jojii.matrixclientserver.Callbacks.ProgressCallback;
+
+/**
+ * Uploads many files with a bounded number in flight. Waiting items are started
+ * by priority, higher first, and in submission order within a priority. Each
+ * item gets its own future, a failed upload does not affect the others.
+ */
+public class BulkUploader {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    public interface Uploader {
+        /**
+         * @return the <code>content_uri</code> of the upload
+         */
+        String upload(Item item, ProgressCallback progress) throws IOException;
+    }
+
+    private final Uploader uploader;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private long sequence;
+    private int inFlight;
+    private long busySince;
+    private long busyTime;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Run the uploads on <code>maxInFlight</code> threads of its own, which end
+     * when idle.
+     */
+    public BulkUploader(Uploader uploader, int maxInFlight) {
+        this(uploader, newUploadThreads(maxInFlight), maxInFlight);
+    }
+
+    /**
+     * @param executor    runs the uploads, on other threads than the submitting
+     *                    one. An executor running rejected tasks on the caller
+     *                    would nest every following upload inside the finished
+     *                    one.
+     * @param maxInFlight uploads running at the same time
+     */
+    public BulkUploader(Uploader uploader, Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.uploader = uploader;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return completed with the <code>content_uri</code>, or exceptionally with
+     *         the failure. Cancelling it before the upload started skips the
+     *         item.
+     */
+    public CompletableFuture<String> submit(Item item) {
+        Task task;
+        synchronized (this) {
+            task = new Task(item, sequence++);
+            queue.add(task);
+        }
+        drain();
+        return task.result;
+    }
+
+    /**
+     * @return one future per item, in the order of the items
+     */
+    public List<CompletableFuture<String>> submitAll(Collection<Item> items) {
+        List<Task> tasks = new ArrayList<>(items.size());
+        synchronized (this) {
+            for (Item item : items) {
+                Task task = new Task(item, sequence++);
+                queue.add(task);
+                tasks.add(task);
+            }
+        }
+        drain();
+        List<CompletableFuture<String>> results = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            results.add(task.result);
+        }
+        return results;
+    }
+
+    private void drain() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                if (inFlight >= maxInFlight) {
+                    return;
+                }
+                task = queue.poll();
+                if (task == null) {
+                    return;
+                }
+                if (task.result.isDone()) {
+                    continue;
+                }
+                if (inFlight++ == 0) {
+                    busySince = System.nanoTime();
+                }
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                release();
+                failed.incrementAndGet();
+                task.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static Executor newUploadThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        // never more than maxInFlight tasks, the queue does not grow beyond them
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "matrix-upload-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void finished() {
+        release();
+        drain();
+    }
+
+    private synchronized void release() {
+        if (--inFlight == 0) {
+            busyTime += System.nanoTime() - busySince;
+        }
+    }
+
+    /**
+     * @return items waiting to be started
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return bytes sent, including those of failed and running uploads
+     */
+    public long getBytesUploaded() {
+        return bytes.get();
+    }
+
+    /**
+     * @return bytes per second while at least one upload was running
+     */
+    public double getThroughput() {
+        long time;
+        synchronized (this) {
+            time = busyTime + (inFlight > 0 ? System.nanoTime() - busySince : 0);
+        }
+        return time > 0 ? bytes.get() * 1e9 / time : 0;
+    }
+
+    /**
+     * A file or stream to upload.
+     */
+    public static class Item {
+        private final String contentType;
+        private final Path file;
+        private final InputStream data;
+        private final long contentLength;
+        private final int priority;
+
+        public Item(String contentType, Path file) {
+            this(contentType, file, 0);
+        }
+
+        /**
+         * @param priority items with a higher priority are started first
+         */
+        public Item(String contentType, Path file, int priority) {
+            this(contentType, file, null, -1, priority);
+        }
+
+        /**
+         * @param contentLength bytes in the stream, <code>-1</code> if unknown
+         * @param priority      items with a higher priority are started first
+         */
+        public Item(String contentType, InputStream data, long contentLength, int priority) {
+            this(contentType, null, data, contentLength, priority);
+        }
+
+        private Item(String contentType, Path file, InputStream data, long contentLength, int priority) {
+            this.contentType = contentType;
+            this.file = file;
+            this.data = data;
+            this.contentLength = contentLength;
+            this.priority = priority;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return the file, or <code>null</code> for a stream
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return the stream, or <code>null</code> for a file
+         */
+        public InputStream getData() {
+            return data;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task>, ProgressCallback {
+        final Item item;
+        final long sequence;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        long bytesSent;
+
+        Task(Item item, long sequence) {
+            this.item = item;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (item.priority != other.item.priority) {
+                return Integer.compare(other.item.priority, item.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long totalBytes) {
+            // a retried body starts again from zero
+            long delta = bytesSent - this.bytesSent;
+            this.bytesSent = bytesSent;
+            if (delta > 0) {
+                bytes.addAndGet(delta);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                String contentUri = uploader.upload(item, this);
+                completed.incrementAndGet();
+                result.complete(contentUri);
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                result.completeExceptionally(e);
+            } finally {
+                finished();
+            }
+        }
+    }
+}
@@ -2,14 +2,16 @@ package de.jojii.matrixclientserver.Bot;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
@@ -21,14 +23,35 @@ import de.jojii.matrixclientserver.Callbacks.DataCallback;
 import de.jojii.matrixclientserver.Callbacks.EmptyCallback;
 import de.jojii.matrixclientserver.Callbacks.LoginCallback;
 import de.jojii.matrixclientserver.Callbacks.MemberCallback;
+import de.jojii.matrixclientserver.Callbacks.ProgressCallback;
 import de.jojii.matrixclientserver.Callbacks.RoomEventCallback;
 import de.jojii.matrixclientserver.Callbacks.RoomEventsCallback;
+import de.jojii.matrixclientserver.File.FileSyncTokenStore;
+import de.jojii.matrixclientserver.File.MediaCache;
+import de.jojii.matrixclientserver.File.Outbox;
+import de.jojii.matrixclientserver.File.SyncTokenStore;
+import de.jojii.matrixclientserver.File.UploadIndex;
+import de.jojii.matrixclientserver.Metrics.ClientMetrics;
+import de.jojii.matrixclientserver.Metrics.MetricsRecorder;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
 import de.jojii.matrixclientserver.Networking.HttpHelper;
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+import de.jojii.matrixclientserver.Networking.HttpTransport;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
 
 public class Client {
     private String host;
     private LoginData loginData;
     private final HttpHelper httpHelper;
+    private volatile RoomMemberCache memberCache;
+    private volatile RoomAliasCache aliasCache;
+    private final TransactionIdGenerator txnIds = new TransactionIdGenerator();
+    private volatile SendQueue sendQueue;
+    private volatile Outbox outbox;
+    private volatile MediaCache mediaCache;
+    private volatile UploadIndex uploadIndex;
+    private volatile BulkUploader bulkUploader;
+    private final DirectChatIndex directChats = new DirectChatIndex();
     private Syncee syncee;
 
     public void login(String username, String password, LoginCallback onResponse) throws IOException {
@@ -132,6 +155,107 @@ public class Client {
         syncee.removeRoomEventListener(event);
     }
 
+	/**
+	 * Receive single synced events matching all given filters. Unlike
+	 * {@link #registerRoomEventListener(RoomEventsCallback)} the callback is only
+	 * called for the events it subscribed to.
+	 * 
+	 * @param eventType event type, may end with a glob like <code>m.room.*</code>,
+	 *                  <code>null</code> for all types
+	 * @param roomID    room id or <code>null</code> for all rooms
+	 * @param sender    sender user id or <code>null</code> for all senders
+	 * @return the subscription, to be cancelled when no longer needed
+	 */
+	public ListenerRegistry.Subscription subscribe(@Nullable String eventType, @Nullable String roomID,
+			@Nullable String sender, RoomEventCallback callback) {
+		return syncee.getListenerRegistry().subscribe(eventType, roomID, sender, callback);
+	}
+
+	/**
+	 * Deliver synced events as {@link de.jojii.matrixclientserver.Bot.Events.LazyRoomEvent}s,
+	 * which decode their fields only when accessed. Saves allocations for
+	 * listeners looking only at a few events.
+	 */
+	public void setLazyRoomEvents(boolean lazyRoomEvents) {
+		syncee.setLazyRoomEvents(lazyRoomEvents);
+	}
+
+	/**
+	 * Set where the sync loop keeps its <code>next_batch</code> token. Defaults to
+	 * a {@link FileSyncTokenStore} in the working directory. Must be set before
+	 * login.
+	 */
+	public void setSyncTokenStore(SyncTokenStore syncTokenStore) {
+		syncee.setSyncTokenStore(syncTokenStore);
+	}
+
+	/**
+	 * Deliver synced events through a {@link SyncDispatcher} instead of calling
+	 * the listeners on the sync thread. Listeners are then called from several
+	 * threads, but in order for each room. <code>null</code> restores the direct
+	 * delivery.
+	 */
+	public void setSyncDispatcher(SyncDispatcher syncDispatcher) {
+		syncee.setDispatcher(syncDispatcher);
+	}
+
+	/**
+	 * Replace the retry policy of the sync loop, e.g. to change its delays.
+	 */
+	public void setSyncBackoff(SyncBackoff syncBackoff) {
+		syncee.setBackoff(syncBackoff);
+	}
+
+	/**
+	 * @return the retry policy of the sync loop, holding its retry counters
+	 */
+	public SyncBackoff getSyncBackoff() {
+		return syncee.getBackoff();
+	}
+
+	/**
+	 * Drop synced events already delivered before, e.g. when the sync is
+	 * restarted with an old token. Off by default, <code>null</code> turns it off
+	 * again.
+	 */
+	public void setEventDeduplicator(EventDeduplicator eventDeduplicator) {
+		syncee.setDeduplicator(eventDeduplicator);
+	}
+
+	/**
+	 * Replace the filter of the sync loop, e.g. to lazy load members or limit
+	 * the timeline. Its filter id is kept in the {@link SyncTokenStore}. Must be
+	 * set before login.
+	 */
+	public void setSyncFilter(SyncFilter syncFilter) {
+		syncee.setFilter(syncFilter != null ? syncFilter : new SyncFilter());
+	}
+
+	/**
+	 * Report request latencies, errors and sync loop measurements, e.g. to a
+	 * {@link ClientMetrics}. <code>null</code> turns it off.
+	 */
+	public void setMetrics(MetricsRecorder metrics) {
+		httpHelper.setMetrics(metrics);
+		syncee.setMetrics(metrics);
+	}
+
+	/**
+	 * Run the sync loop on a {@link SyncScheduler} shared with other clients
+	 * instead of a thread of its own. Must be set before login.
+	 */
+	public void setSyncScheduler(SyncScheduler syncScheduler) {
+		syncee.setScheduler(syncScheduler);
+	}
+
+	/**
+	 * Stop the sync loop and write its token. A running long poll still ends
+	 * with its timeout.
+	 */
+	public void stopSync() {
+		syncee.stopSyncee();
+	}
+
     public void logout(EmptyCallback onLoggedOut) throws IOException {
 		if (!isLoggedIn())
             return;
@@ -226,13 +350,17 @@ public class Client {
 			return null;
 		}
 
-		Map<String, List<String>> directChatRooms = getDirectChatRoomsMapSync();
-		List<String> list = directChatRooms.get(userID);
-		if (list != null && !list.isEmpty()) {
-			return list.get(0);
+		// the sync keeps the index current, without it the index may be stale
+		if (!directChats.isLoaded() || !syncee.isRunning()) {
+			getDirectChatRoomsMapSync();
 		}
+		return directChats.getOrCreate(userID, this::createDirectChatRoomSync,
+				mDirect -> httpHelper.sendRequest(host,
+						HttpHelper.URLs.user + loginData.getUser_id() + "/account_data/m.direct", mDirect, true,
+						"PUT", true));
+	}
 
-		// create the direct chat room
+	private String createDirectChatRoomSync(String userID) throws IOException {
 		JSONObject jsonObject = new JSONObject();
 		jsonObject.put("is_direct", Boolean.TRUE);
 		jsonObject.put("preset", "trusted_private_chat");
@@ -241,15 +369,7 @@ public class Client {
 		String response = httpHelper.sendRequest(host, HttpHelper.URLs.client + "createRoom", jsonObject, true, "POST",
 				true);
 		JSONObject object = new JSONObject(response);
-		String roomID = object.getString("room_id");
-
-		// register in users account_data m.direct
-		directChatRooms.put(userID, Collections.singletonList(roomID));
-		JSONObject mDirect = new JSONObject(directChatRooms);
-		httpHelper.sendRequest(host, HttpHelper.URLs.user + loginData.getUser_id() + "/account_data/m.direct", mDirect,
-				true, "PUT");
-
-		return roomID;
+		return object.getString("room_id");
 	}
 
 	/**
@@ -264,14 +384,24 @@ public class Client {
 		if (loginData == null) {
 			return null;
 		}
-		String response = httpHelper.sendRequest(host,
-				HttpHelper.URLs.user + loginData.getUser_id() + "/account_data/m.direct", null, true, "GET");
-		JSONObject jsonObject = new JSONObject(response);
-		return jsonObject.keySet().stream()
-				.collect(Collectors.toMap(key -> (String) key,
-						key -> IntStream.range(0, jsonObject.getJSONArray((String) key).length())
-								.mapToObj(i -> jsonObject.getJSONArray((String) key).getString(i))
-								.collect(Collectors.toList())));
+		JSONObject jsonObject;
+		try {
+			jsonObject = new JSONObject(httpHelper.sendRequest(host,
+					HttpHelper.URLs.user + loginData.getUser_id() + "/account_data/m.direct", null, true, "GET",
+					true));
+		} catch (HttpStatusException e) {
+			// never written, an error must not be taken for an empty map
+			if (e.getStatusCode() != 404) {
+				throw e;
+			}
+			jsonObject = new JSONObject();
+		}
+		directChats.load(jsonObject);
+		return DirectChatIndex.parse(jsonObject);
+	}
+
+	DirectChatIndex getDirectChatIndex() {
+		return directChats;
 	}
 
 	/**
@@ -285,6 +415,10 @@ public class Client {
 	 */
 	public String resolveRoomAliasSync(String roomID) throws IOException {
 		if (roomID.startsWith("#")) {
+			RoomAliasCache aliasCache = this.aliasCache;
+			if (aliasCache != null) {
+				return aliasCache.resolve(roomID, this::requestRoomAlias);
+			}
 			String response = httpHelper.sendRequest(host, HttpHelper.URLs.directory + "room/" + roomID, null, true,
 					"GET");
 			JSONObject object = new JSONObject(response);
@@ -297,6 +431,35 @@ public class Client {
 		return roomID;
 	}
 
+	/**
+	 * @return <code>null</code> if the server does not know the alias
+	 * @throws IOException on any other error, which is not cached
+	 */
+	private String requestRoomAlias(String alias) throws IOException {
+		String response = httpHelper.sendRequest(host, HttpHelper.URLs.directory + "room/" + alias, null, true, "GET");
+		JSONObject object = new JSONObject(response);
+		if (object.has("room_id")) {
+			return object.getString("room_id");
+		}
+		if (object.optInt("code") == 404 || "M_NOT_FOUND".equals(object.optString("errcode"))) {
+			return null;
+		}
+		throw new IOException("Could not resolve " + alias + ": " + response);
+	}
+
+	/**
+	 * Cache resolved room aliases. The cache is invalidated by alias changes
+	 * seen by the sync loop, <code>null</code> turns it off.
+	 */
+	public void setRoomAliasCache(RoomAliasCache roomAliasCache) {
+		this.aliasCache = roomAliasCache;
+		syncee.setAliasCache(roomAliasCache);
+	}
+
+	public RoomAliasCache getRoomAliasCache() {
+		return aliasCache;
+	}
+
     public void sendText(String roomID, String message, DataCallback response) throws IOException {
         sendText(roomID, message, false, "", response);
     }
@@ -323,15 +486,115 @@ public class Client {
         sendRoomEvent("m.room.message", roomID, messageObject, response);
     }
 
+	/**
+	 * Send an event through the {@link SendQueue}: events of one room are sent in
+	 * order, and transient failures are retried with the same transaction id.
+	 * The response gets the response body, or the error object with the status
+	 * code if the server rejected the event.
+	 */
     public void sendRoomEvent(String event, String roomID, JSONObject content, DataCallback response) throws
             IOException {
-        httpHelper.sendRequestAsync(host, HttpHelper.URLs.rooms + roomID + "/send/" + event + "/" + System.currentTimeMillis(), content, "PUT", data -> {
-            if (response != null) {
-                response.onData(data);
-            }
-        });
+		sendRoomEvent(event, roomID, content).whenComplete((data, failure) -> {
+			if (failure instanceof HttpStatusException) {
+				data = "{\n" + "  \"response\":\"error\",\n" + "  \"code\":"
+						+ ((HttpStatusException) failure).getStatusCode() + "\n" + "}";
+			} else if (failure != null) {
+				failure.printStackTrace();
+				return;
+			}
+			if (response != null) {
+				try {
+					response.onData(data);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
     }
 
+	/**
+	 * Send an event through the {@link SendQueue}.
+	 * 
+	 * @return completed with the response body once the server accepted the
+	 *         event, or exceptionally when it was given up on
+	 */
+	public CompletableFuture<String> sendRoomEvent(String event, String roomID, JSONObject content) {
+		Outbox outbox = this.outbox;
+		if (outbox == null) {
+			return getSendQueue().enqueue(roomID, event, txnIds.next(), content);
+		}
+		Outbox.Entry entry;
+		try {
+			entry = outbox.append(roomID, event, txnIds.next(), content);
+		} catch (IOException e) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return send(outbox, entry);
+	}
+
+	/**
+	 * Send an event of the outbox and acknowledge it once the server returned its
+	 * event id, or rejected it for good.
+	 */
+	private CompletableFuture<String> send(Outbox outbox, Outbox.Entry entry) {
+		CompletableFuture<String> result = getSendQueue().enqueue(entry.getRoomId(), entry.getEventType(),
+				entry.getTxnId(), entry.getContent());
+		result.whenComplete((data, failure) -> {
+			boolean done;
+			if (failure == null) {
+				try {
+					done = new JSONObject(data).has("event_id");
+				} catch (JSONException e) {
+					done = false;
+				}
+			} else {
+				// an expired login is not the event's fault, keep it for the next start
+				done = failure instanceof HttpStatusException && !SendQueue.isTransient((HttpStatusException) failure)
+						&& ((HttpStatusException) failure).getStatusCode() != 401;
+			}
+			if (done) {
+				try {
+					outbox.acknowledge(entry.getId());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Write every event to a durable {@link Outbox} before sending it. Events the
+	 * outbox holds from a previous run are sent right away, so set it after
+	 * login. <code>null</code> turns it off.
+	 */
+	public void setOutbox(Outbox outbox) {
+		this.outbox = outbox;
+		if (outbox != null) {
+			for (Outbox.Entry entry : outbox.getPending()) {
+				send(outbox, entry);
+			}
+		}
+	}
+
+	public SendQueue getSendQueue() {
+		SendQueue sendQueue = this.sendQueue;
+		if (sendQueue == null) {
+			synchronized (this) {
+				sendQueue = this.sendQueue;
+				if (sendQueue == null) {
+					sendQueue = new SendQueue((roomID, eventType, txnId, content) -> httpHelper.sendRequest(host,
+							HttpHelper.URLs.rooms + roomID + "/send/" + eventType + "/" + txnId, content, true, "PUT",
+							HttpHelper::readResponse), httpHelper.getExecutor());
+					this.sendQueue = sendQueue;
+				}
+			}
+		}
+		return sendQueue;
+	}
+
     public void kickUser(String roomID, String userID, String reason, DataCallback response) throws IOException {
 		if (!isLoggedIn())
             return;
@@ -411,34 +674,108 @@ public class Client {
 		if (!isLoggedIn())
             return;
 
+		RoomMemberCache memberCache = this.memberCache;
+		if (memberCache != null) {
+			List<Member> members = memberCache.getMembers(roomID);
+			if (members != null) {
+				if (memberCallback != null) {
+					memberCallback.onResponse(members);
+				}
+				return;
+			}
+			memberCache.beginLoad(roomID);
+		}
+
         httpHelper.sendRequestAsync(host, HttpHelper.URLs.rooms + roomID + "/joined_members", null, "GET", data -> {
-            if (memberCallback != null) {
-                try {
-                    JSONObject object = new JSONObject((String) data).getJSONObject("joined");
-                    Iterator<String> keys = object.keys();
-                    List<Member> members = new ArrayList<>();
-                    while (keys.hasNext()) {
-                        String key = keys.next();
-                        JSONObject user = object.getJSONObject(key);
-                        String avatar = "";
-                        if (user.has("avatar_url") && user.get("avatar_url") != null && user.get("avatar_url") instanceof String) {
-                            avatar = user.getString("avatar_url");
-                        }
-                        members.add(new Member(
-                                key,
-                                user.getString("display_name"),
-                                avatar
-                        ));
-                    }
-                    memberCallback.onResponse(members);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    memberCallback.onResponse(null);
-                }
-            }
+			List<Member> members;
+			try {
+				members = parseJoinedMembers((String) data);
+			} catch (JSONException e) {
+				e.printStackTrace();
+				members = null;
+			}
+			if (memberCache != null) {
+				if (members != null) {
+					memberCache.load(roomID, members);
+				} else {
+					memberCache.invalidate(roomID);
+				}
+			}
+			if (memberCallback != null) {
+				memberCallback.onResponse(members);
+			}
         });
     }
 
+	/**
+	 * Returns the joined members of a room, answered from the
+	 * {@link RoomMemberCache} if the room is cached.
+	 * 
+	 * @return <code>null</code> if not logged in
+	 * @throws IOException if the members had to be requested and the request
+	 *                     failed
+	 */
+	public List<Member> getRoomMembersSync(String roomID) throws IOException {
+		if (!isLoggedIn()) {
+			return null;
+		}
+		RoomMemberCache memberCache = this.memberCache;
+		if (memberCache != null) {
+			List<Member> members = memberCache.getMembers(roomID);
+			if (members != null) {
+				return members;
+			}
+			memberCache.beginLoad(roomID);
+		}
+		try {
+			String response = httpHelper.sendRequest(host, HttpHelper.URLs.rooms + roomID + "/joined_members", null,
+					true, "GET", true);
+			List<Member> members = parseJoinedMembers(response);
+			if (memberCache != null) {
+				memberCache.load(roomID, members);
+			}
+			return members;
+		} catch (IOException | JSONException e) {
+			if (memberCache != null) {
+				memberCache.invalidate(roomID);
+			}
+			throw e;
+		}
+	}
+
+	private static List<Member> parseJoinedMembers(String response) {
+		JSONObject object = new JSONObject(response).getJSONObject("joined");
+		Iterator<String> keys = object.keys();
+		List<Member> members = new ArrayList<>();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			JSONObject user = object.getJSONObject(key);
+			String avatar = "";
+			if (user.has("avatar_url") && user.get("avatar_url") != null && user.get("avatar_url") instanceof String) {
+				avatar = user.getString("avatar_url");
+			}
+			members.add(new Member(
+					key,
+					user.getString("display_name"),
+					avatar
+			));
+		}
+		return members;
+	}
+
+	/**
+	 * Answer member lookups from memory. The cache is kept current by the sync
+	 * loop, <code>null</code> turns it off.
+	 */
+	public void setRoomMemberCache(RoomMemberCache roomMemberCache) {
+		this.memberCache = roomMemberCache;
+		syncee.setMemberCache(roomMemberCache);
+	}
+
+	public RoomMemberCache getRoomMemberCache() {
+		return memberCache;
+	}
+
     public void getRoomEventFromId(String roomID, String eventID, RoomEventCallback callback) throws IOException {
 		if (!isLoggedIn())
             return;
@@ -502,7 +839,282 @@ public class Client {
     }
 
     public void sendFile(String contentType, int contentLength, InputStream data, DataCallback callback) throws IOException {
-        httpHelper.sendStreamAsync(host, HttpHelper.URLs.upload,contentType,contentLength,data,true,"POST", responsedata -> {
+        if (uploadIndex != null) {
+            sendFile(contentType, (long) contentLength, data, null, callback);
+            return;
+        }
+        httpHelper.sendStreamAsync(host, HttpHelper.URLs.upload,contentType,contentLength,data,true,"POST", contentUriCallback(callback));
+    }
+
+	/**
+	 * Upload a stream of any length to the media repository.
+	 * 
+	 * @param contentLength bytes to upload, <code>-1</code> if unknown
+	 * @param progress      told about the bytes sent, may be <code>null</code>
+	 * @param callback      gets the <code>content_uri</code>, or the error object
+	 */
+	public void sendFile(String contentType, long contentLength, InputStream data, @Nullable ProgressCallback progress,
+			DataCallback callback) {
+		if (uploadIndex != null) {
+			uploadAsync(() -> upload(contentType, data, contentLength, progress), callback);
+			return;
+		}
+		httpHelper.sendStreamAsync(host, HttpHelper.URLs.upload, contentType, contentLength, data, true, "POST",
+				progress, contentUriCallback(callback));
+	}
+
+	/**
+	 * Upload a file to the media repository. The file is read from its channel
+	 * into pooled buffers, so files of any size can be uploaded.
+	 * 
+	 * @param progress told about the bytes sent, may be <code>null</code>
+	 * @param callback gets the <code>content_uri</code>, or the error object
+	 */
+	public void sendFile(String contentType, Path file, @Nullable ProgressCallback progress, DataCallback callback) {
+		if (uploadIndex != null) {
+			uploadAsync(() -> upload(contentType, file, progress), callback);
+			return;
+		}
+		httpHelper.sendFileAsync(host, HttpHelper.URLs.upload, contentType, file, true, "POST", progress,
+				contentUriCallback(callback));
+	}
+
+	/**
+	 * Upload a file to the media repository.
+	 * 
+	 * @param progress told about the bytes sent, may be <code>null</code>
+	 * @return the <code>content_uri</code> of the upload
+	 * @throws IOException if the upload failed
+	 */
+	public String sendFileSync(String contentType, Path file, @Nullable ProgressCallback progress) throws IOException {
+		String response = upload(contentType, file, progress);
+		JSONObject object = new JSONObject(response);
+		if (!object.has("content_uri")) {
+			throw new IOException("Upload of " + file + " failed: " + response);
+		}
+		return object.getString("content_uri");
+	}
+
+	/**
+	 * Upload a stream of unknown length to the media repository. With an
+	 * {@link UploadIndex} set, the stream is spooled to a temp file and hashed
+	 * first, so known content is not sent again.
+	 * 
+	 * @param progress told about the bytes sent, may be <code>null</code>
+	 * @return the <code>content_uri</code> of the upload
+	 * @throws IOException if the upload failed
+	 */
+	public String sendFileSync(String contentType, InputStream data, @Nullable ProgressCallback progress)
+			throws IOException {
+		return sendFileSync(contentType, data, -1, progress);
+	}
+
+	/**
+	 * Upload a stream to the media repository.
+	 * 
+	 * @param contentLength bytes to upload, <code>-1</code> if unknown
+	 * @param progress      told about the bytes sent, may be <code>null</code>
+	 * @return the <code>content_uri</code> of the upload
+	 * @throws IOException if the upload failed
+	 */
+	public String sendFileSync(String contentType, InputStream data, long contentLength,
+			@Nullable ProgressCallback progress) throws IOException {
+		String response = upload(contentType, data, contentLength, progress);
+		JSONObject object = new JSONObject(response);
+		if (!object.has("content_uri")) {
+			throw new IOException("Upload failed: " + response);
+		}
+		return object.getString("content_uri");
+	}
+
+	/**
+	 * Upload many files through the {@link BulkUploader}, which limits the
+	 * uploads running at the same time.
+	 * 
+	 * @return one future per item, completed with its <code>content_uri</code>
+	 */
+	public List<CompletableFuture<String>> sendFiles(Collection<BulkUploader.Item> items) {
+		return getBulkUploader().submitAll(items);
+	}
+
+	/**
+	 * Replace the uploader used by {@link #sendFiles(Collection)}, e.g. for
+	 * another limit of uploads in flight.
+	 */
+	public void setBulkUploader(BulkUploader bulkUploader) {
+		this.bulkUploader = bulkUploader;
+	}
+
+	/**
+	 * @return the uploader of {@link #sendFiles(Collection)}, by default with
+	 *         {@link BulkUploader#DEFAULT_MAX_IN_FLIGHT} uploads in flight on
+	 *         threads of its own
+	 */
+	public BulkUploader getBulkUploader() {
+		BulkUploader bulkUploader = this.bulkUploader;
+		if (bulkUploader == null) {
+			synchronized (this) {
+				bulkUploader = this.bulkUploader;
+				if (bulkUploader == null) {
+					bulkUploader = new BulkUploader(this::upload, BulkUploader.DEFAULT_MAX_IN_FLIGHT);
+					this.bulkUploader = bulkUploader;
+				}
+			}
+		}
+		return bulkUploader;
+	}
+
+	private String upload(BulkUploader.Item item, ProgressCallback progress) throws IOException {
+		if (item.getFile() != null) {
+			return sendFileSync(item.getContentType(), item.getFile(), progress);
+		}
+		return sendFileSync(item.getContentType(), item.getData(), item.getContentLength(), progress);
+	}
+
+	private interface Upload {
+		String run() throws IOException;
+	}
+
+	private void uploadAsync(Upload upload, DataCallback callback) {
+		httpHelper.getExecutor().execute(() -> {
+			try {
+				contentUriCallback(callback).onData(upload.run());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * @return the response of the upload, or one made up from the
+	 *         {@link UploadIndex}
+	 */
+	private String upload(String contentType, Path file, ProgressCallback progress) throws IOException {
+		UploadIndex uploadIndex = this.uploadIndex;
+		if (uploadIndex == null) {
+			return httpHelper.sendFile(host, HttpHelper.URLs.upload, contentType, file, true, "POST", progress);
+		}
+		return upload(uploadIndex, contentType, file, UploadIndex.hash(contentType, file), progress);
+	}
+
+	private String upload(String contentType, InputStream data, long contentLength, ProgressCallback progress)
+			throws IOException {
+		UploadIndex uploadIndex = this.uploadIndex;
+		if (uploadIndex == null) {
+			return httpHelper.sendStream(host, HttpHelper.URLs.upload, contentType, data, contentLength, true, "POST",
+					progress);
+		}
+		Path spool = java.nio.file.Files.createTempFile("upload", ".spool");
+		try {
+			byte[] hash = UploadIndex.spool(contentType, data, spool);
+			return upload(uploadIndex, contentType, spool, hash, progress);
+		} finally {
+			java.nio.file.Files.deleteIfExists(spool);
+		}
+	}
+
+	private String upload(UploadIndex uploadIndex, String contentType, Path file, byte[] hash,
+			ProgressCallback progress) throws IOException {
+		String contentUri = uploadIndex.get(hash);
+		if (contentUri != null) {
+			return new JSONObject().put("content_uri", contentUri).toString();
+		}
+		String response = httpHelper.sendFile(host, HttpHelper.URLs.upload, contentType, file, true, "POST", progress);
+		try {
+			contentUri = new JSONObject(response).optString("content_uri", null);
+		} catch (JSONException e) {
+			contentUri = null;
+		}
+		if (contentUri != null) {
+			uploadIndex.put(hash, contentUri);
+		}
+		return response;
+	}
+
+	/**
+	 * Look up uploads by the hash of their content and return the known
+	 * <code>content_uri</code> instead of uploading again, <code>null</code>
+	 * turns it off.
+	 */
+	public void setUploadIndex(UploadIndex uploadIndex) {
+		this.uploadIndex = uploadIndex;
+	}
+
+	public UploadIndex getUploadIndex() {
+		return uploadIndex;
+	}
+
+	/**
+	 * Download media from the media repository, answered from the
+	 * {@link MediaCache} if set.
+	 * 
+	 * @param mxcUri <code>mxc://server/mediaId</code>
+	 * @param out    receives the media
+	 * @return the content type
+	 * @throws IOException if the download failed
+	 */
+	public String downloadMediaSync(String mxcUri, OutputStream out) throws IOException {
+		return downloadSync(mxcUri, HttpHelper.URLs.media + "download/" + mediaPath(mxcUri), null, out);
+	}
+
+	/**
+	 * Download a thumbnail of media from the media repository, answered from the
+	 * {@link MediaCache} if set.
+	 * 
+	 * @param method <code>crop</code> or <code>scale</code>
+	 * @return the content type
+	 * @throws IOException if the download failed
+	 */
+	public String downloadThumbnailSync(String mxcUri, int width, int height, String method, OutputStream out)
+			throws IOException {
+		String parameters = "width=" + width + "&height=" + height + "&method=" + method;
+		return downloadSync(mxcUri, HttpHelper.URLs.media + "thumbnail/" + mediaPath(mxcUri) + "?" + parameters,
+				parameters, out);
+	}
+
+	private String downloadSync(String mxcUri, String path, String variant, OutputStream out) throws IOException {
+		MediaCache mediaCache = this.mediaCache;
+		if (mediaCache == null) {
+			return httpHelper.download(host, path, true, (body, contentType) -> {
+				copy(body, out);
+				return contentType;
+			});
+		}
+		return mediaCache.get(MediaCache.key(mxcUri, variant), out,
+				cacheOut -> httpHelper.download(host, path, true, (body, contentType) -> {
+					copy(body, cacheOut);
+					return contentType;
+				}));
+	}
+
+	private static String mediaPath(String mxcUri) {
+		if (!mxcUri.startsWith("mxc://") || mxcUri.indexOf('/', "mxc://".length()) < 0) {
+			throw new IllegalArgumentException("Not a mxc URI: " + mxcUri);
+		}
+		return mxcUri.substring("mxc://".length());
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+
+	/**
+	 * Keep downloaded media in a disk cache, <code>null</code> turns it off.
+	 */
+	public void setMediaCache(MediaCache mediaCache) {
+		this.mediaCache = mediaCache;
+	}
+
+	public MediaCache getMediaCache() {
+		return mediaCache;
+	}
+
+	private static DataCallback contentUriCallback(DataCallback callback) {
+		return responsedata -> {
             if (callback != null) {
                 try {
                     JSONObject object = new JSONObject((String) responsedata);
@@ -515,8 +1127,8 @@ public class Client {
                     ee.printStackTrace();
                 }
             }
-        });
-    }
+        };
+	}
 
 
 
@@ -526,10 +1138,38 @@ public class Client {
     }
 
     public Client(String host) {
+        this(host, HttpExecutor.shared());
+    }
+
+	/**
+	 * @param host            the homeserver url
+	 * @param executorService runs the asynchronous requests of this client instead
+	 *                        of the shared default executor
+	 */
+	public Client(String host, ExecutorService executorService) {
+		this(host, HttpExecutor.of(executorService));
+	}
+
+	/**
+	 * @param host     the homeserver url
+	 * @param executor runs the asynchronous requests of this client, e.g. one
+	 *                 shared by a {@link ClientGroup}
+	 */
+	public Client(String host, HttpExecutor executor) {
+		this(host, executor, PooledHttpTransport.shared());
+	}
+
+	/**
+	 * @param host      the homeserver url
+	 * @param executor  runs the asynchronous requests of this client
+	 * @param transport sends the requests, e.g. one shared by a
+	 *                  {@link ClientGroup}
+	 */
+	public Client(String host, HttpExecutor executor, HttpTransport transport) {
         this.host = host;
 		this.httpHelper = new HttpHelper(() -> {
 			return loginData != null ? loginData.getAccess_token() : null;
-		});
+		}, executor, transport);
         this.syncee = new Syncee(this, httpHelper);
         if (!host.endsWith("/"))
             this.host += "/";
@@ -549,6 +1189,10 @@ public class Client {
 		}
     }
 
+    public HttpHelper getHttpHelper() {
+        return httpHelper;
+    }
+
     public String getHost() {
         return host;
     }
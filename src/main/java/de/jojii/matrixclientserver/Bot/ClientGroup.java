@@ -0,0 +1,110 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.jojii.matrixclientserver.File.FileSyncTokenStore;
+import de.jojii.matrixclientserver.File.SyncTokenStore;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
+
+/**
+ * Runs many accounts in one process. The clients of a group share the
+ * transport and its connection pool, the executor of their asynchronous
+ * requests, the {@link SyncScheduler} running their sync loops and a
+ * {@link SyncTokenStore}, in which every account keeps its own token under its
+ * user and device id.
+ * <p>
+ * Every running sync holds a connection for its long poll, so each client
+ * {@link PooledHttpTransport#reserveConnections(String, String, int, int) reserves}
+ * one connection to its host on top of the transport's limit, which stays for
+ * the other requests. Removing the client gives it back, reservations of
+ * groups sharing a transport add up.
+ */
+public class ClientGroup {
+
+    private final PooledHttpTransport transport;
+    private final HttpExecutor executor;
+    private final SyncScheduler scheduler;
+    private final SyncTokenStore tokenStore;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+    /**
+     * Shared executor and scheduler, tokens kept as files in a directory.
+     */
+    public ClientGroup(Path tokenDirectory) {
+        this(PooledHttpTransport.shared(), HttpExecutor.shared(), SyncScheduler.shared(),
+                new FileSyncTokenStore(tokenDirectory));
+    }
+
+    public ClientGroup(PooledHttpTransport transport, HttpExecutor executor, SyncScheduler scheduler,
+            SyncTokenStore tokenStore) {
+        this.transport = transport;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.tokenStore = tokenStore;
+    }
+
+    /**
+     * Create a client of the group. It still has to log in, which starts its
+     * sync loop on the scheduler.
+     */
+    public Client newClient(String host) {
+        Client client = new Client(host, executor, transport);
+        client.setSyncScheduler(scheduler);
+        client.setSyncTokenStore(tokenStore);
+        clients.add(client);
+        reserveConnection(client, 1);
+        return client;
+    }
+
+    /**
+     * Stop the sync loop of a client and take it out of the group.
+     */
+    public void remove(Client client) {
+        if (clients.remove(client)) {
+            client.stopSync();
+            reserveConnection(client, -1);
+        }
+    }
+
+    private void reserveConnection(Client client, int connections) {
+        try {
+            URL url = new URL(client.getHost());
+            transport.reserveConnections(url.getProtocol(), url.getHost(), url.getPort(), connections);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public List<Client> getClients() {
+        return new ArrayList<>(clients);
+    }
+
+    public SyncScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public PooledHttpTransport getTransport() {
+        return transport;
+    }
+
+    public HttpExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stop the sync loops of all clients and write their tokens.
+     */
+    public void close() throws IOException {
+        for (Client client : clients) {
+            remove(client);
+        }
+        tokenStore.flush();
+    }
+}
@@ -0,0 +1,235 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * In-memory copy of the <code>m.direct</code> account data, mapping user ids
+ * to their direct chat rooms. It is loaded once and then replaced by the
+ * <code>m.direct</code> events of the sync.
+ * <p>
+ * Concurrent requests for the direct chat with the same user share one room
+ * creation. Rooms added locally are written back with the whole map, and
+ * additions made while a write is in flight are combined into the next write.
+ * Until written, local additions survive an older map arriving from the sync.
+ */
+public class DirectChatIndex {
+
+    public interface RoomCreator {
+        /**
+         * @return the id of the created room
+         */
+        String create(String userId) throws IOException;
+    }
+
+    public interface Writer {
+        void write(JSONObject mDirect) throws IOException;
+    }
+
+    private static class Unsaved {
+        final String roomId;
+        final long version;
+
+        Unsaved(String roomId, long version) {
+            this.roomId = roomId;
+            this.version = version;
+        }
+    }
+
+    private final Map<String, List<String>> rooms = new HashMap<>();
+    private final Map<String, Unsaved> unsaved = new HashMap<>();
+    private boolean loaded;
+    private long version;
+    private long savedVersion;
+    private boolean saving;
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> creating = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Replace the index with the content of an <code>m.direct</code> event.
+     */
+    public synchronized void load(JSONObject mDirect) {
+        rooms.clear();
+        rooms.putAll(parse(mDirect));
+        for (Map.Entry<String, Unsaved> entry : unsaved.entrySet()) {
+            List<String> list = rooms.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+            if (!list.contains(entry.getValue().roomId)) {
+                list.add(entry.getValue().roomId);
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return the first direct chat room with the user or <code>null</code>
+     */
+    public synchronized String getRoom(String userId) {
+        List<String> list = rooms.get(userId);
+        return list != null && !list.isEmpty() ? list.get(0) : null;
+    }
+
+    public synchronized Map<String, List<String>> snapshot() {
+        Map<String, List<String>> copy = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : rooms.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Return the direct chat room with the user, creating and registering it if
+     * there is none. Callers asking for the same user at the same time wait for
+     * the same creation.
+     */
+    public String getOrCreate(String userId, RoomCreator creator, Writer writer) throws IOException {
+        String roomId = getRoom(userId);
+        if (roomId != null) {
+            return roomId;
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> running = creating.putIfAbsent(userId, future);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            // created by a caller finishing right before we registered
+            roomId = getRoom(userId);
+            if (roomId == null) {
+                roomId = creator.create(userId);
+                save(add(userId, roomId), writer);
+            }
+            future.complete(roomId);
+            return roomId;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            creating.remove(userId, future);
+        }
+    }
+
+    private synchronized long add(String userId, String roomId) {
+        rooms.computeIfAbsent(userId, k -> new ArrayList<>()).add(roomId);
+        version++;
+        unsaved.put(userId, new Unsaved(roomId, version));
+        return version;
+    }
+
+    /**
+     * Make sure the given version is written. If a write is in flight, wait for
+     * it and write everything added meanwhile with a single request.
+     */
+    private void save(long target, Writer writer) throws IOException {
+        JSONObject mDirect;
+        long writing;
+        synchronized (this) {
+            while (saving && savedVersion < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for m.direct write");
+                }
+            }
+            if (savedVersion >= target) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            saving = true;
+            writing = version;
+            mDirect = new JSONObject();
+            for (Map.Entry<String, List<String>> entry : rooms.entrySet()) {
+                mDirect.put(entry.getKey(), new JSONArray(entry.getValue()));
+            }
+        }
+        boolean written = false;
+        try {
+            writer.write(mDirect);
+            writes.incrementAndGet();
+            written = true;
+        } finally {
+            synchronized (this) {
+                saving = false;
+                if (written) {
+                    savedVersion = Math.max(savedVersion, writing);
+                    Iterator<Unsaved> it = unsaved.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().version <= writing) {
+                            it.remove();
+                        }
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for room creation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return number of <code>m.direct</code> writes sent
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * @return number of additions written by another caller's write
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    static Map<String, List<String>> parse(JSONObject mDirect) {
+        Map<String, List<String>> parsed = new HashMap<>();
+        for (String userId : mDirect.keySet()) {
+            JSONArray array = mDirect.optJSONArray(userId);
+            if (array == null) {
+                continue;
+            }
+            List<String> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                String roomId = array.optString(i, null);
+                if (roomId != null) {
+                    list.add(roomId);
+                }
+            }
+            parsed.put(userId, list);
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,150 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+/**
+ * Drops events whose <code>event_id</code> was already delivered, e.g. after
+ * a sync was retried or restarted with an old token.
+ * <p>
+ * The ids of the most recent events are kept exactly in a window of fixed
+ * size. Optionally, older ids are remembered by a {@link RollingBloomFilter}
+ * saved to a file, so duplicates are also caught after a restart. A false
+ * positive of the filter drops a new event, so its probability should be
+ * chosen low. Memory use does not grow with the uptime.
+ */
+public class EventDeduplicator {
+
+    public static final int DEFAULT_WINDOW_SIZE = 10000;
+    public static final long DEFAULT_SAVE_INTERVAL = 5000;
+
+    private final String[] window;
+    private final Set<String> windowIds;
+    private int next;
+
+    private final RollingBloomFilter filter;
+    private final Path filterFile;
+    private final long saveInterval;
+    private boolean dirty;
+    private long lastSave = System.currentTimeMillis();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Only remember the last {@value #DEFAULT_WINDOW_SIZE} events in memory.
+     */
+    public EventDeduplicator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public EventDeduplicator(int windowSize) {
+        this(windowSize, null, null, 0);
+    }
+
+    /**
+     * @param windowSize   ids kept exactly in memory
+     * @param filter       remembers older ids, may be <code>null</code>
+     * @param filterFile   where the filter is saved, <code>null</code> to keep it
+     *                     in memory only
+     * @param saveInterval minimal milliseconds between two saves of the filter
+     */
+    public EventDeduplicator(int windowSize, RollingBloomFilter filter, Path filterFile, long saveInterval) {
+        this.window = new String[windowSize];
+        this.windowIds = new HashSet<>(windowSize * 4 / 3 + 1);
+        this.filter = filter;
+        this.filterFile = filterFile;
+        this.saveInterval = saveInterval;
+    }
+
+    /**
+     * Keep the last {@value #DEFAULT_WINDOW_SIZE} ids in memory and older ones in
+     * a filter loaded from and saved to a file.
+     *
+     * @param expectedEvents events the filter remembers at least
+     */
+    public static EventDeduplicator persistent(Path filterFile, int expectedEvents, double falsePositiveProbability)
+            throws IOException {
+        RollingBloomFilter filter = RollingBloomFilter.load(filterFile, expectedEvents, falsePositiveProbability);
+        return new EventDeduplicator(DEFAULT_WINDOW_SIZE, filter, filterFile, DEFAULT_SAVE_INTERVAL);
+    }
+
+    /**
+     * Record an id.
+     *
+     * @return <code>false</code> if the id was seen before
+     */
+    public synchronized boolean firstSeen(String eventId) {
+        if (windowIds.contains(eventId) || (filter != null && filter.mightContain(eventId))) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        if (window.length > 0) {
+            String evicted = window[next];
+            if (evicted != null) {
+                windowIds.remove(evicted);
+            }
+            window[next] = eventId;
+            windowIds.add(eventId);
+            next = (next + 1) % window.length;
+        }
+        if (filter != null) {
+            filter.put(eventId);
+            dirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return the events not seen before, events without id are always kept
+     */
+    public List<RoomEvent> filter(List<RoomEvent> roomEvents) {
+        List<RoomEvent> fresh = new ArrayList<>(roomEvents.size());
+        for (RoomEvent event : roomEvents) {
+            String eventId = event.getEvent_id();
+            if (eventId == null || eventId.isEmpty() || firstSeen(eventId)) {
+                fresh.add(event);
+            }
+        }
+        saveIfDue();
+        return fresh;
+    }
+
+    private void saveIfDue() {
+        synchronized (this) {
+            if (!dirty || System.currentTimeMillis() - lastSave < saveInterval) {
+                return;
+            }
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save the filter if it changed.
+     */
+    public synchronized void flush() throws IOException {
+        if (filter == null || filterFile == null || !dirty) {
+            return;
+        }
+        filter.save(filterFile);
+        dirty = false;
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * @return number of events dropped as duplicates
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+}
@@ -0,0 +1,158 @@
+package de.jojii.matrixclientserver.Bot.Events;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A {@link RoomEvent} which keeps the event json as text and decodes it only
+ * when accessed. {@link #getType()}, {@link #getEvent_id()} and
+ * {@link #getSender()} scan the top level of the text without building a
+ * {@link JSONObject}, the full object is only parsed by {@link #getRaw()} or
+ * {@link #getContent()}.
+ */
+public class LazyRoomEvent extends RoomEvent {
+
+    private static final int TYPE = 0, EVENT_ID = 1, SENDER = 2;
+    private static final String[] HEADER_FIELDS = {"type", "event_id", "sender"};
+
+    private final String json;
+    private String[] header;
+    private JSONObject raw;
+
+    /**
+     * @param json    the event object as json text
+     * @param room_id the room the event belongs to
+     */
+    public LazyRoomEvent(String json, String room_id) {
+        super(null, null, null, null, room_id, null);
+        this.json = json;
+    }
+
+    /**
+     * @return the undecoded event json
+     */
+    public String getJson() {
+        return json;
+    }
+
+    @Override
+    public synchronized JSONObject getRaw() {
+        if (raw == null) {
+            raw = new JSONObject(json);
+        }
+        return raw;
+    }
+
+    @Override
+    public JSONObject getContent() {
+        return getRaw().getJSONObject("content");
+    }
+
+    @Override
+    public String getType() {
+        return header()[TYPE];
+    }
+
+    @Override
+    public String getEvent_id() {
+        String event_id = header()[EVENT_ID];
+        return event_id != null ? event_id : "";
+    }
+
+    @Override
+    public String getSender() {
+        String sender = header()[SENDER];
+        return sender != null ? sender : "";
+    }
+
+    private synchronized String[] header() {
+        if (header == null) {
+            header = scanHeader(json);
+        }
+        return header;
+    }
+
+    /**
+     * Read the string values of {@link #HEADER_FIELDS} from the top level object.
+     */
+    private static String[] scanHeader(String json) {
+        String[] values = new String[HEADER_FIELDS.length];
+        int depth = 0;
+        boolean expectKey = false;
+        int field = -1;
+        int length = json.length();
+        for (int i = 0; i < length; i++) {
+            char c = json.charAt(i);
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    expectKey = depth == 1 && c == '{';
+                    field = -1;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case ',':
+                    expectKey = depth == 1;
+                    break;
+                case '"':
+                    int end = endOfString(json, i);
+                    if (depth == 1) {
+                        if (expectKey) {
+                            field = indexOfField(json, i + 1, end);
+                            expectKey = false;
+                        } else if (field >= 0) {
+                            values[field] = decodeString(json, i, end);
+                            field = -1;
+                        }
+                    }
+                    i = end;
+                    break;
+                case ':':
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                    break;
+                default:
+                    // number, boolean or null value
+                    field = -1;
+            }
+        }
+        return values;
+    }
+
+    private static int endOfString(String json, int quote) {
+        int length = json.length();
+        for (int i = quote + 1; i < length; i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static int indexOfField(String json, int start, int end) {
+        for (int f = 0; f < HEADER_FIELDS.length; f++) {
+            String name = HEADER_FIELDS[f];
+            if (name.length() == end - start && json.regionMatches(start, name, 0, name.length())) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    private static String decodeString(String json, int quote, int end) {
+        for (int i = quote + 1; i < end; i++) {
+            if (json.charAt(i) == '\\') {
+                return new JSONTokener(json.substring(quote, Math.min(end + 1, json.length()))).nextValue().toString();
+            }
+        }
+        return json.substring(quote + 1, end);
+    }
+}
@@ -8,8 +8,8 @@ import java.util.Iterator;
 import java.util.List;
 
 public class RoomEvent {
-    private final static String[] POINTS = {"timeline", "state", "account_data", "ephemeral", "invite_state"};
-    private final static String[] POINTS_TOP = {"join", "invite", "leave"};
+    final static String[] POINTS = {"timeline", "state", "account_data", "ephemeral", "invite_state"};
+    final static String[] POINTS_TOP = {"join", "invite", "leave"};
     private final JSONObject raw;
     private final String type, event_id, sender, room_id;
     private final JSONObject content;
@@ -114,11 +114,11 @@ public class RoomEvent {
     @Override
     public String toString() {
         return "RoomEvent{" +
-                "type='" + type + '\'' +
-                ", event_id='" + event_id + '\'' +
-                ", sender='" + sender + '\'' +
-                ", room_id='" + room_id + '\'' +
-                ", content=" + content +
+                "type='" + getType() + '\'' +
+                ", event_id='" + getEvent_id() + '\'' +
+                ", sender='" + getSender() + '\'' +
+                ", room_id='" + getRoom_id() + '\'' +
+                ", content=" + getContent() +
                 '}';
     }
 }
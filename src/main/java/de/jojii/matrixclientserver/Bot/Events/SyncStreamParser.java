@@ -0,0 +1,306 @@
+package de.jojii.matrixclientserver.Bot.Events;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a <code>/sync</code> response token by token and hands out the
+ * {@link RoomEvent}s room by room while the response is still being received.
+ * Only single events are materialized as {@link JSONObject}, everything the
+ * client does not use is skipped without building it, so the memory needed is
+ * bounded by the events of the largest room instead of the whole response.
+ * <p>
+ * Within a room the events are ordered like in
+ * {@link RoomEvent#parseAllEvents(JSONObject)}. In lazy mode the events are
+ * handed out as {@link LazyRoomEvent}s holding their compacted json text.
+ */
+public class SyncStreamParser {
+
+    public interface Listener {
+        void onRoomEvents(String roomId, List<RoomEvent> roomEvents) throws IOException;
+
+        /**
+         * Called for each event of the global <code>account_data</code>.
+         */
+        default void onAccountData(String type, JSONObject content) throws IOException {
+        }
+    }
+
+    private interface FieldReader {
+        void read(String key) throws IOException;
+    }
+
+    private interface ElementReader {
+        void read() throws IOException;
+    }
+
+    private final JSONTokener x;
+    private final Listener listener;
+    private final boolean lazy;
+    private final StringBuilder capture = new StringBuilder();
+    private String nextBatch;
+
+    private SyncStreamParser(Reader reader, Listener listener, boolean lazy) {
+        this.x = new JSONTokener(reader);
+        this.listener = listener;
+        this.lazy = lazy;
+    }
+
+    /**
+     * Parse a sync response.
+     *
+     * @return the <code>next_batch</code> token or <code>null</code> if the
+     *         response did not contain one
+     * @throws JSONException on malformed json
+     * @throws IOException   if thrown by the listener
+     */
+    public static String parse(Reader reader, Listener listener) throws IOException {
+        return parse(reader, listener, false);
+    }
+
+    /**
+     * Parse a sync response.
+     *
+     * @param lazy hand out {@link LazyRoomEvent}s instead of decoding every event
+     * @return the <code>next_batch</code> token or <code>null</code> if the
+     *         response did not contain one
+     * @throws JSONException on malformed json
+     * @throws IOException   if thrown by the listener
+     */
+    public static String parse(Reader reader, Listener listener, boolean lazy) throws IOException {
+        SyncStreamParser parser = new SyncStreamParser(reader, listener, lazy);
+        parser.readObject(parser::readTopLevel);
+        return parser.nextBatch;
+    }
+
+    private void readTopLevel(String key) throws IOException {
+        if ("next_batch".equals(key)) {
+            Object value = x.nextValue();
+            nextBatch = value instanceof String ? (String) value : null;
+        } else if ("account_data".equals(key)) {
+            readObject(field -> {
+                if ("events".equals(field)) {
+                    readArray(() -> {
+                        Object event = x.nextValue();
+                        if (event instanceof JSONObject) {
+                            JSONObject accountData = (JSONObject) event;
+                            listener.onAccountData(accountData.optString("type"), accountData.optJSONObject("content"));
+                        }
+                    });
+                } else {
+                    skipValue();
+                }
+            });
+        } else if ("rooms".equals(key)) {
+            readObject(membership -> {
+                if (indexOf(RoomEvent.POINTS_TOP, membership) >= 0) {
+                    readObject(this::readRoom);
+                } else {
+                    skipValue();
+                }
+            });
+        } else {
+            skipValue();
+        }
+    }
+
+    private void readRoom(String roomId) throws IOException {
+        List<List<RoomEvent>> sections = new ArrayList<>(Collections.nCopies(RoomEvent.POINTS.length, null));
+        readObject(point -> {
+            int index = indexOf(RoomEvent.POINTS, point);
+            if (index < 0) {
+                skipValue();
+                return;
+            }
+            List<RoomEvent> events = new ArrayList<>();
+            sections.set(index, events);
+            readObject(field -> {
+                if ("events".equals(field)) {
+                    readArray(() -> {
+                        if (lazy) {
+                            String event = captureObject();
+                            if (event != null) {
+                                events.add(new LazyRoomEvent(event, roomId));
+                            }
+                            return;
+                        }
+                        Object event = x.nextValue();
+                        if (event instanceof JSONObject) {
+                            events.add(RoomEvent.fetchRoomEvent((JSONObject) event, roomId));
+                        }
+                    });
+                } else {
+                    skipValue();
+                }
+            });
+        });
+
+        List<RoomEvent> roomEvents = new ArrayList<>();
+        for (List<RoomEvent> section : sections) {
+            if (section != null) {
+                roomEvents.addAll(section);
+            }
+        }
+        if (!roomEvents.isEmpty()) {
+            listener.onRoomEvents(roomId, roomEvents);
+        }
+    }
+
+    /**
+     * Read an object, calling the field reader for every key. The field reader
+     * has to consume the value. Any other value than an object is skipped.
+     */
+    private void readObject(FieldReader fieldReader) throws IOException {
+        char c = x.nextClean();
+        if (c != '{') {
+            x.back();
+            skipValue();
+            return;
+        }
+        if (x.nextClean() == '}') {
+            return;
+        }
+        x.back();
+        while (true) {
+            if (x.nextClean() != '"') {
+                throw x.syntaxError("A JSONObject key must be a string");
+            }
+            String key = x.nextString('"');
+            if (x.nextClean() != ':') {
+                throw x.syntaxError("Expected a ':' after a key");
+            }
+            fieldReader.read(key);
+            c = x.nextClean();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw x.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    private void readArray(ElementReader elementReader) throws IOException {
+        char c = x.nextClean();
+        if (c != '[') {
+            x.back();
+            skipValue();
+            return;
+        }
+        if (x.nextClean() == ']') {
+            return;
+        }
+        x.back();
+        while (true) {
+            elementReader.read();
+            c = x.nextClean();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw x.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Skip the next value without building it.
+     */
+    private void skipValue() {
+        char c = x.nextClean();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = x.next();
+                if (c == 0 && x.end()) {
+                    throw x.syntaxError("Unterminated value");
+                } else if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            x.back();
+            x.nextValue();
+        }
+    }
+
+    /**
+     * Copy the next value as json text without whitespace outside of strings.
+     *
+     * @return <code>null</code> if the value is not an object
+     */
+    private String captureObject() {
+        char c = x.nextClean();
+        if (c != '{') {
+            x.back();
+            skipValue();
+            return null;
+        }
+        capture.setLength(0);
+        capture.append(c);
+        int depth = 1;
+        while (depth > 0) {
+            c = x.next();
+            if (c == 0 && x.end()) {
+                throw x.syntaxError("Unterminated object");
+            } else if (c == '"') {
+                capture.append(c);
+                while (true) {
+                    c = x.next();
+                    if (c == 0 && x.end()) {
+                        throw x.syntaxError("Unterminated string");
+                    }
+                    capture.append(c);
+                    if (c == '\\') {
+                        capture.append(x.next());
+                    } else if (c == '"') {
+                        break;
+                    }
+                }
+            } else if (c > ' ') {
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                capture.append(c);
+            }
+        }
+        return capture.toString();
+    }
+
+    private void skipString() {
+        while (true) {
+            char c = x.next();
+            if (c == 0 && x.end()) {
+                throw x.syntaxError("Unterminated string");
+            } else if (c == '\\') {
+                x.next();
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
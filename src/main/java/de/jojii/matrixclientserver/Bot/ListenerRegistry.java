@@ -0,0 +1,225 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import de.jojii.matrixclientserver.Callbacks.RoomEventCallback;
+
+/**
+ * Routes single events to the callbacks subscribed to them. A subscription can
+ * filter by event type, room id and sender, each of them optional. Event types
+ * may end with a <code>*</code> glob, e.g. <code>m.room.*</code>.
+ * <p>
+ * Every subscription is kept in exactly one index, picked by its most selective
+ * filter: a hash index by room id, by sender, by exact event type, or a trie of
+ * the glob prefixes. Routing an event only looks at the subscriptions found
+ * through its room, its sender, its type and the type's prefixes, and calls
+ * each matching callback once.
+ */
+public class ListenerRegistry {
+
+    private final ConcurrentHashMap<String, Set<Subscription>> byRoom = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Subscription>> bySender = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Subscription>> byType = new ConcurrentHashMap<>();
+    private final TrieNode globs = new TrieNode();
+    private final Set<Subscription> unfiltered = new CopyOnWriteArraySet<>();
+
+    /**
+     * @param eventType event type, or a prefix followed by <code>*</code>, or
+     *                  <code>null</code> for all types
+     * @param roomId    room id or <code>null</code> for all rooms
+     * @param sender    sender user id or <code>null</code> for all senders
+     */
+    public Subscription subscribe(String eventType, String roomId, String sender, RoomEventCallback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        String typePrefix = null;
+        if (eventType != null && eventType.endsWith("*")) {
+            typePrefix = eventType.substring(0, eventType.length() - 1);
+            eventType = null;
+        }
+        Subscription subscription = new Subscription(eventType, typePrefix, roomId, sender, callback);
+        subscription.register();
+        return subscription;
+    }
+
+    /**
+     * Call the callbacks of all subscriptions matching the event. Exceptions of
+     * a callback do not keep the others from being called.
+     */
+    public void route(RoomEvent event) {
+        String roomId = event.getRoom_id();
+        String sender = event.getSender();
+        String type = event.getType();
+        if (roomId != null) {
+            deliver(byRoom.get(roomId), event);
+        }
+        if (sender != null) {
+            deliver(bySender.get(sender), event);
+        }
+        if (type != null) {
+            deliver(byType.get(type), event);
+            TrieNode node = globs;
+            int start = 0;
+            while (node != null) {
+                deliver(node.subscriptions, event);
+                if (start >= type.length()) {
+                    break;
+                }
+                int dot = type.indexOf('.', start);
+                int end = dot < 0 ? type.length() : dot + 1;
+                node = node.children.get(type.substring(start, end));
+                start = end;
+            }
+        } else {
+            deliver(globs.subscriptions, event);
+        }
+        deliver(unfiltered, event);
+    }
+
+    public boolean isEmpty() {
+        return byRoom.isEmpty() && bySender.isEmpty() && byType.isEmpty() && globs.isEmpty() && unfiltered.isEmpty();
+    }
+
+    private static void deliver(Set<Subscription> subscriptions, RoomEvent event) {
+        if (subscriptions == null) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(event)) {
+                try {
+                    subscription.callback.onEventReceived(event);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Glob prefixes split after each dot, e.g. <code>m.room.mem*</code> is stored
+     * under <code>m.</code>, <code>room.</code>, <code>mem</code>. A type is
+     * matched by walking its own segments, prefixes ending within a segment are
+     * checked by {@link Subscription#matches(RoomEvent)}.
+     */
+    private static class TrieNode {
+        final ConcurrentHashMap<String, TrieNode> children = new ConcurrentHashMap<>();
+        final Set<Subscription> subscriptions = new CopyOnWriteArraySet<>();
+
+        Set<Subscription> find(String prefix, boolean create) {
+            TrieNode node = this;
+            int start = 0;
+            // a prefix not ending with a dot is kept one level up
+            int limit = prefix.lastIndexOf('.') + 1;
+            while (start < limit) {
+                int end = prefix.indexOf('.', start) + 1;
+                String segment = prefix.substring(start, end);
+                TrieNode child = create ? node.children.computeIfAbsent(segment, k -> new TrieNode())
+                        : node.children.get(segment);
+                if (child == null) {
+                    return null;
+                }
+                node = child;
+                start = end;
+            }
+            return node.subscriptions;
+        }
+
+        boolean isEmpty() {
+            if (!subscriptions.isEmpty()) {
+                return false;
+            }
+            for (TrieNode child : children.values()) {
+                if (!child.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public class Subscription {
+        private final String eventType;
+        private final String typePrefix;
+        private final String roomId;
+        private final String sender;
+        private final RoomEventCallback callback;
+
+        private Subscription(String eventType, String typePrefix, String roomId, String sender,
+                RoomEventCallback callback) {
+            this.eventType = eventType;
+            this.typePrefix = typePrefix;
+            this.roomId = roomId;
+            this.sender = sender;
+            this.callback = callback;
+        }
+
+        private void register() {
+            if (roomId != null) {
+                add(byRoom, roomId);
+            } else if (sender != null) {
+                add(bySender, sender);
+            } else if (eventType != null) {
+                add(byType, eventType);
+            } else if (typePrefix != null) {
+                globs.find(typePrefix, true).add(this);
+            } else {
+                unfiltered.add(this);
+            }
+        }
+
+        private void add(ConcurrentHashMap<String, Set<Subscription>> index, String key) {
+            index.compute(key, (k, subscriptions) -> {
+                if (subscriptions == null) {
+                    subscriptions = new CopyOnWriteArraySet<>();
+                }
+                subscriptions.add(this);
+                return subscriptions;
+            });
+        }
+
+        boolean matches(RoomEvent event) {
+            if (roomId != null && !roomId.equals(event.getRoom_id())) {
+                return false;
+            }
+            if (sender != null && !sender.equals(event.getSender())) {
+                return false;
+            }
+            String type = event.getType();
+            if (eventType != null && !eventType.equals(type)) {
+                return false;
+            }
+            return typePrefix == null || (type != null && type.startsWith(typePrefix));
+        }
+
+        /**
+         * Stop receiving events.
+         */
+        public void cancel() {
+            if (roomId != null) {
+                remove(byRoom, roomId);
+            } else if (sender != null) {
+                remove(bySender, sender);
+            } else if (eventType != null) {
+                remove(byType, eventType);
+            } else if (typePrefix != null) {
+                Set<Subscription> subscriptions = globs.find(typePrefix, false);
+                if (subscriptions != null) {
+                    subscriptions.remove(this);
+                }
+            } else {
+                unfiltered.remove(this);
+            }
+        }
+
+        private void remove(ConcurrentHashMap<String, Set<Subscription>> index, String key) {
+            index.computeIfPresent(key, (k, subscriptions) -> {
+                subscriptions.remove(this);
+                return subscriptions.isEmpty() ? null : subscriptions;
+            });
+        }
+    }
+}
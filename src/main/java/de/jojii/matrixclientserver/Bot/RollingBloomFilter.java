@@ -0,0 +1,176 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of fixed size which forgets old entries. It holds two
+ * generations, each sized for a number of insertions. When the current
+ * generation is full, the previous one is discarded and a new one started, so
+ * an entry is remembered for at least one and at most two generations.
+ * <p>
+ * {@link #mightContain(String)} never misses a remembered entry, but may
+ * report an entry never added with the configured false positive probability
+ * per generation.
+ */
+public class RollingBloomFilter {
+
+    private static final int MAGIC = 0x52424631;
+
+    private final int capacity;
+    private final int numBits;
+    private final int numHashes;
+    private long[] current;
+    private long[] previous;
+    private int insertions;
+
+    /**
+     * @param capacity                 insertions per generation
+     * @param falsePositiveProbability wanted false positive probability of one
+     *                                 full generation
+     */
+    public RollingBloomFilter(int capacity, double falsePositiveProbability) {
+        if (capacity <= 0 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("invalid capacity or false positive probability");
+        }
+        this.capacity = capacity;
+        double bits = -capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+        this.numBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(bits)));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+        this.current = new long[(numBits + 63) / 64];
+        this.previous = new long[current.length];
+    }
+
+    public synchronized boolean mightContain(String value) {
+        long hash = hash(value);
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    public synchronized void put(String value) {
+        long hash = hash(value);
+        if (contains(current, hash)) {
+            return;
+        }
+        if (insertions >= capacity) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+            previous = current;
+            current = recycled;
+            insertions = 0;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            current[bit >>> 6] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    /**
+     * @return bytes held by both generations, independent of the insertions
+     */
+    public long getSizeInBytes() {
+        return current.length * 16L;
+    }
+
+    private boolean contains(long[] bits, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a over the UTF-8 bytes with a final avalanche, both halves are
+     * used for double hashing.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Write the filter to a file, replacing it atomically.
+     */
+    public synchronized void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+            data.writeInt(MAGIC);
+            data.writeInt(capacity);
+            data.writeInt(numBits);
+            data.writeInt(numHashes);
+            data.writeInt(insertions);
+            for (long word : current) {
+                data.writeLong(word);
+            }
+            for (long word : previous) {
+                data.writeLong(word);
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read a filter written by {@link #save(Path)}. A missing file, or one
+     * written with other parameters, gives an empty filter.
+     */
+    public static RollingBloomFilter load(Path file, int capacity, double falsePositiveProbability)
+            throws IOException {
+        RollingBloomFilter filter = new RollingBloomFilter(capacity, falsePositiveProbability);
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != MAGIC || data.readInt() != filter.capacity || data.readInt() != filter.numBits
+                    || data.readInt() != filter.numHashes) {
+                return filter;
+            }
+            int insertions = data.readInt();
+            long[] current = new long[filter.current.length];
+            long[] previous = new long[filter.previous.length];
+            for (int i = 0; i < current.length; i++) {
+                current[i] = data.readLong();
+            }
+            for (int i = 0; i < previous.length; i++) {
+                previous[i] = data.readLong();
+            }
+            filter.insertions = insertions;
+            filter.current = current;
+            filter.previous = previous;
+        } catch (NoSuchFileException | EOFException e) {
+            // nothing or a truncated file saved, start empty
+        }
+        return filter;
+    }
+}
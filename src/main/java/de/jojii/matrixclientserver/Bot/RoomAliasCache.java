@@ -0,0 +1,228 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+/**
+ * Caches resolved room aliases for a time to live. Unknown aliases are cached
+ * as well, usually for a shorter time. Concurrent lookups of the same alias
+ * share one request.
+ * <p>
+ * A <code>m.room.canonical_alias</code> event seen in the sync removes the
+ * aliases it names and all aliases cached for its room, so a moved alias is
+ * resolved again.
+ */
+public class RoomAliasCache {
+
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL = 30 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public interface Resolver {
+        /**
+         * @return the room id or <code>null</code> if the alias is unknown
+         * @throws IOException if the alias could not be resolved, not cached
+         */
+        String resolve(String alias) throws IOException;
+    }
+
+    private static class Entry {
+        final String roomId;
+        final long expires;
+
+        Entry(String roomId, long expires) {
+            this.roomId = roomId;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    public RoomAliasCache() {
+        this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttl         milliseconds a resolved alias is kept
+     * @param negativeTtl milliseconds an unknown alias is kept, 0 to not cache
+     *                    unknown aliases
+     * @param maxEntries  aliases kept at most
+     */
+    public RoomAliasCache(long ttl, long negativeTtl, int maxEntries) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cached room id, or the one returned by the resolver which is
+     *         then cached. <code>null</code> if the alias is unknown.
+     */
+    public String resolve(String alias, Resolver resolver) throws IOException {
+        Entry entry = entries.get(alias);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            if (entry.roomId != null) {
+                hits.incrementAndGet();
+            } else {
+                negativeHits.incrementAndGet();
+            }
+            return entry.roomId;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> running = loading.putIfAbsent(alias, future);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            loads.incrementAndGet();
+            String roomId = resolver.resolve(alias);
+            put(alias, roomId);
+            future.complete(roomId);
+            return roomId;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(alias, future);
+        }
+    }
+
+    private void put(String alias, String roomId) {
+        long keep = roomId != null ? ttl : negativeTtl;
+        if (keep <= 0) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            removeExpired();
+            if (entries.size() >= maxEntries) {
+                // still full, make room by dropping an arbitrary entry
+                Iterator<String> it = entries.keySet().iterator();
+                if (it.hasNext()) {
+                    entries.remove(it.next());
+                }
+            }
+        }
+        entries.put(alias, new Entry(roomId, System.currentTimeMillis() + keep));
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expires <= now);
+    }
+
+    public void invalidate(String alias) {
+        entries.remove(alias);
+    }
+
+    /**
+     * Forget the aliases named by <code>m.room.canonical_alias</code> events and
+     * all aliases cached for their room.
+     */
+    public void onRoomEvents(String roomId, List<RoomEvent> roomEvents) {
+        for (RoomEvent event : roomEvents) {
+            if (!"m.room.canonical_alias".equals(event.getType())) {
+                continue;
+            }
+            JSONObject content = event.getContent();
+            if (content != null) {
+                String alias = content.optString("alias", null);
+                if (alias != null) {
+                    invalidate(alias);
+                }
+                JSONArray altAliases = content.optJSONArray("alt_aliases");
+                if (altAliases != null) {
+                    for (int i = 0; i < altAliases.length(); i++) {
+                        invalidate(altAliases.optString(i));
+                    }
+                }
+            }
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+                if (roomId.equals(it.next().getValue().roomId)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for alias lookup");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return lookups answered with a cached room id
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return lookups answered with a cached unknown alias
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return lookups not answered from the cache, including those waiting for
+     *         another caller's request
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return requests sent to the server
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return share of lookups answered from the cache, positive or negative
+     */
+    public double getHitRate() {
+        long answered = hits.get() + negativeHits.get();
+        long total = answered + misses.get();
+        return total == 0 ? 0 : (double) answered / total;
+    }
+}
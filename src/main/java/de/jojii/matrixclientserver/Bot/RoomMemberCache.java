@@ -0,0 +1,234 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+/**
+ * Keeps the joined members of rooms in memory. A room is loaded once from
+ * <code>/joined_members</code> and then kept current from the
+ * <code>m.room.member</code> state events of the sync. Updates arriving while
+ * a room is being loaded are applied after the loaded members.
+ * <p>
+ * Rooms not looked up for a while are evicted, as are the least recently used
+ * rooms when more than the maximum are cached.
+ */
+public class RoomMemberCache {
+
+    public static final int DEFAULT_MAX_ROOMS = 1000;
+    public static final long DEFAULT_EXPIRE_AFTER_ACCESS = 60 * 60 * 1000;
+
+    private final int maxRooms;
+    private final long expireAfterAccess;
+    private final ConcurrentHashMap<String, RoomMembers> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RoomMemberCache() {
+        this(DEFAULT_MAX_ROOMS, DEFAULT_EXPIRE_AFTER_ACCESS);
+    }
+
+    /**
+     * @param maxRooms          rooms kept at most
+     * @param expireAfterAccess milliseconds after the last lookup a room is
+     *                          evicted, 0 to keep rooms until they are the least
+     *                          recently used
+     */
+    public RoomMemberCache(int maxRooms, long expireAfterAccess) {
+        this.maxRooms = maxRooms;
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * @return the joined members or <code>null</code> if the room is not loaded
+     */
+    public List<Member> getMembers(String roomId) {
+        RoomMembers room = lookup(roomId);
+        return room != null ? room.list() : null;
+    }
+
+    /**
+     * @return the member or <code>null</code> if the user did not join the room
+     *         or the room is not loaded
+     */
+    public Member getMember(String roomId, String userId) {
+        RoomMembers room = lookup(roomId);
+        return room != null ? room.get(userId) : null;
+    }
+
+    public boolean isLoaded(String roomId) {
+        RoomMembers room = rooms.get(roomId);
+        return room != null && room.isLoaded();
+    }
+
+    private RoomMembers lookup(String roomId) {
+        RoomMembers room = rooms.get(roomId);
+        if (room == null || !room.isLoaded() || isExpired(room, System.currentTimeMillis())) {
+            misses.incrementAndGet();
+            return null;
+        }
+        room.lastAccess = System.currentTimeMillis();
+        hits.incrementAndGet();
+        return room;
+    }
+
+    /**
+     * Start recording member updates of a room before requesting its members. An
+     * expired room is replaced, its members are stale.
+     */
+    public void beginLoad(String roomId) {
+        long now = System.currentTimeMillis();
+        boolean[] added = new boolean[1];
+        rooms.compute(roomId, (k, room) -> {
+            if (room != null && !isExpired(room, now)) {
+                return room;
+            }
+            added[0] = true;
+            return new RoomMembers();
+        });
+        if (added[0]) {
+            evict(roomId);
+        }
+    }
+
+    /**
+     * Set the members of a room as answered by <code>/joined_members</code>.
+     */
+    public void load(String roomId, List<Member> members) {
+        RoomMembers room = rooms.computeIfAbsent(roomId, k -> new RoomMembers());
+        room.load(members);
+        room.lastAccess = System.currentTimeMillis();
+        evict(roomId);
+    }
+
+    /**
+     * Forget a room, e.g. after loading it failed.
+     */
+    public void invalidate(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    /**
+     * Apply the <code>m.room.member</code> events of a room. Rooms not cached
+     * are ignored.
+     */
+    public void onRoomEvents(String roomId, List<RoomEvent> roomEvents) {
+        RoomMembers room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        for (RoomEvent event : roomEvents) {
+            if ("m.room.member".equals(event.getType())) {
+                room.update(event);
+            }
+        }
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private boolean isExpired(RoomMembers room, long now) {
+        return expireAfterAccess > 0 && now - room.lastAccess > expireAfterAccess;
+    }
+
+    /**
+     * @param keep the room just added, never evicted
+     */
+    private void evict(String keep) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, RoomMembers>> it = rooms.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RoomMembers> entry = it.next();
+            if (!entry.getKey().equals(keep) && isExpired(entry.getValue(), now)) {
+                it.remove();
+            }
+        }
+        while (rooms.size() > maxRooms) {
+            String eldest = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, RoomMembers> entry : rooms.entrySet()) {
+                if (!entry.getKey().equals(keep) && entry.getValue().lastAccess < eldestAccess) {
+                    eldestAccess = entry.getValue().lastAccess;
+                    eldest = entry.getKey();
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            rooms.remove(eldest);
+        }
+    }
+
+    private static class RoomMembers {
+        private final Map<String, Member> members = new LinkedHashMap<>();
+        private List<RoomEvent> pending = new ArrayList<>();
+        volatile long lastAccess = System.currentTimeMillis();
+
+        synchronized boolean isLoaded() {
+            return pending == null;
+        }
+
+        synchronized void load(List<Member> loaded) {
+            members.clear();
+            for (Member member : loaded) {
+                members.put(member.getId(), member);
+            }
+            List<RoomEvent> updates = pending;
+            pending = null;
+            if (updates != null) {
+                for (RoomEvent event : updates) {
+                    apply(event);
+                }
+            }
+        }
+
+        synchronized void update(RoomEvent event) {
+            if (pending != null) {
+                pending.add(event);
+            } else {
+                apply(event);
+            }
+        }
+
+        private void apply(RoomEvent event) {
+            JSONObject raw = event.getRaw();
+            String userId = raw != null ? raw.optString("state_key", null) : null;
+            JSONObject content = event.getContent();
+            if (userId == null || content == null) {
+                return;
+            }
+            if ("join".equals(content.optString("membership"))) {
+                members.put(userId, new Member(userId, content.optString("displayname", userId),
+                        content.optString("avatar_url", "")));
+            } else {
+                members.remove(userId);
+            }
+        }
+
+        synchronized List<Member> list() {
+            return new ArrayList<>(members.values());
+        }
+
+        synchronized Member get(String userId) {
+            return members.get(userId);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+
+/**
+ * Sends room events in order per room, with rooms running in parallel. A send
+ * failing for a transient reason (network error, rate limit, server error) is
+ * retried with the same transaction id, which the server treats as the same
+ * send, so a retry never duplicates an event. Later events of the room wait
+ * until the retried one succeeded or gave up.
+ * <p>
+ * Sends only run on the executor. A room handed to a saturated executor that
+ * runs rejected tasks on the submitting thread, like
+ * {@link de.jojii.matrixclientserver.Networking.HttpExecutor#bounded(int, int)},
+ * is handed over again a little later instead of sending on the caller. The
+ * handover from the retry timer runs wherever the executor puts it, so an
+ * executor running every task on the caller still sends.
+ */
+public class SendQueue {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long RESUBMIT_DELAY = 10;
+
+    public interface Sender {
+        /**
+         * PUT the event to <code>/rooms/{roomId}/send/{eventType}/{txnId}</code>.
+         *
+         * @return the response body
+         */
+        String send(String roomId, String eventType, String txnId, JSONObject content) throws IOException;
+    }
+
+    private static volatile ScheduledExecutorService retryTimer;
+    private static final ThreadLocal<Boolean> enqueuing = new ThreadLocal<>();
+
+    private final Sender sender;
+    private final Executor executor;
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final ConcurrentHashMap<String, RoomLane> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SendQueue(Sender sender, Executor executor) {
+        this(sender, executor, DEFAULT_MAX_ATTEMPTS, SyncBackoff.DEFAULT_INITIAL_DELAY, SyncBackoff.DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param executor     runs the sends, one task per room at a time
+     * @param maxAttempts  attempts per event before giving up
+     * @param initialDelay milliseconds to wait after the first failure
+     * @param maxDelay     upper bound of the wait between two attempts
+     */
+    public SendQueue(Sender sender, Executor executor, int maxAttempts, long initialDelay, long maxDelay) {
+        this.sender = sender;
+        this.executor = executor;
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Queue an event behind the events queued before for the same room.
+     *
+     * @return completed with the response body, or exceptionally with the last
+     *         failure
+     */
+    public CompletableFuture<String> enqueue(String roomId, String eventType, String txnId, JSONObject content) {
+        Send send = new Send(roomId, eventType, txnId, content);
+        pending.incrementAndGet();
+        while (true) {
+            RoomLane lane = rooms.computeIfAbsent(roomId, RoomLane::new);
+            boolean start;
+            synchronized (lane) {
+                if (lane.retired) {
+                    continue;
+                }
+                lane.queue.addLast(send);
+                start = !lane.active;
+                lane.active = true;
+            }
+            if (start) {
+                enqueuing.set(Boolean.TRUE);
+                try {
+                    submit(lane);
+                } finally {
+                    enqueuing.remove();
+                }
+            }
+            return send.result;
+        }
+    }
+
+    /**
+     * Hand the lane to the executor. Run inside {@link #enqueue}, on the thread
+     * queueing the event, it is handed over again after {@value #RESUBMIT_DELAY}
+     * ms from the retry timer.
+     */
+    private void submit(RoomLane lane) {
+        try {
+            executor.execute(() -> {
+                if (enqueuing.get() != null) {
+                    retryTimer().schedule(() -> submit(lane), RESUBMIT_DELAY, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                lane.run();
+            });
+        } catch (RejectedExecutionException e) {
+            lane.fail(e);
+        }
+    }
+
+    /**
+     * @return events queued or being sent
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return events given up on
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    static boolean isTransient(IOException failure) {
+        if (failure instanceof HttpStatusException) {
+            int status = ((HttpStatusException) failure).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return true;
+    }
+
+    private static ScheduledExecutorService retryTimer() {
+        if (retryTimer == null) {
+            synchronized (SendQueue.class) {
+                if (retryTimer == null) {
+                    retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "matrix-send-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return retryTimer;
+    }
+
+    private class Send {
+        final String roomId;
+        final String eventType;
+        final String txnId;
+        final JSONObject content;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final SyncBackoff backoff = new SyncBackoff(initialDelay, maxDelay);
+        int attempts;
+
+        Send(String roomId, String eventType, String txnId, JSONObject content) {
+            this.roomId = roomId;
+            this.eventType = eventType;
+            this.txnId = txnId;
+            this.content = content;
+        }
+    }
+
+    private class RoomLane implements Runnable {
+        final String roomId;
+        final ArrayDeque<Send> queue = new ArrayDeque<>();
+        boolean active;
+        boolean retired;
+
+        RoomLane(String roomId) {
+            this.roomId = roomId;
+        }
+
+        /**
+         * Send the queued events until the queue is empty or the head has to wait
+         * for a retry.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Send send;
+                synchronized (this) {
+                    send = queue.peekFirst();
+                    if (send == null) {
+                        active = false;
+                        retired = true;
+                        rooms.remove(roomId, this);
+                        return;
+                    }
+                }
+                send.attempts++;
+                try {
+                    String response = sender.send(send.roomId, send.eventType, send.txnId, send.content);
+                    done(send);
+                    sent.incrementAndGet();
+                    send.result.complete(response);
+                } catch (IOException e) {
+                    if (isTransient(e) && send.attempts < maxAttempts) {
+                        retries.incrementAndGet();
+                        long delay = send.backoff.onFailure(e);
+                        retryTimer().schedule(() -> submit(this), delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    done(send);
+                    failed.incrementAndGet();
+                    send.result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    done(send);
+                    failed.incrementAndGet();
+                    send.result.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Give up on all queued events, the executor does not take any more tasks.
+         */
+        void fail(RejectedExecutionException failure) {
+            List<Send> sends;
+            synchronized (this) {
+                sends = new ArrayList<>(queue);
+                queue.clear();
+                active = false;
+                retired = true;
+                rooms.remove(roomId, this);
+            }
+            for (Send send : sends) {
+                pending.decrementAndGet();
+                failed.incrementAndGet();
+                send.result.completeExceptionally(failure);
+            }
+        }
+
+        private void done(Send send) {
+            synchronized (this) {
+                queue.pollFirst();
+            }
+            pending.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+
+/**
+ * Decides how long the sync loop waits before the next poll. A successful poll
+ * is followed immediately by the next one. After failures the delay grows
+ * exponentially with jitter, and a <code>M_LIMIT_EXCEEDED</code> answer is
+ * retried after the <code>retry_after_ms</code> given by the server.
+ */
+public class SyncBackoff {
+
+    public static final long DEFAULT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private int consecutiveFailures;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong backoffTime = new AtomicLong();
+
+    public SyncBackoff() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param initialDelay milliseconds to wait after the first failure
+     * @param maxDelay     upper bound of the delay between two failed polls
+     */
+    public SyncBackoff(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * @param failure what made the poll fail
+     * @return milliseconds to wait before polling again
+     */
+    public synchronized long onFailure(Exception failure) {
+        retries.incrementAndGet();
+        long delay;
+        long retryAfter = retryAfter(failure);
+        if (retryAfter >= 0) {
+            rateLimited.incrementAndGet();
+            delay = retryAfter;
+        } else {
+            int exponent = Math.min(consecutiveFailures, 30);
+            long ceiling = Math.min(maxDelay, initialDelay << exponent);
+            // equal jitter: at least half of the ceiling, so the delay keeps growing
+            delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        }
+        consecutiveFailures++;
+        backoffTime.addAndGet(delay);
+        return delay;
+    }
+
+    /**
+     * @return the <code>retry_after_ms</code> of a rate limited answer, or
+     *         <code>-1</code>
+     */
+    static long retryAfter(Exception failure) {
+        if (!(failure instanceof HttpStatusException)) {
+            return -1;
+        }
+        HttpStatusException statusException = (HttpStatusException) failure;
+        if (statusException.getStatusCode() != 429) {
+            return -1;
+        }
+        try {
+            JSONObject error = new JSONObject(statusException.getBody());
+            return error.optLong("retry_after_ms", -1);
+        } catch (JSONException e) {
+            return -1;
+        }
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return number of failed polls which were retried
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of polls answered with <code>M_LIMIT_EXCEEDED</code>
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    /**
+     * @return total milliseconds spent waiting after failures
+     */
+    public long getBackoffTime() {
+        return backoffTime.get();
+    }
+}
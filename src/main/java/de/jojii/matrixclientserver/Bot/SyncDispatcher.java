@@ -0,0 +1,392 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.json.JSONObject;
+
+import de.jojii.matrixclientserver.Bot.Events.LazyRoomEvent;
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+/**
+ * Decouples the sync loop from the event listeners. Events are queued per room
+ * and delivered by a fixed number of worker lanes. All events of one room go
+ * through the same lane, so they stay in order, while different rooms are
+ * processed in parallel.
+ * <p>
+ * A lane holds a bounded number of room batches. What happens when it is full
+ * is decided by the {@link OverflowPolicy}. Events still queued when the
+ * process dies are lost, their sync token has already been stored.
+ */
+public class SyncDispatcher implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * Wait for the lane to have space, which slows down the sync loop.
+         */
+        BLOCK,
+        /**
+         * Discard the new batch.
+         */
+        DROP,
+        /**
+         * Append the batch to a file and deliver it once the lane caught up.
+         */
+        SPILL
+    }
+
+    public static final int DEFAULT_LANE_CAPACITY = 256;
+
+    private final Lane[] lanes;
+    private final OverflowPolicy overflowPolicy;
+    private final Path spillDirectory;
+    private volatile boolean closed;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * One lane per processor, blocking when a lane is full.
+     */
+    public SyncDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_LANE_CAPACITY, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * @param lanes          number of worker threads
+     * @param laneCapacity   room batches a lane holds in memory
+     * @param overflowPolicy what to do with batches for a full lane
+     * @param spillDirectory where to put the spill files for
+     *                       {@link OverflowPolicy#SPILL}, <code>null</code> for
+     *                       the temp directory
+     */
+    public SyncDispatcher(int lanes, int laneCapacity, OverflowPolicy overflowPolicy, Path spillDirectory) {
+        this.overflowPolicy = overflowPolicy;
+        this.spillDirectory = spillDirectory;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(laneCapacity);
+            Thread thread = new Thread(this.lanes[i], "matrix-dispatch-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue the events of a room. Once the dispatcher is closed, the events are
+     * delivered on the calling thread, so a sync loop still running keeps
+     * delivering.
+     *
+     * @param delivery called on a lane thread with the events
+     * @throws InterruptedIOException if interrupted waiting for a full lane
+     */
+    public void dispatch(String roomId, List<RoomEvent> roomEvents, Consumer<List<RoomEvent>> delivery)
+            throws InterruptedIOException {
+        Lane lane = lanes[(roomId.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        if (closed || !lane.offer(new Batch(roomId, roomEvents, delivery, System.nanoTime()))) {
+            delivery.accept(roomEvents);
+            delivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop the lanes after they delivered the batches held in memory. Spilled
+     * batches are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.close();
+        }
+    }
+
+    /**
+     * @return room batches waiting for delivery, including spilled ones
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.depth();
+        }
+        return depth;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * @return milliseconds the last delivered batch waited in the queue
+     */
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    /**
+     * @return the longest milliseconds a batch waited in the queue
+     */
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    private static class Batch {
+        final String roomId;
+        final List<RoomEvent> roomEvents;
+        final Consumer<List<RoomEvent>> delivery;
+        final long queuedAt;
+
+        Batch(String roomId, List<RoomEvent> roomEvents, Consumer<List<RoomEvent>> delivery, long queuedAt) {
+            this.roomId = roomId;
+            this.roomEvents = roomEvents;
+            this.delivery = delivery;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+        private final int capacity;
+        private SpillFile spill;
+        private boolean laneClosed;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return <code>false</code> if the lane is closed
+         */
+        synchronized boolean offer(Batch batch) throws InterruptedIOException {
+            if (laneClosed) {
+                return false;
+            }
+            if (spill != null) {
+                // keep the order: once spilling, everything goes to the file until it is drained
+                spill(batch);
+                return true;
+            }
+            while (queue.size() >= capacity) {
+                if (laneClosed) {
+                    return false;
+                }
+                switch (overflowPolicy) {
+                    case DROP:
+                        dropped.incrementAndGet();
+                        return true;
+                    case SPILL:
+                        spill(batch);
+                        return true;
+                    default:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("interrupted waiting for dispatch lane");
+                        }
+                }
+            }
+            queue.addLast(batch);
+            notifyAll();
+            return true;
+        }
+
+        private void spill(Batch batch) {
+            try {
+                if (spill == null) {
+                    spill = new SpillFile(spillDirectory);
+                }
+                spill.append(batch);
+                spilled.incrementAndGet();
+                notifyAll();
+            } catch (IOException e) {
+                e.printStackTrace();
+                dropped.incrementAndGet();
+            }
+        }
+
+        Batch take() {
+            while (true) {
+                SpillFile spill;
+                Consumer<List<RoomEvent>> delivery;
+                synchronized (this) {
+                    while (queue.isEmpty() && this.spill == null) {
+                        if (laneClosed) {
+                            return null;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return null;
+                        }
+                    }
+                    Batch batch = queue.pollFirst();
+                    if (batch != null) {
+                        notifyAll();
+                        return batch;
+                    }
+                    spill = this.spill;
+                    if (spill.isEmpty()) {
+                        spill.delete();
+                        this.spill = null;
+                        continue;
+                    }
+                    delivery = spill.take();
+                }
+                // only this thread reads, the sync loop appends to the file meanwhile
+                Batch batch;
+                try {
+                    batch = spill.read(delivery);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        // a spill deleted by close() fails as well, its batches are discarded
+                        if (this.spill == spill) {
+                            e.printStackTrace();
+                            dropped.addAndGet(spill.pending + 1);
+                            spill.delete();
+                            this.spill = null;
+                        }
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    if (this.spill == spill && spill.isEmpty()) {
+                        spill.delete();
+                        this.spill = null;
+                    }
+                }
+                return batch;
+            }
+        }
+
+        synchronized int depth() {
+            return queue.size() + (spill != null ? spill.pending : 0);
+        }
+
+        synchronized void close() {
+            laneClosed = true;
+            if (spill != null) {
+                spill.delete();
+                spill = null;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            Batch batch;
+            while ((batch = take()) != null) {
+                long lag = (System.nanoTime() - batch.queuedAt) / 1000000;
+                lastLag.set(lag);
+                maxLag.accumulateAndGet(lag, Math::max);
+                try {
+                    batch.delivery.accept(batch.roomEvents);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                delivered.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Batches written as lines: a header with room id, queue time and event count,
+     * followed by one json line per event.
+     */
+    private static class SpillFile {
+        private final Path file;
+        private final BufferedWriter writer;
+        private BufferedReader reader;
+        private final ArrayDeque<Consumer<List<RoomEvent>>> deliveries = new ArrayDeque<>();
+        private int pending;
+
+        SpillFile(Path directory) throws IOException {
+            file = directory != null
+                    ? Files.createTempFile(Files.createDirectories(directory), "dispatch", ".spill")
+                    : Files.createTempFile("dispatch", ".spill");
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        }
+
+        void append(Batch batch) throws IOException {
+            JSONObject header = new JSONObject();
+            header.put("room_id", batch.roomId);
+            header.put("queued_at", batch.queuedAt);
+            header.put("count", batch.roomEvents.size());
+            header.put("lazy", !batch.roomEvents.isEmpty() && batch.roomEvents.get(0) instanceof LazyRoomEvent);
+            writer.write(header.toString());
+            writer.newLine();
+            for (RoomEvent event : batch.roomEvents) {
+                writer.write(event instanceof LazyRoomEvent ? ((LazyRoomEvent) event).getJson() : event.getRaw().toString());
+                writer.newLine();
+            }
+            writer.flush();
+            deliveries.addLast(batch.delivery);
+            pending++;
+        }
+
+        /**
+         * Take the next batch out of the count, before reading it with
+         * {@link #read(Consumer)}.
+         *
+         * @return its delivery
+         */
+        Consumer<List<RoomEvent>> take() {
+            pending--;
+            return deliveries.pollFirst();
+        }
+
+        Batch read(Consumer<List<RoomEvent>> delivery) throws IOException {
+            if (reader == null) {
+                reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            }
+            JSONObject header = new JSONObject(reader.readLine());
+            String roomId = header.getString("room_id");
+            boolean lazy = header.getBoolean("lazy");
+            int count = header.getInt("count");
+            List<RoomEvent> roomEvents = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String line = reader.readLine();
+                roomEvents.add(lazy ? new LazyRoomEvent(line, roomId) : RoomEvent.fetchRoomEvent(new JSONObject(line), roomId));
+            }
+            return new Batch(roomId, roomEvents, delivery, header.getLong("queued_at"));
+        }
+
+        boolean isEmpty() {
+            return pending == 0;
+        }
+
+        void delete() {
+            try {
+                writer.close();
+                if (reader != null) {
+                    reader.close();
+                }
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The filter the sync loop uploads before its first poll. The defaults give
+ * the filter the client always used: room state of <code>m.room.*</code>,
+ * presence, and only the event fields the client reads.
+ * <p>
+ * The server answers with a filter id, which the sync loop keeps under the
+ * {@link #getHash() hash} of the filter, so a restart with the same filter
+ * skips the upload.
+ */
+public class SyncFilter {
+
+    private List<String> stateTypes = Arrays.asList("m.room.*");
+    private List<String> eventFields = Arrays.asList("type", "content", "sender", "room_id", "event_id", "state_key");
+    private boolean presence = true;
+    private boolean lazyLoadMembers;
+    private int timelineLimit = -1;
+
+    /**
+     * @param stateTypes room state event types to sync, <code>*</code> globs
+     *                   allowed, <code>null</code> for all
+     */
+    public SyncFilter setStateTypes(String... stateTypes) {
+        this.stateTypes = stateTypes != null ? Arrays.asList(stateTypes) : null;
+        return this;
+    }
+
+    /**
+     * @param eventFields fields of the events to sync, <code>null</code> for all
+     */
+    public SyncFilter setEventFields(String... eventFields) {
+        this.eventFields = eventFields != null ? Arrays.asList(eventFields) : null;
+        return this;
+    }
+
+    public SyncFilter setPresence(boolean presence) {
+        this.presence = presence;
+        return this;
+    }
+
+    /**
+     * Only sync the member events of senders in the synced timeline instead of
+     * all members of a room. Saves most of the payload in large rooms.
+     */
+    public SyncFilter setLazyLoadMembers(boolean lazyLoadMembers) {
+        this.lazyLoadMembers = lazyLoadMembers;
+        return this;
+    }
+
+    /**
+     * @param timelineLimit timeline events per room and sync, <code>-1</code> for
+     *                      the server default
+     */
+    public SyncFilter setTimelineLimit(int timelineLimit) {
+        this.timelineLimit = timelineLimit;
+        return this;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject room = new JSONObject();
+        JSONObject state = new JSONObject();
+        if (stateTypes != null) {
+            state.put("types", new JSONArray(stateTypes));
+        }
+        if (lazyLoadMembers) {
+            state.put("lazy_load_members", true);
+        }
+        room.put("state", state);
+        if (lazyLoadMembers || timelineLimit >= 0) {
+            JSONObject timeline = new JSONObject();
+            if (lazyLoadMembers) {
+                timeline.put("lazy_load_members", true);
+            }
+            if (timelineLimit >= 0) {
+                timeline.put("limit", timelineLimit);
+            }
+            room.put("timeline", timeline);
+        }
+        JSONObject filter = new JSONObject();
+        filter.put("room", room);
+        filter.put("presence", new JSONObject().put("types",
+                presence ? new JSONArray().put("m.presence") : new JSONArray()));
+        if (eventFields != null) {
+            filter.put("event_fields", new JSONArray(eventFields));
+        }
+        return filter;
+    }
+
+    /**
+     * @return hex SHA-256 of the filter with its keys sorted, equal for equal
+     *         filters
+     */
+    public String getHash() {
+        StringBuilder canonical = new StringBuilder();
+        appendCanonical(canonical, toJSON());
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendCanonical(StringBuilder out, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            out.append('{');
+            List<String> keys = new ArrayList<>(new TreeSet<>(object.keySet()));
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(JSONObject.quote(keys.get(i))).append(':');
+                appendCanonical(out, object.get(keys.get(i)));
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendCanonical(out, array.get(i));
+            }
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else {
+            out.append(value);
+        }
+    }
+
+    public List<String> getStateTypes() {
+        return stateTypes != null ? Collections.unmodifiableList(stateTypes) : null;
+    }
+
+    public List<String> getEventFields() {
+        return eventFields != null ? Collections.unmodifiableList(eventFields) : null;
+    }
+
+    public boolean isPresence() {
+        return presence;
+    }
+
+    public boolean isLazyLoadMembers() {
+        return lazyLoadMembers;
+    }
+
+    public int getTimelineLimit() {
+        return timelineLimit;
+    }
+}
@@ -0,0 +1,169 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the sync loops of many clients on shared threads instead of one
+ * dedicated thread per client. Every poll is a task; after a failure the next
+ * poll is scheduled on a timer, so waiting for the backoff holds no thread.
+ * <p>
+ * A long poll blocks its thread until the server answers. With virtual
+ * threads, used if the runtime supports them, that costs next to nothing. The
+ * fallback is a pool of daemon threads with a small stack, which grows to one
+ * thread per running poll and reuses threads between polls. A pool with fewer
+ * threads than accounts works too, but then the poll timeout has to be short,
+ * or accounts wait for each other.
+ */
+public class SyncScheduler {
+
+    public static final int DEFAULT_POLL_TIMEOUT = 40000;
+
+    /**
+     * Stack size of the fallback pool threads, a poll needs only a few frames
+     * of parsing.
+     */
+    public static final long DEFAULT_STACK_SIZE = 256 * 1024;
+
+    private static volatile SyncScheduler shared;
+
+    private final ExecutorService executor;
+    private final int pollTimeout;
+    private final boolean virtual;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger loops = new AtomicInteger();
+    private final AtomicInteger activePolls = new AtomicInteger();
+    private final AtomicLong polls = new AtomicLong();
+
+    /**
+     * @param executor    runs the polls, its lifecycle stays with the caller
+     * @param pollTimeout milliseconds the server may hold a poll open
+     */
+    public SyncScheduler(ExecutorService executor, int pollTimeout) {
+        this(executor, pollTimeout, false);
+    }
+
+    private SyncScheduler(ExecutorService executor, int pollTimeout, boolean virtual) {
+        this.executor = executor;
+        this.pollTimeout = pollTimeout;
+        this.virtual = virtual;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "matrix-sync-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Virtual threads if the runtime supports them, otherwise a pool of small
+     * stack daemon threads.
+     */
+    public static SyncScheduler create() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new SyncScheduler((ExecutorService) method.invoke(null), DEFAULT_POLL_TIMEOUT, true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread thread = new Thread(null, r, "matrix-sync-" + threadNumber.incrementAndGet(),
+                                DEFAULT_STACK_SIZE);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            return new SyncScheduler(pool, DEFAULT_POLL_TIMEOUT, false);
+        }
+    }
+
+    /**
+     * The scheduler shared by every client that was given none of its own.
+     */
+    public static SyncScheduler shared() {
+        SyncScheduler scheduler = shared;
+        if (scheduler == null) {
+            synchronized (SyncScheduler.class) {
+                scheduler = shared;
+                if (scheduler == null) {
+                    scheduler = create();
+                    shared = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Run one poll of a loop now.
+     */
+    void execute(Runnable poll) {
+        executor.execute(() -> run(poll));
+    }
+
+    /**
+     * Run one poll of a loop after a delay.
+     */
+    void schedule(Runnable poll, long delay) {
+        timer.schedule(() -> execute(poll), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(Runnable poll) {
+        activePolls.incrementAndGet();
+        try {
+            poll.run();
+        } finally {
+            activePolls.decrementAndGet();
+            polls.incrementAndGet();
+        }
+    }
+
+    void loopStarted() {
+        loops.incrementAndGet();
+    }
+
+    void loopStopped() {
+        loops.decrementAndGet();
+    }
+
+    public int getPollTimeout() {
+        return pollTimeout;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return sync loops of clients currently running on this scheduler
+     */
+    public int getLoopCount() {
+        return loops.get();
+    }
+
+    /**
+     * @return polls waiting for the server right now
+     */
+    public int getActivePollCount() {
+        return activePolls.get();
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /**
+     * Stop the executor and the timer. Only use this for schedulers not shared
+     * with other clients.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+}
@@ -1,18 +1,23 @@
 package de.jojii.matrixclientserver.Bot;
 
 import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import de.jojii.matrixclientserver.Bot.Events.SyncStreamParser;
 import de.jojii.matrixclientserver.Callbacks.DataCallback;
 import de.jojii.matrixclientserver.Callbacks.RoomEventsCallback;
 import de.jojii.matrixclientserver.File.FileHelper;
+import de.jojii.matrixclientserver.File.FileSyncTokenStore;
 import de.jojii.matrixclientserver.File.Files;
+import de.jojii.matrixclientserver.File.SyncTokenStore;
+import de.jojii.matrixclientserver.Metrics.MetricsRecorder;
 import de.jojii.matrixclientserver.Networking.HttpHelper;
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Syncee {
 
@@ -20,8 +25,21 @@ public class Syncee {
 
     private Client c;
     private HttpHelper httpHelper;
-    private List<RoomEventsCallback> roomEvents = new ArrayList<>();
-    private String filterID = null;
+    private final List<RoomEventsCallback> roomEvents = new CopyOnWriteArrayList<>();
+    private final ListenerRegistry listenerRegistry = new ListenerRegistry();
+    private volatile String filterID = null;
+    private volatile String filterKey;
+    private volatile SyncFilter filter = new SyncFilter();
+    private volatile boolean lazyRoomEvents;
+    private volatile SyncTokenStore tokenStore = new FileSyncTokenStore(Paths.get("."));
+    private volatile SyncBackoff backoff = new SyncBackoff();
+    private volatile SyncDispatcher dispatcher;
+    private volatile EventDeduplicator deduplicator;
+    private volatile RoomMemberCache memberCache;
+    private volatile RoomAliasCache aliasCache;
+    private volatile SyncScheduler scheduler;
+    private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
+    private int batchEvents;
 
     public Syncee(Client c, HttpHelper httpHelper) {
         this.c = c;
@@ -36,19 +54,186 @@ public class Syncee {
         roomEvents.remove(callback);
     }
 
-    void startSyncee() {
-        if (filterID == null) {
-            requestFilterID(data -> {
-                this.filterID = (String) data;
-                runEventListener(filterID);
-            });
+    void setSyncTokenStore(SyncTokenStore tokenStore) {
+        this.tokenStore = tokenStore;
+    }
+
+    void setBackoff(SyncBackoff backoff) {
+        this.backoff = backoff;
+    }
+
+    SyncBackoff getBackoff() {
+        return backoff;
+    }
+
+    void setLazyRoomEvents(boolean lazyRoomEvents) {
+        this.lazyRoomEvents = lazyRoomEvents;
+    }
+
+    void setDispatcher(SyncDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    void setDeduplicator(EventDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    void setMemberCache(RoomMemberCache memberCache) {
+        this.memberCache = memberCache;
+    }
+
+    void setAliasCache(RoomAliasCache aliasCache) {
+        this.aliasCache = aliasCache;
+    }
+
+    void setFilter(SyncFilter filter) {
+        this.filter = filter;
+    }
+
+    void setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics != null ? metrics : MetricsRecorder.NOOP;
+    }
+
+    void setScheduler(SyncScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    private void dispatch(String roomId, List<RoomEvent> roomEvent) throws IOException {
+        batchEvents += roomEvent.size();
+        EventDeduplicator deduplicator = this.deduplicator;
+        if (deduplicator != null) {
+            roomEvent = deduplicator.filter(roomEvent);
+            if (roomEvent.isEmpty()) {
+                return;
+            }
+        }
+        RoomMemberCache memberCache = this.memberCache;
+        if (memberCache != null) {
+            // updated on the sync thread, so lookups from listeners see the event's membership
+            memberCache.onRoomEvents(roomId, roomEvent);
+        }
+        RoomAliasCache aliasCache = this.aliasCache;
+        if (aliasCache != null) {
+            aliasCache.onRoomEvents(roomId, roomEvent);
+        }
+        SyncDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(roomId, roomEvent, this::deliver);
         } else {
+            deliver(roomEvent);
+        }
+    }
+
+    private final SyncStreamParser.Listener syncListener = new SyncStreamParser.Listener() {
+        @Override
+        public void onRoomEvents(String roomId, List<RoomEvent> roomEvents) throws IOException {
+            dispatch(roomId, roomEvents);
+        }
+
+        @Override
+        public void onAccountData(String type, JSONObject content) {
+            if ("m.direct".equals(type) && content != null) {
+                c.getDirectChatIndex().load(content);
+            }
+        }
+    };
+
+    ListenerRegistry getListenerRegistry() {
+        return listenerRegistry;
+    }
+
+    private void deliver(List<RoomEvent> roomEvent) {
+        for (RoomEventsCallback roomEventsCallback : roomEvents) {
+            if (roomEventsCallback != null) {
+                try {
+                    roomEventsCallback.onEventReceived(roomEvent);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!listenerRegistry.isEmpty()) {
+            for (RoomEvent event : roomEvent) {
+                listenerRegistry.route(event);
+            }
+        }
+    }
+
+    void startSyncee() {
+        String filterKey = getFilterKey();
+        if (filterID != null && filterKey.equals(this.filterKey)) {
             runEventListener(filterID);
+            return;
         }
+        String storedID = null;
+        try {
+            storedID = tokenStore.load(filterKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (storedID != null && !storedID.isEmpty()) {
+            this.filterKey = filterKey;
+            this.filterID = storedID;
+            runEventListener(storedID);
+            return;
+        }
+        uploadFilter(filterKey, false);
+    }
+
+    /**
+     * @param replacing only continue a sync that was not stopped meanwhile
+     */
+    private void uploadFilter(String filterKey, boolean replacing) {
+        requestFilterID(data -> {
+            String filterID = (String) data;
+            try {
+                tokenStore.store(filterKey, filterID);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (replacing && !running) {
+                    return;
+                }
+                this.filterKey = filterKey;
+                this.filterID = filterID;
+                runEventListener(filterID);
+            }
+        });
+    }
+
+    /**
+     * The server rejected a sync with the filter, e.g. a stored id the server
+     * lost or never issued. Forget the id and upload the filter again, the sync
+     * continues with the new id.
+     */
+    private void onFilterRejected(String rejectedID) {
+        String filterKey;
+        synchronized (this) {
+            if (!running || !rejectedID.equals(filterID)) {
+                return;
+            }
+            filterKey = this.filterKey;
+            this.filterID = null;
+        }
+        try {
+            tokenStore.remove(filterKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        uploadFilter(filterKey, true);
+    }
+
+    /**
+     * Filter ids are kept in the token store next to the sync token, per
+     * homeserver, user and filter content.
+     */
+    private String getFilterKey() {
+        return "filter/" + c.getHost() + "/" + c.getLoginData().getUser_id() + "/" + filter.getHash();
     }
 
     private void requestFilterID(DataCallback filterIDResponse) {
-        JSONObject object = new JSONObject("{ \"room\": { \"state\": { \"types\": [ \"m.room.*\" ] } }, \"presence\": { \"types\": [ \"m.presence\" ] }, \"event_fields\": [ \"type\", \"content\", \"sender\", \"room_id\", \"event_id\" ] }");
+        JSONObject object = filter.toJSON();
         try {
             httpHelper.sendRequestAsync(c.getHost(), HttpHelper.URLs.user + c.getLoginData().getUser_id() + "/filter", object, data -> {
                 try {
@@ -70,74 +255,241 @@ public class Syncee {
     }
 
     void stopSyncee() {
-        if (eventListenerThread != null) {
-            eventListenerThread.stop();
+        running = false;
+        // a poll on a scheduler ends with the poll timeout, its thread may serve other clients
+        Thread thread = eventListenerThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            tokenStore.flush();
+            EventDeduplicator deduplicator = this.deduplicator;
+            if (deduplicator != null) {
+                deduplicator.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private Thread eventListenerThread;
+    /**
+     * The sync token is kept per user and device, so clients of different
+     * accounts can share a store.
+     */
+    private String getTokenKey() {
+        LoginData loginData = c.getLoginData();
+        String deviceId = loginData.getDevice_id();
+        return deviceId != null ? loginData.getUser_id() + "/" + deviceId : loginData.getUser_id();
+    }
 
-    private void runEventListener(String filterID) {
-        if (eventListenerThread == null) {
-            eventListenerThread = new Thread(() -> {
-                String baseurl = HttpHelper.URLs.sync + "?access_token=" + c.getLoginData().getAccess_token() + "&filter=" + filterID + "&timeout=" + LONG_POLLING_TIMEOUT;
-                String nextURL = "";
-                try {
-                    if(!new File(Files.sync_next_batch).exists()){
-                        FileHelper.writeFile(Files.sync_next_batch, "");
-                    }
-                    String file_next_batch = FileHelper.readFile(Files.sync_next_batch);
-                    if (file_next_batch.length() > 0) {
-                        nextURL = baseurl + "&since=" + file_next_batch;
+    private volatile Thread eventListenerThread;
+    private volatile SyncLoop syncLoop;
+    private volatile boolean running;
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start polling, unless a loop for the same account and filter is still
+     * running. A loop that was stopped but has not ended its poll yet is taken
+     * over instead of left to end.
+     */
+    private synchronized void runEventListener(String filterID) {
+        running = true;
+        SyncScheduler scheduler = this.scheduler;
+        SyncLoop loop = new SyncLoop(filterID, scheduler != null ? scheduler.getPollTimeout() : LONG_POLLING_TIMEOUT,
+                scheduler == null);
+        SyncLoop current = syncLoop;
+        if (current != null && current.isSameSync(loop)) {
+            return;
+        }
+        // a running loop of another filter or account ends at its next poll
+        syncLoop = loop;
+        if (scheduler != null) {
+            scheduler.loopStarted();
+            scheduler.execute(() -> poll(scheduler, loop));
+            return;
+        }
+        if (eventListenerThread != null) {
+            // the thread picks up the new loop
+            return;
+        }
+        eventListenerThread = new Thread(() -> {
+            SyncLoop threadLoop = loop;
+            while (true) {
+                long delay = syncLoop == threadLoop ? threadLoop.poll() : -1;
+                if (delay < 0) {
+                    synchronized (this) {
+                        if (syncLoop == threadLoop && !running) {
+                            syncLoop = null;
+                        }
+                        if (syncLoop == null) {
+                            eventListenerThread = null;
+                            return;
+                        }
+                        threadLoop = syncLoop;
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                if (nextURL.trim().length() == 0) {
-                    nextURL = baseurl;
-                }
-                while (true) {
+                } else if (delay > 0) {
                     try {
-                        Thread.sleep(200);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        // stopped, or restarted right after; the next poll checks
                     }
+                }
+            }
+        }, "matrix-sync");
 
-                    String data;
+        eventListenerThread.start();
+    }
 
-                    try {
-                        data = httpHelper.sendRequest(c.getHost(), nextURL, null, false, "GET");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        continue;
+    /**
+     * One poll on the scheduler, followed by the next one as a new task.
+     */
+    private void poll(SyncScheduler scheduler, SyncLoop loop) {
+        long delay = syncLoop == loop ? loop.poll() : -1;
+        if (delay < 0) {
+            synchronized (this) {
+                if (syncLoop == loop) {
+                    if (running) {
+                        // restarted while the poll ended
+                        delay = 0;
+                    } else {
+                        syncLoop = null;
                     }
+                }
+            }
+        }
+        if (delay < 0) {
+            scheduler.loopStopped();
+        } else if (delay == 0) {
+            scheduler.execute(() -> poll(scheduler, loop));
+        } else {
+            scheduler.schedule(() -> poll(scheduler, loop), delay);
+        }
+    }
 
-                    if (data != null && data.length() > 0) {
-                        try {
-                            JSONObject syncData = new JSONObject(data);
-                            if (syncData.has("next_batch")) {
-                                String nextBatch = syncData.getString("next_batch");
-                                FileHelper.writeFile(Files.sync_next_batch, nextBatch);
-
-                                List<RoomEvent> roomEvent = RoomEvent.parseAllEvents(syncData);
-                                for (RoomEventsCallback roomEventsCallback : roomEvents) {
-                                    if (roomEventsCallback != null) {
-                                        roomEventsCallback.onEventReceived(roomEvent);
-                                    }
-                                }
-
-                                nextURL = baseurl + "&since=" + nextBatch;
-                            }
-                        } catch (JSONException | IOException ea) {
-                            ea.printStackTrace();
-                            continue;
-                        }
-                    }
+    /**
+     * The server does not know the filter id: <code>M_NOT_FOUND</code>, or an
+     * <code>M_INVALID_PARAM</code> about the filter. Other client errors, like an
+     * expired access token or a bad <code>since</code> token, keep the filter.
+     */
+    private static boolean isFilterRejection(Exception failure) {
+        if (!(failure instanceof HttpStatusException)) {
+            return false;
+        }
+        HttpStatusException statusException = (HttpStatusException) failure;
+        int status = statusException.getStatusCode();
+        if (status != 400 && status != 404) {
+            return false;
+        }
+        JSONObject error;
+        try {
+            error = new JSONObject(statusException.getBody());
+        } catch (JSONException e) {
+            return false;
+        }
+        String errcode = error.optString("errcode");
+        return "M_NOT_FOUND".equals(errcode)
+                || "M_INVALID_PARAM".equals(errcode) && error.optString("error").toLowerCase().contains("filter");
+    }
+
+    private class SyncLoop {
+        private final String filterID;
+        private final String baseurl;
+        private final String tokenKey;
+        private final boolean legacyToken;
+        private String nextURL;
+
+        /**
+         * @param legacyToken fall back to the token file shared by all clients,
+         *                    which only makes sense with one client per process
+         */
+        SyncLoop(String filterID, int timeout, boolean legacyToken) {
+            this.filterID = filterID;
+            this.baseurl = HttpHelper.URLs.sync + "?access_token=" + c.getLoginData().getAccess_token() + "&filter=" + filterID + "&timeout=" + timeout;
+            this.tokenKey = getTokenKey();
+            this.legacyToken = legacyToken;
+        }
+
+        boolean isSameSync(SyncLoop other) {
+            return baseurl.equals(other.baseurl) && tokenKey.equals(other.tokenKey);
+        }
+
+        private void start() {
+            nextURL = baseurl;
+            try {
+                String since = tokenStore.load(tokenKey);
+                if (since == null && legacyToken) {
+                    since = FileHelper.readFile(Files.sync_next_batch).trim();
                 }
-            });
+                if (since != null && since.length() > 0) {
+                    nextURL = baseurl + "&since=" + since;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
-        eventListenerThread.start();
+        /**
+         * @return milliseconds to wait before the next poll, <code>-1</code> to stop
+         */
+        long poll() {
+            try {
+                return pollOnce();
+            } catch (RuntimeException e) {
+                // e.g. from a token store or a dispatcher, retried like a failed request
+                if (!running) {
+                    return -1;
+                }
+                e.printStackTrace();
+                metrics.onSyncFailure(e);
+                return Math.max(1, backoff.onFailure(e));
+            }
+        }
+
+        private long pollOnce() {
+            if (!running) {
+                return -1;
+            }
+            if (nextURL == null) {
+                start();
+            }
+            String nextBatch;
+            MetricsRecorder metrics = Syncee.this.metrics;
+            long start = System.nanoTime();
+            batchEvents = 0;
+            try {
+                nextBatch = httpHelper.sendRequest(c.getHost(), nextURL, null, false, "GET",
+                        reader -> SyncStreamParser.parse(reader, syncListener, lazyRoomEvents));
+            } catch (IOException | JSONException e) {
+                if (!running) {
+                    return -1;
+                }
+                e.printStackTrace();
+                metrics.onSyncFailure(e);
+                if (isFilterRejection(e)) {
+                    onFilterRejected(filterID);
+                }
+                return Math.max(1, backoff.onFailure(e));
+            }
+            backoff.onSuccess();
+            metrics.onSyncIteration(System.nanoTime() - start, batchEvents);
+            SyncDispatcher dispatcher = Syncee.this.dispatcher;
+            if (dispatcher != null) {
+                metrics.onDispatchQueue(dispatcher.getQueueDepth(), dispatcher.getLastLag());
+            }
+
+            if (nextBatch != null) {
+                try {
+                    tokenStore.store(tokenKey, nextBatch);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                nextURL = baseurl + "&since=" + nextBatch;
+            }
+            return 0;
+        }
     }
 
 }
@@ -0,0 +1,35 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates transaction ids for sending events. The server deduplicates sends
+ * with the same id per device, so ids must never repeat: each generator has a
+ * prefix made of its creation time and a random part, followed by a counter.
+ */
+public class TransactionIdGenerator {
+
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public TransactionIdGenerator() {
+        this(Long.toString(System.currentTimeMillis(), 36) + "-"
+                + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36));
+    }
+
+    /**
+     * @param prefix must be unique for the device
+     */
+    public TransactionIdGenerator(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return an id never returned before by this generator, later ids have a
+     *         higher counter
+     */
+    public String next() {
+        return prefix + "." + counter.incrementAndGet();
+    }
+}
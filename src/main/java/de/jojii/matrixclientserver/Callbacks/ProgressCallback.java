@@ -0,0 +1,9 @@
+package de.jojii.matrixclientserver.Callbacks;
+
+public interface ProgressCallback {
+    /**
+     * @param bytesSent  bytes of the body sent so far
+     * @param totalBytes length of the body, <code>-1</code> if unknown
+     */
+    void onProgress(long bytesSent, long totalBytes);
+}
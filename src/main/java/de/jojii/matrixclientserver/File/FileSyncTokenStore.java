@@ -0,0 +1,181 @@
+package de.jojii.matrixclientserver.File;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Stores one file per key in a directory. A file is replaced atomically by
+ * writing a temporary file and renaming it, so a crash never leaves a partly
+ * written token behind.
+ * <p>
+ * To avoid touching the disk on every sync iteration, tokens can be held in
+ * memory and written at most once per flush interval. A token not yet written
+ * when the process dies only causes the events since the last written token to
+ * be delivered again.
+ * <p>
+ * Files are written and forced outside the lock of the store, so clients
+ * sharing it store and load their tokens while another one flushes.
+ */
+public class FileSyncTokenStore implements SyncTokenStore {
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final String PREFIX = "nextBatch-";
+
+    private final Path directory;
+    private final long flushInterval;
+    private final boolean fsync;
+    private final Map<String, String> tokens = new HashMap<>();
+    private final Map<String, String> pending = new HashMap<>();
+    private long lastFlush;
+    // serializes writes, so a later token of a key is never overwritten by an earlier one
+    private final Object flushLock = new Object();
+
+    /**
+     * Write at most once per second and force the files to disk.
+     */
+    public FileSyncTokenStore(Path directory) {
+        this(directory, DEFAULT_FLUSH_INTERVAL, true);
+    }
+
+    /**
+     * @param directory     where the token files are kept, created if missing
+     * @param flushInterval minimal milliseconds between two writes, 0 writes on
+     *                      every {@link #store(String, String)}
+     * @param fsync         force every write to the storage device
+     */
+    public FileSyncTokenStore(Path directory, long flushInterval, boolean fsync) {
+        this.directory = directory;
+        this.flushInterval = flushInterval;
+        this.fsync = fsync;
+    }
+
+    @Override
+    public synchronized String load(String key) throws IOException {
+        String token = tokens.get(key);
+        if (token != null) {
+            return token;
+        }
+        try {
+            byte[] content = java.nio.file.Files.readAllBytes(fileOf(key));
+            token = new String(content, StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (token.isEmpty()) {
+            return null;
+        }
+        tokens.put(key, token);
+        return token;
+    }
+
+    @Override
+    public void store(String key, String token) throws IOException {
+        synchronized (this) {
+            tokens.put(key, token);
+            pending.put(key, token);
+            long now = System.currentTimeMillis();
+            if (now - lastFlush < flushInterval) {
+                return;
+            }
+            // the other callers of this interval leave the write to this one
+            lastFlush = now;
+        }
+        flush();
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                tokens.remove(key);
+                pending.remove(key);
+            }
+            java.nio.file.Files.deleteIfExists(fileOf(key));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            Map<String, String> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new HashMap<>(pending);
+                pending.clear();
+            }
+            Iterator<Map.Entry<String, String>> it = batch.entrySet().iterator();
+            try {
+                java.nio.file.Files.createDirectories(directory);
+                while (it.hasNext()) {
+                    Map.Entry<String, String> entry = it.next();
+                    write(fileOf(entry.getKey()), entry.getValue());
+                    it.remove();
+                }
+                if (fsync) {
+                    forceDirectory();
+                }
+            } finally {
+                if (!batch.isEmpty()) {
+                    synchronized (this) {
+                        // not written, unless stored again meanwhile
+                        for (Map.Entry<String, String> entry : batch.entrySet()) {
+                            pending.putIfAbsent(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                lastFlush = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void write(Path file, String token) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(token.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+        try {
+            java.nio.file.Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void forceDirectory() {
+        // makes the rename durable, not supported on every platform
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private Path fileOf(String key) {
+        try {
+            return directory.resolve(PREFIX + URLEncoder.encode(key, "UTF-8").replace("*", "%2A"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
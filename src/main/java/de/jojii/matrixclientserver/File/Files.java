@@ -1,5 +1,9 @@
 package de.jojii.matrixclientserver.File;
 
 public class Files {
+    /**
+     * Token file of older versions, shared by all clients. Only read once if the
+     * {@link SyncTokenStore} has no token yet.
+     */
     public static String sync_next_batch = "./nextBatch";
 }
@@ -0,0 +1,26 @@
+package de.jojii.matrixclientserver.File;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps tokens for the lifetime of the process only.
+ */
+public class InMemorySyncTokenStore implements SyncTokenStore {
+
+    private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+
+    @Override
+    public String load(String key) {
+        return tokens.get(key);
+    }
+
+    @Override
+    public void store(String key, String token) {
+        tokens.put(key, token);
+    }
+
+    @Override
+    public void remove(String key) {
+        tokens.remove(key);
+    }
+}
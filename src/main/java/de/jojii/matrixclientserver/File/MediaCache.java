@@ -0,0 +1,327 @@
+package de.jojii.matrixclientserver.File;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded disk cache for downloaded media, keyed by the mxc URI and the
+ * thumbnail parameters. Each entry is one file named by the SHA-256 of its key,
+ * holding the body followed by the content type. Hits are read through a
+ * memory mapping. When the cache grows beyond its size, the least recently
+ * used entries are deleted.
+ * <p>
+ * Concurrent requests for an entry not cached yet are collapsed: one caller
+ * downloads it, the others wait and read it from the cache.
+ */
+public class MediaCache {
+
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private static final String SUFFIX = ".media";
+
+    public interface Loader {
+        /**
+         * Write the media to the stream.
+         *
+         * @return the content type
+         */
+        String load(OutputStream out) throws IOException;
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MediaCache(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Open the cache, taking over the entries already in the directory, least
+     * recently used first. Downloads a stopped process left unfinished are
+     * deleted.
+     *
+     * @param maxBytes bytes the entries may take on disk
+     */
+    public MediaCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        java.nio.file.Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(directory, "download*.tmp")) {
+            for (Path file : stream) {
+                java.nio.file.Files.deleteIfExists(file);
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        synchronized (this) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long length = java.nio.file.Files.size(file);
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), length);
+                size += length;
+            }
+            evict(null);
+        }
+    }
+
+    /**
+     * Write the cached media to the stream, loading it first if not cached.
+     *
+     * @param key    identifies the media, see {@link #key(String, String)}
+     * @param loader downloads the media on a miss
+     * @return the content type
+     */
+    public String get(String key, OutputStream out, Loader loader) throws IOException {
+        String name = hash(key);
+        while (true) {
+            String contentType = read(name, out);
+            if (contentType != null) {
+                hits.incrementAndGet();
+                return contentType;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> running = loading.putIfAbsent(name, future);
+            if (running == null) {
+                misses.incrementAndGet();
+                try {
+                    Path file = load(name, loader);
+                    future.complete(null);
+                    return copy(file, out);
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    loading.remove(name, future);
+                }
+            }
+            collapsed.incrementAndGet();
+            await(running);
+            // read the entry the other caller loaded, or load it ourselves if it was evicted meanwhile
+        }
+    }
+
+    /**
+     * @param variant distinguishes thumbnails of the same media,
+     *                <code>null</code> for the original
+     */
+    public static String key(String mxcUri, String variant) {
+        return variant == null ? mxcUri : mxcUri + "#" + variant;
+    }
+
+    private String read(String name, OutputStream out) throws IOException {
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+        }
+        Path file = fileOf(name);
+        try {
+            String contentType = copy(file, out);
+            try {
+                // the modification time keeps the LRU order across restarts
+                java.nio.file.Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ignore) {
+            }
+            return contentType;
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                Long length = entries.remove(name);
+                if (length != null) {
+                    size -= length;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Path load(String name, Loader loader) throws IOException {
+        Path temp = java.nio.file.Files.createTempFile(directory, "download", ".tmp");
+        try {
+            String contentType;
+            try (OutputStream out = java.nio.file.Files.newOutputStream(temp)) {
+                contentType = loader.load(out);
+                byte[] type = (contentType != null ? contentType : "").getBytes(StandardCharsets.UTF_8);
+                if (type.length > 0xffff) {
+                    type = new byte[0];
+                }
+                out.write(type);
+                out.write(type.length >>> 8);
+                out.write(type.length);
+            }
+            Path file = fileOf(name);
+            try {
+                java.nio.file.Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long length = java.nio.file.Files.size(file);
+            synchronized (this) {
+                Long previous = entries.put(name, length);
+                size += length - (previous != null ? previous : 0);
+                evict(name);
+            }
+            return file;
+        } finally {
+            java.nio.file.Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete least recently used entries until the cache fits its size.
+     *
+     * @param keep entry just loaded, still to be read by its caller
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            try {
+                java.nio.file.Files.deleteIfExists(fileOf(eldest.getKey()));
+            } catch (IOException e) {
+                // still mapped on some platforms, try again later
+                continue;
+            }
+            size -= eldest.getValue();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copy an entry through a memory mapping.
+     *
+     * @return the content type
+     */
+    private static String copy(Path file, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < 2) {
+                throw new IOException("Corrupt media cache entry " + file);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(2);
+            channel.read(trailer, length - 2);
+            int typeLength = trailer.getShort(0) & 0xffff;
+            long bodyLength = length - 2 - typeLength;
+            ByteBuffer type = ByteBuffer.allocate(typeLength);
+            channel.read(type, bodyLength);
+
+            byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(bodyLength, 1))];
+            long position = 0;
+            while (position < bodyLength) {
+                // map in windows, a single mapping is limited to 2 GB
+                long window = Math.min(bodyLength - position, Integer.MAX_VALUE);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                while (mapped.hasRemaining()) {
+                    int chunk = Math.min(buffer.length, mapped.remaining());
+                    mapped.get(buffer, 0, chunk);
+                    out.write(buffer, 0, chunk);
+                }
+                position += window;
+            }
+            return new String(type.array(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for media download");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Path fileOf(String name) {
+        return directory.resolve(name + SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return bytes the entries take on disk
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return requests which waited for another caller's download
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,375 @@
+package de.jojii.matrixclientserver.File;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable log of events to send. Every event is appended before it is sent and
+ * acknowledged once the server accepted it. Events not acknowledged when the
+ * process stopped are returned by {@link #getPending()} on the next start, to
+ * be sent again with their original transaction id.
+ * <p>
+ * The log is split into segment files of json lines. Appends return once
+ * their record is forced to disk, and appends of concurrent callers are forced
+ * together by a single fsync (group commit). Acknowledgements are written right
+ * away but not forced, so they survive a crash of the process. One lost with
+ * the system sends its event again with the same transaction id. The server
+ * only recognizes a transaction id for the access token that sent it, after
+ * a new login the event is posted twice. Segments are deleted once all their
+ * events and those of older segments are acknowledged.
+ */
+public class Outbox implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String PREFIX = "outbox-";
+    private static final String SUFFIX = ".log";
+
+    public static class Entry {
+        private final long id;
+        private final String roomId;
+        private final String eventType;
+        private final String txnId;
+        private final JSONObject content;
+
+        /**
+         * An entry to append, its id is assigned by the outbox.
+         */
+        public Entry(String roomId, String eventType, String txnId, JSONObject content) {
+            this(-1, roomId, eventType, txnId, content);
+        }
+
+        private Entry(long id, String roomId, String eventType, String txnId, JSONObject content) {
+            this.id = id;
+            this.roomId = roomId;
+            this.eventType = eventType;
+            this.txnId = txnId;
+            this.content = content;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getRoomId() {
+            return roomId;
+        }
+
+        public String getEventType() {
+            return eventType;
+        }
+
+        public String getTxnId() {
+            return txnId;
+        }
+
+        public JSONObject getContent() {
+            return content;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final boolean fsync;
+
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+    private final Map<Long, Long> segmentOf = new HashMap<>();
+    // unacknowledged events per segment, for every segment on disk
+    private final TreeMap<Long, Integer> segments = new TreeMap<>();
+    private FileChannel channel;
+    private long segment;
+    private long segmentBytes;
+    private long nextId = 1;
+    private long written;
+    private boolean closed;
+
+    private final Object syncLock = new Object();
+    private long synced;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Segments of {@value #DEFAULT_SEGMENT_SIZE} bytes, forced to disk.
+     */
+    public Outbox(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    /**
+     * Open the log in the directory and read the events not acknowledged yet.
+     *
+     * @param segmentSize bytes after which a new segment is started
+     * @param fsync       force appends to the storage device, without it they
+     *                    only survive a crash of the process, not of the system
+     */
+    public Outbox(Path directory, long segmentSize, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        java.nio.file.Files.createDirectories(directory);
+        replay();
+        openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        deleteAcknowledgedSegments();
+    }
+
+    private void replay() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            segments.put(file.getKey(), 0);
+            try (BufferedReader reader = java.nio.file.Files.newBufferedReader(file.getValue(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(file.getKey(), line);
+                }
+            }
+        }
+    }
+
+    private void replay(long segment, String line) {
+        JSONObject record;
+        try {
+            record = new JSONObject(line);
+        } catch (JSONException e) {
+            // the last line may be cut off by a crash, its append never returned
+            return;
+        }
+        long id = record.getLong("id");
+        nextId = Math.max(nextId, id + 1);
+        if ("send".equals(record.optString("op"))) {
+            pending.put(id, new Entry(id, record.getString("room_id"), record.getString("type"),
+                    record.getString("txn_id"), record.getJSONObject("content")));
+            segmentOf.put(id, segment);
+            segments.merge(segment, 1, Integer::sum);
+        } else {
+            release(id);
+        }
+    }
+
+    /**
+     * @return the events not acknowledged, in the order they were appended
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Append an event and wait until it is durable.
+     */
+    public Entry append(String roomId, String eventType, String txnId, JSONObject content) throws IOException {
+        return appendAll(Collections.singletonList(new Entry(roomId, eventType, txnId, content))).get(0);
+    }
+
+    /**
+     * Append events with a single write and wait until they are durable.
+     *
+     * @return the entries with their ids
+     */
+    public List<Entry> appendAll(List<Entry> entries) throws IOException {
+        List<Entry> result = new ArrayList<>(entries.size());
+        long target;
+        synchronized (this) {
+            ensureOpen();
+            StringBuilder lines = new StringBuilder();
+            for (Entry entry : entries) {
+                Entry appendedEntry = new Entry(nextId++, entry.roomId, entry.eventType, entry.txnId, entry.content);
+                lines.append("{\"op\":\"send\",\"id\":").append(appendedEntry.id)
+                        .append(",\"room_id\":").append(JSONObject.quote(appendedEntry.roomId))
+                        .append(",\"type\":").append(JSONObject.quote(appendedEntry.eventType))
+                        .append(",\"txn_id\":").append(JSONObject.quote(appendedEntry.txnId))
+                        .append(",\"content\":").append(appendedEntry.content).append("}\n");
+                result.add(appendedEntry);
+            }
+            write(lines);
+            for (Entry entry : result) {
+                pending.put(entry.id, entry);
+                segmentOf.put(entry.id, segment);
+            }
+            segments.merge(segment, result.size(), Integer::sum);
+            target = written;
+        }
+        appended.addAndGet(result.size());
+        sync(target);
+        return result;
+    }
+
+    /**
+     * Mark an event as accepted by the server, it will not be replayed. The
+     * record is written at once, but not forced.
+     */
+    public synchronized void acknowledge(long id) throws IOException {
+        if (closed || !pending.containsKey(id)) {
+            return;
+        }
+        write(new StringBuilder("{\"op\":\"ack\",\"id\":").append(id).append("}\n"));
+        release(id);
+        acknowledged.incrementAndGet();
+        deleteAcknowledgedSegments();
+    }
+
+    private void release(long id) {
+        pending.remove(id);
+        Long segment = segmentOf.remove(id);
+        if (segment != null) {
+            segments.computeIfPresent(segment, (k, count) -> count - 1);
+        }
+    }
+
+    private void write(StringBuilder lines) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(lines));
+        lines.setLength(0);
+        segmentBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written++;
+    }
+
+    /**
+     * Wait until everything written up to the target is forced. The first
+     * waiting caller forces for all callers that wrote in the meantime.
+     */
+    private void sync(long target) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= target) {
+                return;
+            }
+            FileChannel channel;
+            long upTo;
+            synchronized (this) {
+                ensureOpen();
+                channel = this.channel;
+                upTo = written;
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+            syncs.incrementAndGet();
+            synced = upTo;
+            synchronized (this) {
+                // only rolled here, so the channel is never closed while being forced
+                if (segmentBytes >= segmentSize) {
+                    this.channel.close();
+                    openSegment(segment + 1);
+                }
+            }
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        this.segment = segment;
+        this.segmentBytes = 0;
+        this.channel = FileChannel.open(fileOf(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.putIfAbsent(segment, 0);
+        if (fsync) {
+            forceDirectory();
+        }
+    }
+
+    private void deleteAcknowledgedSegments() {
+        Iterator<Map.Entry<Long, Integer>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> oldest = it.next();
+            if (oldest.getKey() == segment || oldest.getValue() > 0) {
+                return;
+            }
+            try {
+                java.nio.file.Files.deleteIfExists(fileOf(oldest.getKey()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    private void forceDirectory() {
+        // makes a new segment durable, not supported on every platform
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("outbox is closed");
+        }
+    }
+
+    private Path fileOf(long segment) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, segment, SUFFIX));
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return segment files on disk
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    /**
+     * @return number of forces, appends per sync show how well they are batched
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (fsync) {
+                    channel.force(false);
+                }
+                channel.close();
+            }
+        }
+    }
+}
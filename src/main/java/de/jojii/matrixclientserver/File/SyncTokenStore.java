@@ -0,0 +1,33 @@
+package de.jojii.matrixclientserver.File;
+
+import java.io.IOException;
+
+/**
+ * Keeps the <code>next_batch</code> token of the sync loop, so a restarted
+ * client continues where it stopped. Tokens are kept per key, usually user and
+ * device, so many clients can share one store. The sync loop keeps the ids of
+ * its uploaded filters here as well.
+ */
+public interface SyncTokenStore {
+
+    /**
+     * @return the last stored token or <code>null</code> if none is known
+     */
+    String load(String key) throws IOException;
+
+    void store(String key, String token) throws IOException;
+
+    /**
+     * Forget the token of a key. Stores implemented before this method existed
+     * keep an empty token, which {@link #load(String)} callers treat as none.
+     */
+    default void remove(String key) throws IOException {
+        store(key, "");
+    }
+
+    /**
+     * Persist tokens which are only held in memory yet.
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -0,0 +1,275 @@
+package de.jojii.matrixclientserver.File;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index from the SHA-256 of uploaded content to its
+ * <code>content_uri</code>, so content uploaded before is not sent again.
+ * <p>
+ * The index is an append-only file of records: the 32 byte hash, the length
+ * of the uri as 2 bytes and the uri in UTF-8. In memory only an open
+ * addressing table of hash prefixes and file offsets is kept, 16 bytes per
+ * entry, bounded by the maximum number of entries. When it is full, the file
+ * is rewritten with the newer half of the entries.
+ */
+public class UploadIndex {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    private static final int HASH_LENGTH = 32;
+
+    private final Path file;
+    private final int maxEntries;
+    private long[] prefixes;
+    private long[] offsets;
+    private int count;
+    private RandomAccessFile data;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UploadIndex(Path file) throws IOException {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries entries kept at most, older ones are forgotten
+     */
+    public UploadIndex(Path file, int maxEntries) throws IOException {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            java.nio.file.Files.createDirectories(parent);
+        }
+        load();
+    }
+
+    private void load() throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;
+        prefixes = new long[capacity];
+        offsets = new long[capacity];
+        count = 0;
+        data = new RandomAccessFile(file.toFile(), "rw");
+        long offset = 0;
+        long length = data.length();
+        byte[] hash = new byte[HASH_LENGTH];
+        while (offset + HASH_LENGTH + 2 <= length) {
+            data.seek(offset);
+            data.readFully(hash);
+            int uriLength = data.readUnsignedShort();
+            if (offset + HASH_LENGTH + 2 + uriLength > length) {
+                break;
+            }
+            if (count >= maxEntries) {
+                // written with a larger maximum, the table has no room for the rest
+                compact();
+                return;
+            }
+            insert(prefix(hash), offset);
+            offset += HASH_LENGTH + 2 + uriLength;
+        }
+        if (offset < length) {
+            // cut off by a crash while appending
+            data.setLength(offset);
+        }
+    }
+
+    /**
+     * @return the <code>content_uri</code> of the content, or <code>null</code>
+     */
+    public synchronized String get(byte[] hash) throws IOException {
+        String uri = find(hash);
+        if (uri != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return uri;
+    }
+
+    public synchronized void put(byte[] hash, String contentUri) throws IOException {
+        if (find(hash) != null) {
+            return;
+        }
+        if (count >= maxEntries) {
+            compact();
+        }
+        byte[] uri = contentUri.getBytes(StandardCharsets.UTF_8);
+        long offset = data.length();
+        byte[] record = new byte[HASH_LENGTH + 2 + uri.length];
+        System.arraycopy(hash, 0, record, 0, HASH_LENGTH);
+        record[HASH_LENGTH] = (byte) (uri.length >>> 8);
+        record[HASH_LENGTH + 1] = (byte) uri.length;
+        System.arraycopy(uri, 0, record, HASH_LENGTH + 2, uri.length);
+        data.seek(offset);
+        data.write(record);
+        insert(prefix(hash), offset);
+    }
+
+    private String find(byte[] hash) throws IOException {
+        long prefix = prefix(hash);
+        int mask = prefixes.length - 1;
+        byte[] stored = new byte[HASH_LENGTH];
+        for (int i = (int) mix(prefix) & mask; prefixes[i] != 0; i = (i + 1) & mask) {
+            if (prefixes[i] != prefix) {
+                continue;
+            }
+            data.seek(offsets[i]);
+            data.readFully(stored);
+            if (Arrays.equals(stored, hash)) {
+                byte[] uri = new byte[data.readUnsignedShort()];
+                data.readFully(uri);
+                return new String(uri, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void insert(long prefix, long offset) {
+        int mask = prefixes.length - 1;
+        int i = (int) mix(prefix) & mask;
+        while (prefixes[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        prefixes[i] = prefix;
+        offsets[i] = offset;
+        count++;
+    }
+
+    /**
+     * Rewrite the file with the newer half of the records, at most half the
+     * maximum entries.
+     */
+    private void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                java.nio.file.Files.newInputStream(file)))) {
+            while (true) {
+                byte[] hash = new byte[HASH_LENGTH];
+                byte[] record;
+                try {
+                    in.readFully(hash);
+                    int uriLength = in.readUnsignedShort();
+                    record = new byte[HASH_LENGTH + 2 + uriLength];
+                    System.arraycopy(hash, 0, record, 0, HASH_LENGTH);
+                    record[HASH_LENGTH] = (byte) (uriLength >>> 8);
+                    record[HASH_LENGTH + 1] = (byte) uriLength;
+                    in.readFully(record, HASH_LENGTH + 2, uriLength);
+                } catch (EOFException e) {
+                    // a torn last record
+                    break;
+                }
+                records.add(record);
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(java.nio.file.Files.newOutputStream(temp))) {
+            int keep = Math.min(records.size(), maxEntries) / 2;
+            for (byte[] record : records.subList(records.size() - keep, records.size())) {
+                out.write(record);
+            }
+        }
+        data.close();
+        try {
+            java.nio.file.Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        load();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Hash a file for {@link #get(byte[])}. The content type is part of the hash,
+     * the same bytes uploaded as another type are uploaded again.
+     */
+    public static byte[] hash(String contentType, Path file) throws IOException {
+        MessageDigest digest = newDigest(contentType);
+        try (InputStream in = java.nio.file.Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Copy a stream to a file, hashing it on the way.
+     *
+     * @return the hash as by {@link #hash(String, Path)}
+     */
+    public static byte[] spool(String contentType, InputStream data, Path target) throws IOException {
+        MessageDigest digest = newDigest(contentType);
+        try (OutputStream out = new DigestOutputStream(java.nio.file.Files.newOutputStream(target,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest(String contentType) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((contentType != null ? contentType : "").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long prefix(byte[] hash) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (hash[i] & 0xff);
+        }
+        // 0 marks a free slot
+        return prefix == 0 ? 1 : prefix;
+    }
+
+    private static long mix(long prefix) {
+        return prefix ^ (prefix >>> 32);
+    }
+}
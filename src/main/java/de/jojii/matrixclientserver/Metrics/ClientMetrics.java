@@ -0,0 +1,223 @@
+package de.jojii.matrixclientserver.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Default {@link MetricsRecorder} keeping everything in memory: a latency
+ * {@link Histogram} in microseconds per method and endpoint, error counts by
+ * http status, the duration of sync polls, the events per poll and the queue
+ * of the sync dispatcher. Needs no dependencies, and can be exported as an
+ * MBean for JMX.
+ */
+public class ClientMetrics implements MetricsRecorder {
+
+    private final ConcurrentHashMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final Histogram syncIterations = new Histogram();
+    private final Histogram eventsPerBatch = new Histogram();
+    private final AtomicLong syncFailures = new AtomicLong();
+    private final AtomicLong dispatchQueueDepth = new AtomicLong();
+    private final AtomicLong maxDispatchQueueDepth = new AtomicLong();
+    private final AtomicLong dispatchLag = new AtomicLong();
+
+    @Override
+    public void onRequest(String endpoint, String method, int status, long nanos) {
+        latencies.computeIfAbsent(method + " " + endpoint, k -> new Histogram()).record(nanos / 1000);
+        if (status >= 400 || status < 0) {
+            errors.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onSyncIteration(long nanos, int events) {
+        syncIterations.record(nanos / 1000);
+        eventsPerBatch.record(events);
+    }
+
+    @Override
+    public void onSyncFailure(Exception failure) {
+        syncFailures.incrementAndGet();
+    }
+
+    @Override
+    public void onDispatchQueue(int depth, long lag) {
+        dispatchQueueDepth.set(depth);
+        maxDispatchQueueDepth.accumulateAndGet(depth, Math::max);
+        dispatchLag.set(lag);
+    }
+
+    /**
+     * @param endpoint e.g. {@link de.jojii.matrixclientserver.Networking.HttpHelper.URLs#sync}
+     *                 with a leading slash, ids replaced by <code>{id}</code>
+     * @return latencies in microseconds, <code>null</code> if there was no such
+     *         request yet
+     */
+    public Histogram getLatency(String method, String endpoint) {
+        return latencies.get(method + " " + endpoint);
+    }
+
+    /**
+     * @return latencies in microseconds by <code>"METHOD /endpoint"</code>
+     */
+    public Map<String, Histogram> getLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<>(latencies));
+    }
+
+    /**
+     * @return failed requests by http status, <code>-1</code> for requests
+     *         without response
+     */
+    public Map<Integer, Long> getErrorCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return duration of the sync polls in microseconds
+     */
+    public Histogram getSyncIterations() {
+        return syncIterations;
+    }
+
+    public Histogram getEventsPerBatch() {
+        return eventsPerBatch;
+    }
+
+    public long getSyncFailureCount() {
+        return syncFailures.get();
+    }
+
+    public long getDispatchQueueDepth() {
+        return dispatchQueueDepth.get();
+    }
+
+    public long getMaxDispatchQueueDepth() {
+        return maxDispatchQueueDepth.get();
+    }
+
+    /**
+     * @return milliseconds the last delivered batch waited in the dispatcher
+     */
+    public long getDispatchLag() {
+        return dispatchLag.get();
+    }
+
+    /**
+     * Export the metrics as an MBean, e.g. under
+     * <code>de.jojii.matrixclientserver:type=ClientMetrics,name=bot</code>.
+     * Attributes are named like <code>GET /_matrix/client/r0/sync p99</code>.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("de.jojii.matrixclientserver:type=ClientMetrics,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), objectName);
+        return objectName;
+    }
+
+    public static void unregisterMBean(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    /**
+     * @return every exported value by attribute name
+     */
+    Map<String, Number> values() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            putHistogram(values, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Integer, Long> entry : getErrorCounts().entrySet()) {
+            values.put("errors " + entry.getKey(), entry.getValue());
+        }
+        putHistogram(values, "sync iteration", syncIterations);
+        putHistogram(values, "sync events", eventsPerBatch);
+        values.put("sync failures", getSyncFailureCount());
+        values.put("dispatch queue depth", getDispatchQueueDepth());
+        values.put("dispatch queue max depth", getMaxDispatchQueueDepth());
+        values.put("dispatch lag", getDispatchLag());
+        return values;
+    }
+
+    private static void putHistogram(Map<String, Number> values, String name, Histogram histogram) {
+        values.put(name + " count", histogram.getCount());
+        values.put(name + " p50", histogram.getPercentile(50));
+        values.put(name + " p90", histogram.getPercentile(90));
+        values.put(name + " p99", histogram.getPercentile(99));
+        values.put(name + " p999", histogram.getPercentile(99.9));
+        values.put(name + " max", histogram.getMax());
+    }
+
+    /**
+     * Attributes are computed on every read, new endpoints show up as new
+     * attributes.
+     */
+    private class MBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> entry : values().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(ClientMetrics.class.getName(), "Matrix client metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.jojii.matrixclientserver.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative values in the style of HdrHistogram:
+ * values below 128 are counted exactly, larger ones in buckets of 64 per power
+ * of two, so a percentile is off by less than 1/64 of its value. Values above
+ * {@link #MAX_VALUE} are counted as {@link #MAX_VALUE}. Uses 16 KiB.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int MAX_SHIFT = 30;
+    public static final long MAX_VALUE = (1L << (MAX_SHIFT + 7)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + MAX_SHIFT * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // shift so the value falls into [64, 128)
+        int shift = 57 - Long.numberOfLeadingZeros(value);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the highest value counted in the same bucket
+     */
+    static long highestEquivalent(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value below or at which the percentile of the recorded values
+     *         lies, <code>0</code> if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = count.get();
+        return total > 0 ? (double) sum.get() / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90) + ", p99="
+                + getPercentile(99) + ", p999=" + getPercentile(99.9) + ", max=" + getMax();
+    }
+}
@@ -0,0 +1,53 @@
+package de.jojii.matrixclientserver.Metrics;
+
+/**
+ * Receives measurements of a client. Every method is called on the thread doing
+ * the work, so implementations have to be thread safe and fast. All methods
+ * default to doing nothing.
+ *
+ * @see ClientMetrics
+ */
+public interface MetricsRecorder {
+
+    MetricsRecorder NOOP = new MetricsRecorder() {
+    };
+
+    /**
+     * A request finished, after its response body was read.
+     *
+     * @param endpoint path of the request with ids replaced, e.g.
+     *                 <code>/_matrix/client/r0/rooms/{id}/joined_members</code>
+     * @param status   the http status, <code>-1</code> if no response was
+     *                 received
+     * @param nanos    time from sending the request until the response was
+     *                 closed
+     */
+    default void onRequest(String endpoint, String method, int status, long nanos) {
+    }
+
+    /**
+     * One poll of the sync loop finished successfully.
+     *
+     * @param nanos  time of the poll, including the long poll wait and the
+     *               delivery of the events on the sync thread
+     * @param events room events in the response
+     */
+    default void onSyncIteration(long nanos, int events) {
+    }
+
+    /**
+     * A poll of the sync loop failed and will be retried.
+     */
+    default void onSyncFailure(Exception failure) {
+    }
+
+    /**
+     * After every poll, when a {@link de.jojii.matrixclientserver.Bot.SyncDispatcher}
+     * is used.
+     *
+     * @param depth room batches waiting for delivery
+     * @param lag   milliseconds the last delivered batch waited
+     */
+    default void onDispatchQueue(int depth, long lag) {
+    }
+}
@@ -0,0 +1,215 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of request and response bodies for {@link HttpHelper}, and the
+ * byte counting for its {@link TransferStats}.
+ */
+final class ContentCoding {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private ContentCoding() {
+    }
+
+    /**
+     * The path of a url with ids, transaction ids and media ids replaced, so all
+     * requests to one endpoint share their stats.
+     */
+    static String endpoint(URL url) {
+        String[] segments = url.getPath().split("/");
+        StringBuilder endpoint = new StringBuilder();
+        String previous = "";
+        for (String segment : segments) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            String name = segment;
+            if (isId(segment)) {
+                name = "{id}";
+            } else if (previous.equals("download") || previous.equals("thumbnail")) {
+                name = "{server}";
+            } else if (previous.equals("{server}")) {
+                name = "{mediaId}";
+            } else if (endpoint.toString().endsWith("/send/" + previous)) {
+                name = "{txnId}";
+            }
+            endpoint.append('/').append(name);
+            previous = name;
+        }
+        return endpoint.length() > 0 ? endpoint.toString() : "/";
+    }
+
+    private static boolean isId(String segment) {
+        char sigil = segment.charAt(0);
+        if (sigil == '!' || sigil == '@' || sigil == '#' || sigil == '$') {
+            return true;
+        }
+        String lower = segment.toLowerCase(Locale.ROOT);
+        return lower.startsWith("%21") || lower.startsWith("%40") || lower.startsWith("%23") || lower.startsWith("%24");
+    }
+
+    static byte[] gzip(HttpTransport.RequestBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, body.getContentLength() / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            body.writeTo(gzip);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Wrap a response body, decompressing it if its content encoding is gzip or
+     * deflate and counting the bytes before and after.
+     */
+    static InputStream decode(InputStream body, String contentEncoding, TransferStats stats) throws IOException {
+        String encoding = contentEncoding != null ? contentEncoding.trim().toLowerCase(Locale.ROOT) : "";
+        boolean gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+        boolean deflate = encoding.equals("deflate");
+        if (!gzip && !deflate) {
+            return new CountingInputStream(body, stats, true, true);
+        }
+        stats.onCompressedResponse();
+        PushbackInputStream wire = new PushbackInputStream(new CountingInputStream(body, stats, true, false), 2);
+        int first = wire.read();
+        if (first == -1) {
+            // e.g. a 204 with a content encoding header, there is nothing to decode
+            return wire;
+        }
+        InputStream decoded;
+        if (gzip) {
+            wire.unread(first);
+            decoded = new GZIPInputStream(wire, 8192);
+        } else {
+            int second = wire.read();
+            if (second != -1) {
+                wire.unread(second);
+            }
+            wire.unread(first);
+            // "deflate" should be zlib wrapped, but some servers send raw deflate data
+            boolean zlib = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+            decoded = new InflaterInputStream(wire, new Inflater(!zlib), 8192) {
+                @Override
+                public void close() throws IOException {
+                    inf.end();
+                    super.close();
+                }
+            };
+        }
+        return new CountingInputStream(decoded, stats, false, true);
+    }
+
+    /**
+     * Counts the bytes read as wire bytes, decoded bytes or both.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final TransferStats stats;
+        private final boolean wire;
+        private final boolean decoded;
+
+        CountingInputStream(InputStream in, TransferStats stats, boolean wire, boolean decoded) {
+            super(in);
+            this.stats = stats;
+            this.wire = wire;
+            this.decoded = decoded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                count(skipped);
+            }
+            return skipped;
+        }
+
+        private void count(long n) {
+            if (wire) {
+                stats.onResponseWire(n);
+            }
+            if (decoded) {
+                stats.onResponseDecoded(n);
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * A response whose body is decoded. Closing it ends the decompressor,
+     * releases the connection of the wrapped response and calls
+     * <code>onClose</code> once.
+     */
+    static class DecodedResponse implements HttpTransport.Response {
+        private final HttpTransport.Response response;
+        private final InputStream body;
+        private final Runnable onClose;
+        private boolean closed;
+
+        DecodedResponse(HttpTransport.Response response, TransferStats stats, Runnable onClose) throws IOException {
+            this.response = response;
+            this.body = decode(response.getBody(), response.getHeader("Content-Encoding"), stats);
+            this.onClose = onClose;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                body.close();
+            } finally {
+                response.close();
+                onClose.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the asynchronous requests of {@link HttpHelper}. Wraps an
+ * {@link ExecutorService} and keeps track of queue depth and active tasks, so
+ * saturation can be observed from outside.
+ * <p>
+ * By default a JVM wide instance is shared by all clients. It uses virtual
+ * threads if the runtime supports them, otherwise a bounded thread pool which
+ * runs the task on the calling thread once its queue is full.
+ */
+public class HttpExecutor implements Executor {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static volatile HttpExecutor shared;
+
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private HttpExecutor(ExecutorService delegate, boolean virtual) {
+        this.delegate = delegate;
+        this.virtual = virtual;
+    }
+
+    /**
+     * Wrap a custom executor. Its lifecycle stays with the caller.
+     */
+    public static HttpExecutor of(ExecutorService executorService) {
+        if (executorService == null) {
+            throw new IllegalArgumentException("executorService must not be null");
+        }
+        return new HttpExecutor(executorService, false);
+    }
+
+    /**
+     * A pool of at most <code>threads</code> daemon threads with a queue of
+     * <code>queueCapacity</code> tasks. If the queue is full the task is run on
+     * the submitting thread, which slows down the producer instead of failing.
+     * Once shut down, tasks are rejected with a
+     * {@link RejectedExecutionException}.
+     */
+    public static HttpExecutor bounded(int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "matrix-http-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory);
+        pool.allowCoreThreadTimeOut(true);
+        HttpExecutor executor = new HttpExecutor(pool, false);
+        pool.setRejectedExecutionHandler((r, p) -> {
+            if (p.isShutdown()) {
+                // counted by execute()
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+            executor.rejected.incrementAndGet();
+            r.run();
+        });
+        return executor;
+    }
+
+    /**
+     * One virtual thread per task.
+     *
+     * @return <code>null</code> if the runtime does not support virtual threads
+     */
+    public static HttpExecutor virtualThreads() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new HttpExecutor((ExecutorService) method.invoke(null), true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The executor shared by every {@link HttpHelper} that was not given its own.
+     */
+    public static HttpExecutor shared() {
+        HttpExecutor executor = shared;
+        if (executor == null) {
+            synchronized (HttpExecutor.class) {
+                executor = shared;
+                if (executor == null) {
+                    executor = virtualThreads();
+                    if (executor == null) {
+                        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+                        executor = bounded(threads, DEFAULT_QUEUE_CAPACITY);
+                    }
+                    shared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting new tasks. Only use this for executors created by this
+     * class and not shared with other clients.
+     */
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public ExecutorService getExecutorService() {
+        return delegate;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return number of tasks submitted but not yet started
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of tasks currently running
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of tasks that did not fit into the queue
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -1,14 +1,19 @@
 package de.jojii.matrixclientserver.Networking;
 
 import de.jojii.matrixclientserver.Callbacks.DataCallback;
+import de.jojii.matrixclientserver.Callbacks.ProgressCallback;
+import de.jojii.matrixclientserver.Metrics.MetricsRecorder;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.file.Path;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
 
 public class HttpHelper {
@@ -29,114 +34,295 @@ public class HttpHelper {
         public static String upload = media+"upload/";
     }
 
+    public interface BodyReader<T> {
+        /**
+         * @param contentType the content type of the response, may be <code>null</code>
+         */
+        T read(InputStream body, String contentType) throws IOException;
+    }
+
+    public interface ResponseReader<T> {
+        T read(Reader reader) throws IOException;
+    }
+
 	public HttpHelper(Supplier<String> accessTokenSupplier) {
+		this(accessTokenSupplier, HttpExecutor.shared());
+	}
+
+	public HttpHelper(Supplier<String> accessTokenSupplier, ExecutorService executorService) {
+		this(accessTokenSupplier, HttpExecutor.of(executorService));
+	}
+
+	public HttpHelper(Supplier<String> accessTokenSupplier, HttpExecutor executor) {
+		this(accessTokenSupplier, executor, PooledHttpTransport.shared());
+	}
+
+	public HttpHelper(Supplier<String> accessTokenSupplier, HttpExecutor executor, HttpTransport transport) {
 		this.accessTokenSupplier = accessTokenSupplier;
+		this.executor = executor;
+		this.transport = transport;
 	}
 
 	private Supplier<String> accessTokenSupplier;
+	private final HttpExecutor executor;
+	private final HttpTransport transport;
+	private volatile boolean acceptCompression = true;
+	private volatile int requestCompressionThreshold = -1;
+	private final Set<String> plainRequestHosts = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, TransferStats> transferStats = new ConcurrentHashMap<>();
+	private volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
 
-    public String sendRequest(String host, String path, JSONObject data, boolean useAccesstoken, String requestMethod) throws IOException {
-		return sendRequest(host, path, data, useAccesstoken, requestMethod, false);
+	/**
+	 * @return the executor running the asynchronous requests, e.g. to monitor its
+	 *         queue depth
+	 */
+	public HttpExecutor getExecutor() {
+		return executor;
 	}
 
-	public String sendRequest(String host, String path, JSONObject data, boolean useAccesstoken, String requestMethod,
-			boolean throwAll) throws IOException {
+	/**
+	 * @return the transport sending the requests, e.g. a
+	 *         {@link PooledHttpTransport} to read its pool statistics
+	 */
+	public HttpTransport getTransport() {
+		return transport;
+	}
 
-		URL obj = URI.create(host + path).toURL();
-		URLConnection con = obj.openConnection();
+	/**
+	 * Ask for gzip or deflate compressed responses, which are decompressed while
+	 * they are read. On by default.
+	 */
+	public void setAcceptCompression(boolean acceptCompression) {
+		this.acceptCompression = acceptCompression;
+	}
 
-		HttpURLConnection http = (HttpURLConnection) con;
-		http.setRequestMethod(requestMethod);
-		http.setDoOutput(true);
-		http.setReadTimeout(60000);
+	/**
+	 * Gzip json request bodies of at least <code>minBytes</code>. Matrix servers
+	 * are not required to accept compressed requests, a host answering
+	 * <code>415 Unsupported Media Type</code> is sent the request again
+	 * uncompressed and gets only uncompressed requests afterwards.
+	 *
+	 * @param minBytes smallest body to compress, <code>-1</code> turns it off,
+	 *                 which is the default
+	 */
+	public void setRequestCompression(int minBytes) {
+		this.requestCompressionThreshold = minBytes;
+	}
 
-		if (useAccesstoken) {
-			http.setRequestProperty("Authorization", "Bearer " + accessTokenSupplier.get());
-		}
+	/**
+	 * @return bytes sent and received per endpoint, ids in the paths replaced by
+	 *         placeholders such as <code>{id}</code>
+	 */
+	public Map<String, TransferStats> getTransferStats() {
+		return Collections.unmodifiableMap(transferStats);
+	}
 
-		if (data != null) {
-			int length = data.toString().length();
-			http.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-		}
+	/**
+	 * Report the latency and status of every request, <code>null</code> turns
+	 * it off.
+	 */
+	public void setMetrics(MetricsRecorder metrics) {
+		this.metrics = metrics != null ? metrics : MetricsRecorder.NOOP;
+	}
 
-		http.connect();
+	public MetricsRecorder getMetrics() {
+		return metrics;
+	}
 
-		if (data != null) {
-			try (OutputStream os = http.getOutputStream()) {
-				os.write(data.toString().getBytes());
-			}
+	private HttpTransport.Response execute(HttpTransport.Request request) throws IOException {
+		String endpoint = ContentCoding.endpoint(request.getUrl());
+		TransferStats stats = transferStats.computeIfAbsent(endpoint, k -> new TransferStats());
+		MetricsRecorder metrics = this.metrics;
+		long start = System.nanoTime();
+		if (acceptCompression && !request.getHeaders().containsKey("Accept-Encoding")) {
+			request.setHeader("Accept-Encoding", ContentCoding.ACCEPT_ENCODING);
 		}
-
-		try (BufferedReader br = new BufferedReader(
-				new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-			StringBuilder response = new StringBuilder();
-			String responseLine = null;
-			while ((responseLine = br.readLine()) != null) {
-				response.append(responseLine.trim());
+		HttpTransport.RequestBody body = request.getBody();
+		long length = body != null ? body.getContentLength() : 0;
+		HttpTransport.Response response = null;
+		try {
+			String hostKey = request.getUrl().getProtocol() + "://" + request.getUrl().getAuthority();
+			if (isCompressible(request, hostKey)) {
+				byte[] compressed = ContentCoding.gzip(body);
+				request.setHeader("Content-Encoding", "gzip");
+				request.setBody(HttpTransport.RequestBody.of(compressed));
+				response = transport.execute(request);
+				if (response.getStatusCode() == 415) {
+					plainRequestHosts.add(hostKey);
+					response.close();
+					response = null;
+					request.getHeaders().remove("Content-Encoding");
+					request.setBody(body);
+				} else {
+					stats.onRequest(length, compressed.length);
+				}
+			}
+			if (response == null) {
+				response = transport.execute(request);
+				stats.onRequest(length, length);
 			}
-			return response.toString();
 		} catch (IOException e) {
+			metrics.onRequest(endpoint, request.getMethod(), -1, System.nanoTime() - start);
+			throw e;
+		}
+		int status = response.getStatusCode();
+		try {
+			return new ContentCoding.DecodedResponse(response, stats,
+					() -> metrics.onRequest(endpoint, request.getMethod(), status, System.nanoTime() - start));
+		} catch (IOException | RuntimeException e) {
+			response.close();
+			metrics.onRequest(endpoint, request.getMethod(), status, System.nanoTime() - start);
+			throw e;
+		}
+	}
 
-			String errorResponse = null;
-			InputStream errorStream = http.getErrorStream();
-			if (errorStream != null) {
-				try (BufferedReader br = new BufferedReader(new InputStreamReader(errorStream))) {
-					StringBuilder response = new StringBuilder();
-					String responseLine = null;
-					while ((responseLine = br.readLine()) != null) {
-						response.append(responseLine.trim());
-					}
-					errorResponse = response.toString();
-				}
+	private boolean isCompressible(HttpTransport.Request request, String hostKey) {
+		int threshold = requestCompressionThreshold;
+		HttpTransport.RequestBody body = request.getBody();
+		if (threshold < 0 || body == null || !body.isRepeatable() || body.getContentLength() < threshold) {
+			return false;
+		}
+		String contentType = request.getHeaders().get("Content-Type");
+		return contentType != null && contentType.startsWith("application/json") && !plainRequestHosts.contains(hostKey);
+	}
+
+    public String sendRequest(String host, String path, JSONObject data, boolean useAccesstoken, String requestMethod) throws IOException {
+		return sendRequest(host, path, data, useAccesstoken, requestMethod, false);
+	}
+
+	public String sendRequest(String host, String path, JSONObject data, boolean useAccesstoken, String requestMethod,
+			boolean throwAll) throws IOException {
+
+		HttpTransport.Request request = newRequest(host, path, data, useAccesstoken, requestMethod);
+		try (HttpTransport.Response response = execute(request)) {
+			String body = readResponse(response.getBody());
+			if (response.getStatusCode() < 300) {
+				return body;
 			}
 			if (throwAll) {
-				throw new IOException(errorResponse, e);
+				throw new HttpStatusException(response.getStatusCode(), body);
 			}
-			return "{\n" + "  \"response\":\"error\",\n" + "  \"code\":" + http.getResponseCode() + "\n" + "}";
+			return "{\n" + "  \"response\":\"error\",\n" + "  \"code\":" + response.getStatusCode() + "\n" + "}";
 		}
     }
 
+	/**
+	 * Send a request and consume the response body while it is received, without
+	 * buffering it as a whole.
+	 *
+	 * @param responseReader reads the response body of a successful request
+	 * @return the value returned by the responseReader
+	 * @throws HttpStatusException if the server answered with an error status
+	 */
+	public <T> T sendRequest(String host, String path, JSONObject data, boolean useAccesstoken, String requestMethod,
+			ResponseReader<T> responseReader) throws IOException {
+		HttpTransport.Request request = newRequest(host, path, data, useAccesstoken, requestMethod);
+		try (HttpTransport.Response response = execute(request)) {
+			if (response.getStatusCode() >= 300) {
+				throw new HttpStatusException(response.getStatusCode(), readResponse(response.getBody()));
+			}
+			return responseReader.read(new InputStreamReader(response.getBody(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Send a GET request and consume the binary response body while it is
+	 * received.
+	 *
+	 * @throws HttpStatusException if the server answered with an error status
+	 */
+	public <T> T download(String host, String path, boolean useAccesstoken, BodyReader<T> bodyReader)
+			throws IOException {
+		HttpTransport.Request request = newRequest(host, path, null, useAccesstoken, "GET");
+		try (HttpTransport.Response response = execute(request)) {
+			if (response.getStatusCode() >= 300) {
+				throw new HttpStatusException(response.getStatusCode(), readResponse(response.getBody()));
+			}
+			return bodyReader.read(response.getBody(), response.getHeader("Content-Type"));
+		}
+	}
+
+	private HttpTransport.Request newRequest(String host, String path, JSONObject data, boolean useAccesstoken,
+			String requestMethod) throws IOException {
+		HttpTransport.Request request = new HttpTransport.Request(requestMethod, URI.create(host + path).toURL());
+		request.setReadTimeout(60000);
+
+		if (useAccesstoken) {
+			request.setHeader("Authorization", "Bearer " + accessTokenSupplier.get());
+		}
+
+		if (data != null) {
+			request.setHeader("Content-Type", "application/json; charset=UTF-8");
+			request.setBody(HttpTransport.RequestBody.of(data.toString().getBytes(StandardCharsets.UTF_8)));
+		}
+		return request;
+	}
+
     public String sendStream(String host, String path, String contentType, InputStream data, int contentLength, boolean useAccesstoken, String requestMethod) throws IOException {
-		URL obj = URI.create(host + path).toURL();
-        URLConnection con = obj.openConnection();
-        HttpURLConnection http = (HttpURLConnection)con;
-        http.setRequestMethod(requestMethod);
-        http.setDoOutput(true);
-        http.setRequestProperty("Content-Type", contentType);
-        http.addRequestProperty("Content-Length", Integer.toString(contentLength));
+		return sendBody(host, path, contentType, StreamRequestBody.of(data, contentLength, null), useAccesstoken,
+				requestMethod);
+	}
+
+	/**
+	 * Send a stream of any length.
+	 *
+	 * @param contentLength bytes to send, <code>-1</code> if unknown to send the
+	 *                      stream until its end with chunked transfer encoding
+	 * @param progress      told about the bytes sent, may be <code>null</code>
+	 */
+	public String sendStream(String host, String path, String contentType, InputStream data, long contentLength,
+			boolean useAccesstoken, String requestMethod, ProgressCallback progress) throws IOException {
+		return sendBody(host, path, contentType, StreamRequestBody.of(data, contentLength, progress), useAccesstoken,
+				requestMethod);
+	}
+
+	/**
+	 * Send a file, read straight from its channel into pooled buffers.
+	 *
+	 * @param progress told about the bytes sent, may be <code>null</code>
+	 */
+	public String sendFile(String host, String path, String contentType, Path file, boolean useAccesstoken,
+			String requestMethod, ProgressCallback progress) throws IOException {
+		return sendBody(host, path, contentType, StreamRequestBody.of(file, progress), useAccesstoken, requestMethod);
+	}
+
+	private String sendBody(String host, String path, String contentType, HttpTransport.RequestBody body,
+			boolean useAccesstoken, String requestMethod) throws IOException {
+        HttpTransport.Request request = new HttpTransport.Request(requestMethod, URI.create(host + path).toURL());
+        request.setHeader("Content-Type", contentType);
+        request.setBody(body);
 
 		if (useAccesstoken) {
-			http.setRequestProperty("Authorization", "Bearer " + accessTokenSupplier.get());
+			request.setHeader("Authorization", "Bearer " + accessTokenSupplier.get());
 		}
 
-        try(OutputStream os = http.getOutputStream()) {
-            int i = 0;
-            int bytes = 0;
-            while(bytes != -1) {
-                byte []buff = new byte[1024];
-                bytes = data.read(buff);
-                if (bytes != -1) {
-                    os.write(buff, 0, bytes);
-                    i += bytes;
-                }
+        try (HttpTransport.Response response = execute(request)) {
+            String responseBody = readResponse(response.getBody());
+            if (response.getStatusCode() < 300) {
+                return responseBody;
             }
-
-            os.flush();
-            os.close();
+            return "{\n" +
+                    "  \"response\":\"error\",\n" +
+                    "  \"code\":"+response.getStatusCode()+"\n" +
+                    "}";
         }
+    }
 
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
+    private static String readResponse(InputStream in) throws IOException {
+        return readResponse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+	/**
+	 * Read a whole response body, usable as {@link ResponseReader}.
+	 */
+    public static String readResponse(Reader reader) throws IOException {
+        try (BufferedReader br = new BufferedReader(reader)) {
             StringBuilder response = new StringBuilder();
             String responseLine = null;
             while ((responseLine = br.readLine()) != null) {
                 response.append(responseLine.trim());
             }
             return response.toString();
-        }catch (IOException e){
-            return "{\n" +
-                    "  \"response\":\"error\",\n" +
-                    "  \"code\":"+http.getResponseCode()+"\n" +
-                    "}";
         }
     }
 
@@ -145,16 +331,47 @@ public class HttpHelper {
             System.err.println("callback must not be null!");
             return;
         }
-        new Thread(() -> {
+        executor.execute(() -> {
             try {
                 String res = sendStream(host,path,contentType,data, contentLength, useAccesstoken,requestMethod);
                 callback.onData(res);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
+    public void sendStreamAsync(String host, String path, String contentType, long contentLength, InputStream data,
+			boolean useAccesstoken, String requestMethod, ProgressCallback progress, DataCallback callback) {
+		if (callback == null) {
+			System.err.println("callback must not be null!");
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				callback.onData(sendStream(host, path, contentType, data, contentLength, useAccesstoken, requestMethod,
+						progress));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+    public void sendFileAsync(String host, String path, String contentType, Path file, boolean useAccesstoken,
+			String requestMethod, ProgressCallback progress, DataCallback callback) {
+		if (callback == null) {
+			System.err.println("callback must not be null!");
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				callback.onData(sendFile(host, path, contentType, file, useAccesstoken, requestMethod, progress));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
     public void sendRequestAsync(String host, String path, JSONObject data, DataCallback callback) throws IOException {
 		sendRequestAsync(host, path, data, callback, accessTokenSupplier.get() != null, "POST");
     }
@@ -168,14 +385,14 @@ public class HttpHelper {
             System.err.println("callback must not be null!");
             return;
         }
-        new Thread(() -> {
+        executor.execute(() -> {
             try {
                 String res = sendRequest(host,path,data,useAccesstoken,requestMethod);
                 callback.onData(res);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
 }
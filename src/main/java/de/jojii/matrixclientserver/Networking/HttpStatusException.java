@@ -0,0 +1,31 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an error status.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String body;
+
+    public HttpStatusException(int statusCode, String body) {
+        super("HTTP " + statusCode + ": " + body);
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the response body, usually a matrix error json
+     */
+    public String getBody() {
+        return body;
+    }
+}
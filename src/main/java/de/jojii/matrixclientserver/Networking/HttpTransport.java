@@ -0,0 +1,156 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends a single HTTP request. {@link HttpHelper} builds the matrix specific
+ * parts (urls, access token, json) and hands the exchange to a transport.
+ *
+ * @see PooledHttpTransport
+ * @see UrlConnectionTransport
+ */
+public interface HttpTransport {
+
+    InputStream EMPTY_BODY = new ByteArrayInputStream(new byte[0]);
+
+    /**
+     * Execute the request. Error statuses do not throw, the caller has to check
+     * {@link Response#getStatusCode()}. The response must be closed.
+     *
+     * @throws IOException if no response could be received
+     */
+    Response execute(Request request) throws IOException;
+
+    class Request {
+        private final String method;
+        private final URL url;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private RequestBody body;
+        private int connectTimeout;
+        private int readTimeout;
+
+        public Request(String method, URL url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        public Request setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Request setBody(RequestBody body) {
+            this.body = body;
+            return this;
+        }
+
+        /**
+         * @param connectTimeout in milliseconds, 0 waits forever
+         */
+        public Request setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * @param readTimeout in milliseconds, 0 waits forever
+         */
+        public Request setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public RequestBody getBody() {
+            return body;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+    }
+
+    interface RequestBody {
+
+        /**
+         * @return the number of bytes {@link #writeTo(OutputStream)} will write, or
+         *         <code>-1</code> if unknown, in which case the body is sent chunked
+         */
+        long getContentLength();
+
+        void writeTo(OutputStream os) throws IOException;
+
+        /**
+         * @return <code>true</code> if {@link #writeTo(OutputStream)} can be called
+         *         more than once, which allows to retry the request
+         */
+        default boolean isRepeatable() {
+            return false;
+        }
+
+        static RequestBody of(byte[] data) {
+            return new RequestBody() {
+                @Override
+                public long getContentLength() {
+                    return data.length;
+                }
+
+                @Override
+                public boolean isRepeatable() {
+                    return true;
+                }
+
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    os.write(data);
+                }
+            };
+        }
+    }
+
+    interface Response extends Closeable {
+
+        int getStatusCode();
+
+        /**
+         * @param name case insensitive header name
+         * @return the header value or <code>null</code> if absent
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the response body, for error statuses as well. Never
+         *         <code>null</code>.
+         */
+        InputStream getBody();
+
+        /**
+         * Release the underlying connection. A connection whose body was read
+         * completely may be reused for later requests.
+         */
+        @Override
+        void close() throws IOException;
+    }
+}
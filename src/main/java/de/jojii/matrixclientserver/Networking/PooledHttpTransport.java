@@ -0,0 +1,921 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/1.1 transport keeping connections alive and reusing them per host.
+ * The number of connections per host can be limited, requests beyond the limit
+ * wait for a connection to become free, at most the request's connect timeout
+ * or {@link #DEFAULT_LEASE_TIMEOUT}.
+ * <p>
+ * Requests which have to go through a proxy, or use another protocol than
+ * http(s), are handed to the fallback transport.
+ * <p>
+ * Redirects within the same protocol are followed like
+ * {@link java.net.HttpURLConnection} does: 303 as <code>GET</code>, 307 and 308
+ * with the same method and a repeatable body, 301 and 302 for requests without
+ * body. The <code>Authorization</code> header is not sent to another host.
+ * <p>
+ * A request on a reused connection the server closed meanwhile is repeated if
+ * it failed before it was sent completely, or if its method is idempotent.
+ */
+public class PooledHttpTransport implements HttpTransport, Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    public static final long DEFAULT_IDLE_TIMEOUT = 20000;
+    public static final int DEFAULT_LEASE_TIMEOUT = 30000;
+
+    private static final int MAX_LINE_LENGTH = 65536;
+    private static final int MAX_DRAIN = 65536;
+    private static final int MAX_REDIRECTS = 5;
+    private static final long STALE_CHECK_AFTER = 1000;
+
+    private static volatile PooledHttpTransport shared;
+
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> hostLimits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> reserved = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> directHosts = new ConcurrentHashMap<>();
+    private final HttpTransport fallback;
+    private final long idleTimeout;
+    private volatile int maxConnectionsPerHost;
+    private volatile int leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT, new UrlConnectionTransport());
+    }
+
+    /**
+     * @param maxConnectionsPerHost default limit of concurrent connections to one
+     *                              host
+     * @param idleTimeout           milliseconds an unused connection is kept open
+     * @param fallback              transport for requests this one can not handle
+     */
+    public PooledHttpTransport(int maxConnectionsPerHost, long idleTimeout, HttpTransport fallback) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.fallback = fallback;
+    }
+
+    /**
+     * The transport shared by every {@link HttpHelper} that was not given its
+     * own. It does not limit the connections per host: every running sync holds
+     * a connection for its whole long poll, and the clients sharing it do not
+     * know of each other.
+     */
+    public static PooledHttpTransport shared() {
+        PooledHttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (PooledHttpTransport.class) {
+                transport = shared;
+                if (transport == null) {
+                    transport = new PooledHttpTransport(Integer.MAX_VALUE, DEFAULT_IDLE_TIMEOUT,
+                            new UrlConnectionTransport());
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Change the default connection limit for all hosts without an own limit.
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        for (Map.Entry<String, HostPool> entry : pools.entrySet()) {
+            entry.getValue().setLimit(limitOf(entry.getKey()));
+        }
+    }
+
+    /**
+     * @param leaseTimeout milliseconds a request without connect timeout waits
+     *                     for a free connection before failing, 0 waits forever
+     */
+    public void setLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Limit the concurrent connections to one host.
+     *
+     * @param host the host name
+     * @param port the port, <code>-1</code> for the protocol default
+     */
+    public synchronized void setMaxConnections(String protocol, String host, int port, int maxConnections) {
+        String key = poolKey(protocol, host, port);
+        hostLimits.put(key, maxConnections);
+        HostPool pool = pools.get(key);
+        if (pool != null) {
+            pool.setLimit(limitOf(key));
+        }
+    }
+
+    /**
+     * Allow connections to one host on top of its limit, e.g. for long polls
+     * which hold a connection each. Reservations of several callers add up.
+     *
+     * @param port        the port, <code>-1</code> for the protocol default
+     * @param connections connections to add, negative to give them back
+     */
+    public synchronized void reserveConnections(String protocol, String host, int port, int connections) {
+        String key = poolKey(protocol, host, port);
+        reserved.merge(key, connections, (a, b) -> a + b == 0 ? null : a + b);
+        HostPool pool = pools.get(key);
+        if (pool != null) {
+            pool.setLimit(limitOf(key));
+        }
+    }
+
+    /**
+     * @return connections reserved for a host
+     */
+    public int getReservedConnections(String protocol, String host, int port) {
+        return reserved.getOrDefault(poolKey(protocol, host, port), 0);
+    }
+
+    private int limitOf(String key) {
+        long limit = (long) hostLimits.getOrDefault(key, maxConnectionsPerHost) + reserved.getOrDefault(key, 0);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, limit));
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            Response response = executeOnce(request);
+            Request next = redirects < MAX_REDIRECTS ? redirect(request, response) : null;
+            if (next == null) {
+                return response;
+            }
+            response.close();
+            request = next;
+        }
+    }
+
+    /**
+     * @return the request to follow the redirect with, or <code>null</code> if
+     *         the response is no redirect or is not followed
+     */
+    private static Request redirect(Request request, Response response) throws IOException {
+        int status = response.getStatusCode();
+        String location = response.getHeader("Location");
+        if (location == null || (status != 301 && status != 302 && status != 303 && status != 307 && status != 308)) {
+            return null;
+        }
+        URL from = request.getUrl();
+        URL to = new URL(from, location);
+        if (!to.getProtocol().equalsIgnoreCase(from.getProtocol())) {
+            return null;
+        }
+        String method = request.getMethod();
+        RequestBody body = request.getBody();
+        if (status == 303 && !"HEAD".equalsIgnoreCase(method)) {
+            method = "GET";
+            body = null;
+        } else if (body != null && (status == 301 || status == 302 || !body.isRepeatable())) {
+            return null;
+        }
+        boolean sameHost = to.getHost().equalsIgnoreCase(from.getHost()) && to.getPort() == from.getPort();
+        Request next = new Request(method, to).setBody(body).setConnectTimeout(request.getConnectTimeout())
+                .setReadTimeout(request.getReadTimeout());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (!sameHost && "Authorization".equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (body == null && ("Content-Type".equalsIgnoreCase(name) || "Content-Encoding".equalsIgnoreCase(name))) {
+                continue;
+            }
+            next.setHeader(name, header.getValue());
+        }
+        return next;
+    }
+
+    private Response executeOnce(Request request) throws IOException {
+        URL url = request.getUrl();
+        String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+        if (!("http".equals(protocol) || "https".equals(protocol)) || !isDirect(url)) {
+            fallbacks.incrementAndGet();
+            return fallback.execute(request);
+        }
+
+        String key = poolKey(protocol, url.getHost(), url.getPort());
+        HostPool pool = pools.computeIfAbsent(key,
+                k -> new HostPool(limitOf(k)));
+        int timeout = request.getConnectTimeout() > 0 ? request.getConnectTimeout() : leaseTimeout;
+        Connection connection = pool.lease(timeout);
+        try {
+            if (connection != null && !isIdempotent(request.getMethod())
+                    && System.currentTimeMillis() - connection.lastUsed > STALE_CHECK_AFTER && connection.isClosedByPeer()) {
+                // such a request is not repeated, better not send it on a connection the server likely closed
+                connection.close();
+                connection = null;
+            }
+            if (connection != null) {
+                hits.incrementAndGet();
+                try {
+                    return exchange(pool, connection, request);
+                } catch (StaleConnectionException e) {
+                    connection.close();
+                    RequestBody body = request.getBody();
+                    if (body != null && !body.isRepeatable()) {
+                        throw e;
+                    }
+                    retries.incrementAndGet();
+                }
+            }
+            misses.incrementAndGet();
+            connection = open(url, request);
+            return exchange(pool, connection, request);
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            pool.release(null);
+            throw e;
+        }
+    }
+
+    private Response exchange(HostPool pool, Connection connection, Request request) throws IOException {
+        URL url = request.getUrl();
+        RequestBody body = request.getBody();
+        connection.socket.setSoTimeout(request.getReadTimeout());
+
+        int statusCode;
+        Map<String, String> headers;
+        String version;
+        try {
+            writeHead(connection.out, request);
+            if (body != null) {
+                if (body.getContentLength() >= 0) {
+                    body.writeTo(new NonClosingOutputStream(connection.out));
+                } else {
+                    ChunkedOutputStream chunked = new ChunkedOutputStream(connection.out);
+                    body.writeTo(chunked);
+                    chunked.finish();
+                }
+            }
+            connection.out.flush();
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            // the server can not have acted on a request it did not receive completely
+            throw new StaleConnectionException(e);
+        }
+        try {
+            connection.in.mark(1);
+            if (connection.in.read() == -1) {
+                throw new EOFException("connection closed by peer");
+            }
+            connection.in.reset();
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            if (isIdempotent(request.getMethod())) {
+                throw new StaleConnectionException(e);
+            }
+            throw e;
+        }
+
+        do {
+            String statusLine = readLine(connection.in);
+            if (statusLine == null) {
+                throw new EOFException("unexpected end of stream reading status line");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            version = parts[0];
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid status line: " + statusLine);
+            }
+            headers = readHeaders(connection.in);
+        } while (statusCode >= 100 && statusCode < 200);
+
+        String connectionHeader = headers.get("connection");
+        boolean reusable = "HTTP/1.1".equals(version)
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+        BodyInputStream in;
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || statusCode == 204 || statusCode == 304) {
+            in = new FixedLengthInputStream(connection.in, 0);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            in = new ChunkedInputStream(connection.in);
+        } else if (contentLength != null) {
+            try {
+                in = new FixedLengthInputStream(connection.in, Long.parseLong(contentLength.trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid content-length for " + url + ": " + contentLength);
+            }
+        } else {
+            in = new UntilCloseInputStream(connection.in);
+            reusable = false;
+        }
+        return new PooledResponse(pool, connection, statusCode, headers, in, reusable);
+    }
+
+    private static boolean isIdempotent(String method) {
+        switch (method.toUpperCase(Locale.ROOT)) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void writeHead(OutputStream out, Request request) throws IOException {
+        URL url = request.getUrl();
+        String target = url.getFile();
+        if (target.isEmpty()) {
+            target = "/";
+        }
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        RequestBody body = request.getBody();
+        if (body != null) {
+            long length = body.getContentLength();
+            if (length >= 0) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            } else {
+                head.append("Transfer-Encoding: chunked\r\n");
+            }
+        } else if ("POST".equalsIgnoreCase(request.getMethod()) || "PUT".equalsIgnoreCase(request.getMethod())) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private Connection open(URL url, Request request) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), request.getConnectTimeout());
+            socket.setSoTimeout(request.getReadTimeout());
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, true);
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+                ssl.startHandshake();
+                socket = ssl;
+            }
+            return new Connection(socket);
+        } catch (IOException | RuntimeException e) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+            throw e;
+        }
+    }
+
+    private boolean isDirect(URL url) {
+        String key = poolKey(url.getProtocol(), url.getHost(), url.getPort());
+        Boolean direct = directHosts.get(key);
+        if (direct == null) {
+            direct = true;
+            ProxySelector selector = ProxySelector.getDefault();
+            if (selector != null) {
+                try {
+                    List<Proxy> proxies = selector.select(url.toURI());
+                    direct = proxies.isEmpty() || proxies.get(0).type() == Proxy.Type.DIRECT;
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    direct = false;
+                }
+            }
+            directHosts.put(key, direct);
+        }
+        return direct;
+    }
+
+    private static String poolKey(String protocol, String host, int port) {
+        return protocol.toLowerCase(Locale.ROOT) + "://" + host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * Close all idle connections. Connections in use are closed once released.
+     */
+    @Override
+    public void close() {
+        for (HostPool pool : pools.values()) {
+            pool.closeIdle();
+        }
+    }
+
+    /**
+     * @return number of requests served by an already open connection
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests which had to open a new connection
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of requests repeated because a pooled connection had been
+     *         closed by the server
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of requests handed to the fallback transport
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    public int getIdleConnectionCount() {
+        int count = 0;
+        for (HostPool pool : pools.values()) {
+            count += pool.getIdleCount();
+        }
+        return count;
+    }
+
+    public int getLeasedConnectionCount() {
+        int count = 0;
+        for (HostPool pool : pools.values()) {
+            count += pool.getLeasedCount();
+        }
+        return count;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new TreeMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                headers.merge(name, value, (a, b) -> a + ", " + b);
+            }
+        }
+        return headers;
+    }
+
+    private class HostPool {
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private int limit;
+        private int leased;
+
+        HostPool(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = limit;
+            notifyAll();
+        }
+
+        /**
+         * Wait for a free slot.
+         *
+         * @return an idle connection or <code>null</code> if a new one has to be
+         *         opened
+         */
+        synchronized Connection lease(int timeout) throws IOException {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            while (leased >= limit) {
+                try {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("timeout waiting for a pooled connection");
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a pooled connection");
+                }
+            }
+            leased++;
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while ((connection = idle.pollLast()) != null) {
+                if (now - connection.lastUsed < idleTimeout && !connection.socket.isClosed()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+
+        /**
+         * @param connection a connection which can be reused, or <code>null</code>
+         */
+        synchronized void release(Connection connection) {
+            leased--;
+            long now = System.currentTimeMillis();
+            if (connection != null) {
+                connection.lastUsed = now;
+                idle.addLast(connection);
+                while (idle.size() > limit) {
+                    idle.pollFirst().close();
+                }
+            }
+            // leases take the newest connection, the oldest would otherwise never be closed
+            while (!idle.isEmpty() && now - idle.peekFirst().lastUsed >= idleTimeout) {
+                idle.pollFirst().close();
+            }
+            notify();
+        }
+
+        synchronized void closeIdle() {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+
+        synchronized int getIdleCount() {
+            return idle.size();
+        }
+
+        synchronized int getLeasedCount() {
+            return leased;
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final BufferedInputStream in;
+        final OutputStream out;
+        long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16384);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+        }
+
+        /**
+         * Look for the end of stream a server closing an idle connection leaves
+         * behind, waiting at most a millisecond.
+         */
+        boolean isClosedByPeer() {
+            try {
+                socket.setSoTimeout(1);
+                in.mark(1);
+                if (in.read() == -1) {
+                    return true;
+                }
+                in.reset();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static class PooledResponse implements Response {
+        private final HostPool pool;
+        private final Connection connection;
+        private final int statusCode;
+        private final Map<String, String> headers;
+        private final BodyInputStream body;
+        private final boolean reusable;
+        private boolean closed;
+
+        PooledResponse(HostPool pool, Connection connection, int statusCode, Map<String, String> headers,
+                       BodyInputStream body, boolean reusable) {
+            this.pool = pool;
+            this.connection = connection;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+            this.reusable = reusable;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean reuse = reusable && body.drain(MAX_DRAIN);
+            if (!reuse) {
+                connection.close();
+            }
+            pool.release(reuse ? connection : null);
+        }
+    }
+
+    private abstract static class BodyInputStream extends InputStream {
+        protected final InputStream in;
+        protected boolean eof;
+        private boolean failed;
+
+        BodyInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        protected abstract int doRead(byte[] b, int off, int len) throws IOException;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int n = doRead(b, off, len);
+                if (n == -1) {
+                    eof = true;
+                }
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Skip the rest of the body so the connection can be reused.
+         *
+         * @return <code>true</code> if the body was read completely
+         */
+        boolean drain(int limit) {
+            if (failed) {
+                return false;
+            }
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            try {
+                while (!eof && drained <= limit) {
+                    int n = read(buffer, 0, buffer.length);
+                    if (n > 0) {
+                        drained += n;
+                    }
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return eof;
+        }
+
+        @Override
+        public void close() {
+            // the connection is released by the response
+        }
+    }
+
+    private static class FixedLengthInputStream extends BodyInputStream {
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+            this.eof = length == 0;
+        }
+
+        @Override
+        protected int doRead(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("connection closed with " + remaining + " bytes remaining");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                eof = true;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    private static class ChunkedInputStream extends BodyInputStream {
+        private long chunkRemaining;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected int doRead(byte[] b, int off, int len) throws IOException {
+            if (chunkRemaining == 0) {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException("unexpected end of chunked body");
+                }
+                int extension = sizeLine.indexOf(';');
+                if (extension >= 0) {
+                    sizeLine = sizeLine.substring(0, extension);
+                }
+                try {
+                    chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid chunk size: " + sizeLine);
+                }
+                if (chunkRemaining == 0) {
+                    // trailers
+                    readHeaders(in);
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n == -1) {
+                throw new EOFException("unexpected end of chunked body");
+            }
+            chunkRemaining -= n;
+            if (chunkRemaining == 0) {
+                readLine(in);
+            }
+            return n;
+        }
+    }
+
+    private static class UntilCloseInputStream extends BodyInputStream {
+
+        UntilCloseInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected int doRead(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+    }
+
+    private static class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void finish() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void close() {
+            // the socket stays open for reuse
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // the socket stays open for reuse
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
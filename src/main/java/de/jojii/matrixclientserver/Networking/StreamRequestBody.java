@@ -0,0 +1,148 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import de.jojii.matrixclientserver.Callbacks.ProgressCallback;
+
+/**
+ * Request bodies streamed from a file or an input stream through pooled
+ * {@link TransferBuffers}, reporting the progress after every buffer.
+ */
+public abstract class StreamRequestBody implements HttpTransport.RequestBody {
+
+    private final long contentLength;
+    private final ProgressCallback progress;
+
+    StreamRequestBody(long contentLength, ProgressCallback progress) {
+        this.contentLength = contentLength;
+        this.progress = progress;
+    }
+
+    /**
+     * A file sent as a whole, can be sent again on a retry.
+     */
+    public static StreamRequestBody of(Path file, ProgressCallback progress) throws IOException {
+        return new FileBody(file, 0, java.nio.file.Files.size(file), progress);
+    }
+
+    /**
+     * @param contentLength bytes to send, <code>-1</code> to send the stream until
+     *                      its end with chunked transfer encoding
+     */
+    public static StreamRequestBody of(InputStream data, long contentLength, ProgressCallback progress) {
+        return new InputStreamBody(data, contentLength, progress);
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] buffer = TransferBuffers.acquire();
+        try {
+            long sent = 0;
+            report(0);
+            while (contentLength < 0 || sent < contentLength) {
+                int length = contentLength < 0 ? buffer.length : (int) Math.min(buffer.length, contentLength - sent);
+                int read = read(buffer, length);
+                if (read == -1) {
+                    break;
+                }
+                os.write(buffer, 0, read);
+                sent += read;
+                report(sent);
+            }
+            if (contentLength >= 0 && sent < contentLength) {
+                throw new EOFException("body ended after " + sent + " of " + contentLength + " bytes");
+            }
+        } finally {
+            TransferBuffers.release(buffer);
+            finish();
+        }
+    }
+
+    private void report(long sent) {
+        if (progress != null) {
+            progress.onProgress(sent, contentLength);
+        }
+    }
+
+    /**
+     * @return bytes read into the start of the buffer, -1 at the end
+     */
+    abstract int read(byte[] buffer, int length) throws IOException;
+
+    void finish() throws IOException {
+    }
+
+    private static class FileBody extends StreamRequestBody {
+        private final Path file;
+        private final long position;
+        private FileChannel channel;
+        private long offset;
+
+        FileBody(Path file, long position, long length, ProgressCallback progress) {
+            super(length, progress);
+            this.file = file;
+            this.position = position;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        int read(byte[] buffer, int length) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                offset = position;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, 0, length), offset);
+            if (read > 0) {
+                offset += read;
+            }
+            return read;
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static class InputStreamBody extends StreamRequestBody {
+        private final InputStream data;
+
+        InputStreamBody(InputStream data, long contentLength, ProgressCallback progress) {
+            super(contentLength, progress);
+            this.data = data;
+        }
+
+        @Override
+        int read(byte[] buffer, int length) throws IOException {
+            // fill the buffer, so whole buffers are written to the socket
+            int filled = 0;
+            while (filled < length) {
+                int read = data.read(buffer, filled, length - filled);
+                if (read == -1) {
+                    return filled == 0 ? -1 : filled;
+                }
+                filled += read;
+            }
+            return filled;
+        }
+    }
+}
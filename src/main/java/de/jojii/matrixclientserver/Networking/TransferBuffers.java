@@ -0,0 +1,38 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large buffers for streaming request bodies, so uploads neither
+ * allocate per request nor go through small buffers. Writes of a whole buffer
+ * bypass the buffering of the transports and go straight to the socket.
+ */
+final class TransferBuffers {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private TransferBuffers() {
+    }
+
+    static byte[] acquire() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(byte[] buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes sent and received for one endpoint, as they went over the wire and as
+ * they were before compression or after decompression.
+ */
+public class TransferStats {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong requestWireBytes = new AtomicLong();
+    private final AtomicLong responseWireBytes = new AtomicLong();
+    private final AtomicLong responseDecodedBytes = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+
+    void onRequest(long bytes, long wireBytes) {
+        requests.incrementAndGet();
+        if (bytes > 0) {
+            requestBytes.addAndGet(bytes);
+            requestWireBytes.addAndGet(wireBytes);
+        }
+    }
+
+    void onCompressedResponse() {
+        compressedResponses.incrementAndGet();
+    }
+
+    void onResponseWire(long bytes) {
+        responseWireBytes.addAndGet(bytes);
+    }
+
+    void onResponseDecoded(long bytes) {
+        responseDecodedBytes.addAndGet(bytes);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return request body bytes before compression, bodies of unknown length
+     *         are not counted
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    public long getRequestWireBytes() {
+        return requestWireBytes.get();
+    }
+
+    /**
+     * @return response body bytes as received, still compressed
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.get();
+    }
+
+    /**
+     * @return response body bytes read after decompression
+     */
+    public long getResponseDecodedBytes() {
+        return responseDecodedBytes.get();
+    }
+
+    public long getCompressedResponseCount() {
+        return compressedResponses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + requests + ", requestBytes=" + requestBytes + ", requestWireBytes=" + requestWireBytes
+                + ", responseWireBytes=" + responseWireBytes + ", responseDecodedBytes=" + responseDecodedBytes;
+    }
+}
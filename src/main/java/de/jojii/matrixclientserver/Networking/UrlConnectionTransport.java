@@ -0,0 +1,82 @@
+package de.jojii.matrixclientserver.Networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * Transport based on {@link HttpURLConnection}. Connection reuse is left to
+ * the JDK. Used as fallback by {@link PooledHttpTransport}, e.g. when a proxy
+ * is configured.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) request.getUrl().openConnection();
+        http.setRequestMethod(request.getMethod());
+        http.setConnectTimeout(request.getConnectTimeout());
+        http.setReadTimeout(request.getReadTimeout());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            http.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        RequestBody body = request.getBody();
+        if (body != null) {
+            http.setDoOutput(true);
+            long contentLength = body.getContentLength();
+            if (contentLength >= 0) {
+                http.setFixedLengthStreamingMode(contentLength);
+            } else {
+                http.setChunkedStreamingMode(0);
+            }
+        }
+
+        http.connect();
+
+        if (body != null) {
+            try (OutputStream os = http.getOutputStream()) {
+                body.writeTo(os);
+            }
+        }
+
+        int statusCode = http.getResponseCode();
+        InputStream in = statusCode >= 400 ? http.getErrorStream() : http.getInputStream();
+        return new UrlConnectionResponse(http, statusCode, in != null ? in : EMPTY_BODY);
+    }
+
+    private static class UrlConnectionResponse implements Response {
+        private final HttpURLConnection http;
+        private final int statusCode;
+        private final InputStream body;
+
+        UrlConnectionResponse(HttpURLConnection http, int statusCode, InputStream body) {
+            this.http = http;
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return http.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the stream keeps the connection in the JDK keep-alive cache
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BulkUploaderTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@AfterEach
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void submitAll_limitsUploadsInFlight() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		BulkUploader uploader = new BulkUploader((item, progress) -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			progress.onProgress(100, 100);
+			running.decrementAndGet();
+			return "mxc://starship-enterprise.com/" + item.getFile().getFileName();
+		}, executor, 3);
+		List<BulkUploader.Item> items = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			items.add(new BulkUploader.Item("image/png", Paths.get("log" + i + ".png")));
+		}
+
+		List<CompletableFuture<String>> results = uploader.submitAll(items);
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals("mxc://starship-enterprise.com/log" + i + ".png", results.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(3, maxRunning.get());
+		assertEquals(20, uploader.getCompletedCount());
+		assertEquals(2000, uploader.getBytesUploaded());
+		assertTrue(uploader.getThroughput() > 0);
+	}
+
+	@Test
+	void submit_startsHigherPriorityFirst() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		BulkUploader uploader = new BulkUploader((item, progress) -> {
+			String name = item.getFile().toString();
+			if (name.equals("blocker")) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			order.add(name);
+			return name;
+		}, executor, 1);
+
+		CompletableFuture<String> blocker = uploader.submit(new BulkUploader.Item("text/plain", Paths.get("blocker")));
+		uploader.submit(new BulkUploader.Item("text/plain", Paths.get("low"), 0));
+		uploader.submit(new BulkUploader.Item("text/plain", Paths.get("high"), 10));
+		CompletableFuture<String> last = uploader.submit(new BulkUploader.Item("text/plain", Paths.get("low2"), 0));
+		assertEquals(3, uploader.getQueuedCount());
+		release.countDown();
+		blocker.get(5, TimeUnit.SECONDS);
+		last.get(5, TimeUnit.SECONDS);
+
+		assertEquals("[blocker, high, low, low2]", order.toString());
+	}
+
+	@Test
+	void submit_failureOnlyFailsItsItem() throws Exception {
+		BulkUploader uploader = new BulkUploader((item, progress) -> {
+			if (item.getContentLength() == 0) {
+				throw new IOException("empty");
+			}
+			return "mxc://starship-enterprise.com/report";
+		}, executor, 2);
+
+		CompletableFuture<String> failing = uploader
+				.submit(new BulkUploader.Item("text/plain", new ByteArrayInputStream(new byte[0]), 0, 0));
+		CompletableFuture<String> working = uploader
+				.submit(new BulkUploader.Item("text/plain", new ByteArrayInputStream(new byte[1]), 1, 0));
+
+		assertEquals("mxc://starship-enterprise.com/report", working.get(5, TimeUnit.SECONDS));
+		assertThrows(ExecutionException.class, () -> failing.get(5, TimeUnit.SECONDS));
+		assertEquals(1, uploader.getFailedCount());
+	}
+
+	@Test
+	void submitAll_runsUploadsOnOwnThreads() throws Exception {
+		List<String> threads = Collections.synchronizedList(new ArrayList<>());
+		BulkUploader uploader = new BulkUploader((item, progress) -> {
+			threads.add(Thread.currentThread().getName());
+			return "mxc://starship-enterprise.com/" + item.getFile().getFileName();
+		}, 2);
+		List<BulkUploader.Item> items = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			items.add(new BulkUploader.Item("image/png", Paths.get("log" + i + ".png")));
+		}
+
+		for (CompletableFuture<String> result : uploader.submitAll(items)) {
+			result.get(5, TimeUnit.SECONDS);
+		}
+
+		assertEquals(10, threads.size());
+		for (String thread : threads) {
+			assertTrue(thread.startsWith("matrix-upload-"));
+		}
+	}
+
+	@Test
+	void submit_failsOnShutDownExecutor() {
+		executor.shutdown();
+		BulkUploader uploader = new BulkUploader((item, progress) -> "mxc://starship-enterprise.com/never", executor, 2);
+
+		CompletableFuture<String> result = uploader.submit(new BulkUploader.Item("image/png", Paths.get("log.png")));
+
+		ExecutionException failure = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+		assertTrue(failure.getCause() instanceof RejectedExecutionException);
+		assertEquals(0, uploader.getInFlightCount());
+		assertEquals(1, uploader.getFailedCount());
+	}
+}
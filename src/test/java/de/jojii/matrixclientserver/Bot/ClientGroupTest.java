@@ -0,0 +1,123 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.jojii.matrixclientserver.File.InMemorySyncTokenStore;
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
+
+class ClientGroupTest {
+
+	private HttpServer server;
+	private ExecutorService pollThreads;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/_matrix/client/r0/login", exchange -> {
+			String user = new JSONObject(readAll(exchange.getRequestBody())).getString("user");
+			JSONObject login = new JSONObject();
+			login.put("user_id", user);
+			login.put("access_token", "token-" + user);
+			login.put("device_id", "group");
+			login.put("home_server", "starship-enterprise.com");
+			respond(exchange, login.toString());
+		});
+		server.createContext("/_matrix/client/r0/user/", exchange -> respond(exchange, "{\"filter_id\":\"1\"}"));
+		server.createContext("/_matrix/client/r0/sync", exchange -> {
+			String query = exchange.getRequestURI().getQuery();
+			int since = query.contains("since=") ? Integer.parseInt(query.substring(query.indexOf("since=") + 6)) : 0;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			respond(exchange, "{\"next_batch\":\"" + (since + 1) + "\"}");
+		});
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		pollThreads = Executors.newFixedThreadPool(2);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop(0);
+		pollThreads.shutdownNow();
+	}
+
+	@Test
+	void newClient_syncsAccountsOnSharedThreads() throws Exception {
+		SyncScheduler scheduler = new SyncScheduler(pollThreads, 0);
+		InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+		PooledHttpTransport transport = new PooledHttpTransport();
+		ClientGroup group = new ClientGroup(transport, HttpExecutor.bounded(2, 16), scheduler, tokens);
+		String[] users = { "@data:starship-enterprise.com", "@geordi:starship-enterprise.com",
+				"@worf:starship-enterprise.com" };
+		int port = server.getAddress().getPort();
+		for (String user : users) {
+			group.newClient("http://127.0.0.1:" + port).loginSync(user, "doesnotcompute");
+		}
+		assertEquals(3, transport.getReservedConnections("http", "127.0.0.1", port));
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!allSyncedTwice(tokens, users) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(allSyncedTwice(tokens, users));
+		assertEquals(3, scheduler.getLoopCount());
+
+		group.close();
+		deadline = System.currentTimeMillis() + 10000;
+		while (scheduler.getLoopCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, scheduler.getLoopCount());
+		assertEquals(0, group.getClients().size());
+		assertEquals(0, transport.getReservedConnections("http", "127.0.0.1", port));
+	}
+
+	private static boolean allSyncedTwice(InMemorySyncTokenStore tokens, String[] users) {
+		for (String user : users) {
+			String token = tokens.load(user + "/group");
+			if (token == null || Integer.parseInt(token) < 2) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void respond(HttpExchange exchange, String response) throws IOException {
+		byte[] body = response.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, body.length);
+		exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
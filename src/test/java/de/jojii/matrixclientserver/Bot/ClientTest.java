@@ -1,7 +1,10 @@
 package de.jojii.matrixclientserver.Bot;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNotNull;
 import static org.mockito.ArgumentMatchers.isNull;
@@ -12,21 +15,31 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.internal.matchers.Any;
 
 import de.jojii.matrixclientserver.Callbacks.DataCallback;
 import de.jojii.matrixclientserver.Callbacks.EmptyCallback;
+import de.jojii.matrixclientserver.File.InMemorySyncTokenStore;
+import de.jojii.matrixclientserver.File.UploadIndex;
 import de.jojii.matrixclientserver.Networking.HttpHelper;
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
 
 class ClientTest {
 
@@ -132,7 +145,7 @@ class ClientTest {
 		jsonArray.put("!rGkalNKwzOdTviJzbY:starship-enterprise.com");
 		jsonResponse.put("@picard:starship-enterprise.com", jsonArray);
 
-		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNull(), eq(true), eq("GET")))
+		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNull(), eq(true), eq("GET"), eq(true)))
 				.thenReturn(jsonResponse.toString());
 
 		Map<String, List<String>> directRoomMap = client.getDirectChatRoomsMapSync();
@@ -147,9 +160,8 @@ class ClientTest {
 
 		// no direct message room for @geordi found, will need to create
 		String expectedURL = "_matrix/client/r0/user/@data:starship-enterprise.com/account_data/m.direct";
-		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNull(), eq(true), eq("GET")))
-				.thenReturn(new JSONObject().toString());
-		// TODO do not deliver empty but other, then test if correct update
+		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNull(), eq(true), eq("GET"), eq(true)))
+				.thenThrow(new HttpStatusException(404, "{\"errcode\":\"M_NOT_FOUND\"}"));
 
 		expectedURL = "_matrix/client/r0/createRoom";
 		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNotNull(), eq(true), eq("POST"), eq(true)))
@@ -159,6 +171,88 @@ class ClientTest {
 		assertEquals("!geordihere:starship-enterprise.com", roomId);
 	}
 
+	@Test
+	void getOrCreateDirectChatRoomSync_keepsMapOnServerError() throws IOException {
+		final Client client = new Client(httpHelper, true);
+		performLogin(client);
+
+		String expectedURL = "_matrix/client/r0/user/@data:starship-enterprise.com/account_data/m.direct";
+		when(httpHelper.sendRequest(isNull(), startsWith(expectedURL), isNull(), eq(true), eq("GET"), eq(true)))
+				.thenThrow(new HttpStatusException(503, "{\"errcode\":\"M_UNKNOWN\"}"));
+
+		assertThrows(HttpStatusException.class, () -> client.getOrCreateDirectChatRoomSync("@geordi:starship-enterprise.com"));
+		assertFalse(client.getDirectChatIndex().isLoaded());
+		verify(httpHelper, never()).sendRequest(isNull(), startsWith("_matrix/client/r0/createRoom"), any(), eq(true),
+				eq("POST"), eq(true));
+	}
+
+	@Test
+	void getRoomMembersSync_answersFromCache() throws IOException {
+		final Client client = new Client(httpHelper, true);
+		client.setRoomMemberCache(new RoomMemberCache());
+
+		final String expectedURL = "_matrix/client/r0/rooms/!bridge:starship-enterprise.com/joined_members";
+		when(httpHelper.sendRequest(isNull(), eq(expectedURL), isNull(), eq(true), eq("GET"), eq(true)))
+				.thenReturn("{\"joined\":{\"@picard:starship-enterprise.com\":{\"display_name\":\"Picard\"}}}");
+
+		assertEquals(1, client.getRoomMembersSync("!bridge:starship-enterprise.com").size());
+		List<Member> members = client.getRoomMembersSync("!bridge:starship-enterprise.com");
+
+		assertEquals("Picard", members.get(0).getDisplay_name());
+		verify(httpHelper, times(1)).sendRequest(isNull(), eq(expectedURL), isNull(), eq(true), eq("GET"), eq(true));
+	}
+
+	@Test
+	void sendFileSync_skipsKnownContent(@TempDir Path directory) throws IOException {
+		final Client client = new Client(httpHelper, true);
+		client.setUploadIndex(new UploadIndex(directory.resolve("uploads.idx")));
+
+		when(httpHelper.sendFile(isNull(), eq(HttpHelper.URLs.upload), eq("image/png"), any(Path.class), eq(true),
+				eq("POST"), isNull())).thenReturn("{\"content_uri\":\"mxc://starship-enterprise.com/logo\"}");
+
+		assertEquals("mxc://starship-enterprise.com/logo", client.sendFileSync("image/png",
+				new ByteArrayInputStream("logo".getBytes(StandardCharsets.UTF_8)), null));
+		assertEquals("mxc://starship-enterprise.com/logo", client.sendFileSync("image/png",
+				new ByteArrayInputStream("logo".getBytes(StandardCharsets.UTF_8)), null));
+
+		verify(httpHelper, times(1)).sendFile(isNull(), eq(HttpHelper.URLs.upload), eq("image/png"), any(Path.class),
+				eq(true), eq("POST"), isNull());
+	}
+
+	@Test
+	void login_reusesStoredFilterId() throws IOException {
+		InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+		ThreadPoolExecutor noPolls = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new ThreadPoolExecutor.DiscardPolicy());
+		noPolls.shutdown();
+		SyncFilter filter = new SyncFilter().setLazyLoadMembers(true).setTimelineLimit(10);
+		final String expectedURL = "_matrix/client/r0/user/@data:starship-enterprise.com/filter";
+
+		Client client = new Client(httpHelper, false);
+		client.setSyncTokenStore(tokens);
+		client.setSyncScheduler(new SyncScheduler(noPolls, 0));
+		client.setSyncFilter(filter);
+		performLogin(client);
+
+		ArgumentCaptor<JSONObject> filterCaptor = ArgumentCaptor.forClass(JSONObject.class);
+		ArgumentCaptor<DataCallback> callbackCaptor = ArgumentCaptor.forClass(DataCallback.class);
+		verify(httpHelper).sendRequestAsync(isNull(), eq(expectedURL), filterCaptor.capture(), callbackCaptor.capture(),
+				eq(true), eq("POST"));
+		assertEquals(10, filterCaptor.getValue().getJSONObject("room").getJSONObject("timeline").getInt("limit"));
+		callbackCaptor.getValue().onData("{\"filter_id\":\"42\"}");
+		assertEquals("42", tokens.load("filter/" + client.getHost() + "/@data:starship-enterprise.com/" + filter.getHash()));
+
+		// a restarted client with the same filter skips the upload
+		Client restarted = new Client(httpHelper, false);
+		restarted.setSyncTokenStore(tokens);
+		restarted.setSyncScheduler(new SyncScheduler(noPolls, 0));
+		restarted.setSyncFilter(new SyncFilter().setTimelineLimit(10).setLazyLoadMembers(true));
+		performLogin(restarted);
+
+		verify(httpHelper, times(1)).sendRequestAsync(isNull(), eq(expectedURL), any(JSONObject.class),
+				any(DataCallback.class), eq(true), eq("POST"));
+	}
+
 	private void performLogin(Client client) throws IOException {
 		JSONObject loginResponse = new JSONObject();
 		loginResponse.put("user_id", "@data:starship-enterprise.com");
@@ -0,0 +1,112 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class DirectChatIndexTest {
+
+	private final DirectChatIndex index = new DirectChatIndex();
+
+	@Test
+	void getOrCreate_sharesCreationForSameUser() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		CountDownLatch creating = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> index.getOrCreate("@picard:starship-enterprise.com", userId -> {
+					creating.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return "!room" + created.incrementAndGet() + ":starship-enterprise.com";
+				}, mDirect -> {
+				})));
+			}
+			assertTrue(creating.await(5, TimeUnit.SECONDS));
+			Thread.sleep(50);
+			release.countDown();
+			for (Future<String> result : results) {
+				assertEquals("!room1:starship-enterprise.com", result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, created.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void getOrCreate_coalescesWritesInFlight() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<JSONObject> written = new ArrayList<>();
+		DirectChatIndex.Writer writer = mDirect -> {
+			synchronized (written) {
+				written.add(mDirect);
+			}
+			writing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<String> first = executor.submit(() -> index.getOrCreate("@riker:starship-enterprise.com",
+					userId -> "!riker", writer));
+			assertTrue(writing.await(5, TimeUnit.SECONDS));
+			List<Future<String>> others = new ArrayList<>();
+			for (String user : new String[] { "@data", "@worf", "@troi" }) {
+				others.add(executor.submit(() -> index.getOrCreate(user, userId -> "!" + userId, writer)));
+			}
+			Thread.sleep(100);
+			release.countDown();
+			first.get(5, TimeUnit.SECONDS);
+			for (Future<String> other : others) {
+				other.get(5, TimeUnit.SECONDS);
+			}
+
+			assertEquals(2, written.size());
+			assertEquals(4, written.get(1).length());
+			assertEquals(2, index.getCoalescedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void load_keepsUnsavedRooms() throws IOException {
+		index.load(new JSONObject().put("@data", new JSONArray().put("!data")));
+		try {
+			index.getOrCreate("@worf", userId -> "!worf", mDirect -> {
+				throw new IOException("offline");
+			});
+		} catch (IOException expected) {
+		}
+
+		// an older m.direct from the sync must not drop the room not written yet
+		index.load(new JSONObject().put("@data", new JSONArray().put("!data")));
+
+		assertEquals("!worf", index.getRoom("@worf"));
+		assertEquals("!data", index.getRoom("@data"));
+	}
+}
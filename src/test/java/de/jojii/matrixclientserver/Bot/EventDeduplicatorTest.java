@@ -0,0 +1,82 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+class EventDeduplicatorTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void filter_dropsRepeatedEventsWithinWindow() {
+		EventDeduplicator deduplicator = new EventDeduplicator(2);
+
+		assertEquals(2, deduplicator.filter(events("$1", "$2")).size());
+		List<RoomEvent> fresh = deduplicator.filter(events("$2", "$3"));
+
+		assertEquals(1, fresh.size());
+		assertEquals("$3", fresh.get(0).getEvent_id());
+		assertEquals(1, deduplicator.getDuplicateCount());
+		// $1 fell out of the window
+		assertTrue(deduplicator.firstSeen("$1"));
+	}
+
+	@Test
+	void filter_remembersOlderEventsAcrossRestart() throws IOException {
+		Path file = directory.resolve("events.bloom");
+		EventDeduplicator deduplicator = EventDeduplicator.persistent(file, 1000, 0.0001);
+		deduplicator.filter(events("$1", "$2", "$3"));
+		deduplicator.flush();
+
+		EventDeduplicator restarted = EventDeduplicator.persistent(file, 1000, 0.0001);
+
+		assertFalse(restarted.firstSeen("$2"));
+		assertTrue(restarted.firstSeen("$4"));
+	}
+
+	@Test
+	void rollingBloomFilter_keepsFixedSizeAndForgetsOldGenerations() {
+		RollingBloomFilter filter = new RollingBloomFilter(100, 0.001);
+		long size = filter.getSizeInBytes();
+
+		for (int i = 0; i < 1000; i++) {
+			filter.put("$" + i);
+		}
+
+		assertEquals(size, filter.getSizeInBytes());
+		assertTrue(filter.mightContain("$999"));
+		assertTrue(filter.mightContain("$900"));
+		int remembered = 0;
+		for (int i = 0; i < 100; i++) {
+			if (filter.mightContain("$" + i)) {
+				remembered++;
+			}
+		}
+		assertTrue(remembered < 5);
+	}
+
+	private static List<RoomEvent> events(String... ids) {
+		List<RoomEvent> events = new ArrayList<>();
+		for (String id : ids) {
+			JSONObject event = new JSONObject();
+			event.put("type", "m.room.message");
+			event.put("event_id", id);
+			event.put("content", new JSONObject());
+			events.add(RoomEvent.fetchRoomEvent(event, "!bridge:starship-enterprise.com"));
+		}
+		return events;
+	}
+}
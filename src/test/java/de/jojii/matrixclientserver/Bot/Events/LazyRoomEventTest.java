@@ -0,0 +1,31 @@
+package de.jojii.matrixclientserver.Bot.Events;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LazyRoomEventTest {
+
+    @Test
+    void getters_readTopLevelFieldsOnly() {
+        final LazyRoomEvent event = new LazyRoomEvent("{\"content\":{\"type\":\"nested\",\"sender\":\"@nested:example.org\",\"body\":\"hi\"},"
+                + "\"unsigned\":{\"age\":12},\"origin_server_ts\":1,\"type\":\"m.room.message\","
+                + "\"sender\":\"@me:example.org\",\"event_id\":\"$abc\"}", "!room:example.org");
+
+        assertEquals("m.room.message", event.getType());
+        assertEquals("@me:example.org", event.getSender());
+        assertEquals("$abc", event.getEvent_id());
+        assertEquals("!room:example.org", event.getRoom_id());
+        assertEquals("hi", RoomEvent.getBodyFromMessageEvent(event));
+        assertSame(event.getRaw(), event.getRaw());
+    }
+
+    @Test
+    void getters_missingFieldsAndEscapes() {
+        final LazyRoomEvent event = new LazyRoomEvent("{\"type\":\"m.\\u0074yping\",\"content\":{\"user_ids\":[]}}", "!room:example.org");
+
+        assertEquals("m.typing", event.getType());
+        assertEquals("", event.getEvent_id());
+        assertEquals("", event.getSender());
+    }
+}
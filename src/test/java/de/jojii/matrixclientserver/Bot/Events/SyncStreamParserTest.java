@@ -0,0 +1,104 @@
+package de.jojii.matrixclientserver.Bot.Events;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncStreamParserTest {
+
+    private static final String SYNC = "{\"account_data\":{\"events\":[{\"type\":\"m.direct\",\"content\":{\"@a:example.org\":[\"!x:example.org\"]}}]},"
+            + "\"rooms\":{\"join\":{"
+            + "\"!one:example.org\":{\"summary\":{\"m.heroes\":[\"@a:example.org\"]},"
+            + "\"state\":{\"events\":[{\"type\":\"m.room.name\",\"event_id\":\"$2\",\"sender\":\"@a:example.org\",\"content\":{\"name\":\"{[\\\"]}\"}}]},"
+            + "\"timeline\":{\"limited\":false,\"events\":[{\"type\":\"m.room.message\",\"event_id\":\"$1\",\"sender\":\"@a:example.org\",\"content\":{\"body\":\"  line one\\n  line two  \",\"msgtype\":\"m.text\"}}],\"prev_batch\":\"p1\"},"
+            + "\"unread_notifications\":{\"highlight_count\":0,\"notification_count\":1}},"
+            + "\"!two:example.org\":{\"timeline\":{\"events\":[]},\"ephemeral\":{\"events\":[{\"type\":\"m.typing\",\"content\":{\"user_ids\":[]}}]}}},"
+            + "\"invite\":{\"!three:example.org\":{\"invite_state\":{\"events\":[{\"type\":\"m.room.member\",\"sender\":\"@b:example.org\",\"state_key\":\"@me:example.org\",\"content\":{\"membership\":\"invite\"}}]}}},"
+            + "\"leave\":{}},"
+            + "\"presence\":{\"events\":[]},\"device_one_time_keys_count\":{\"signed_curve25519\":0},"
+            + "\"next_batch\":\"s42_1\"}";
+
+    @Test
+    void parse_matchesParseAllEvents() throws IOException {
+        List<RoomEvent> streamed = new ArrayList<>();
+        List<String> rooms = new ArrayList<>();
+
+        String nextBatch = SyncStreamParser.parse(new StringReader(SYNC), (roomId, roomEvents) -> {
+            rooms.add(roomId);
+            streamed.addAll(roomEvents);
+        });
+
+        assertEquals("s42_1", nextBatch);
+        assertEquals(3, rooms.size());
+        assertTrue(rooms.containsAll(Arrays.asList("!one:example.org", "!two:example.org", "!three:example.org")));
+
+        List<RoomEvent> eager = RoomEvent.parseAllEvents(new JSONObject(SYNC));
+        assertEquals(describe(eager), describe(streamed));
+    }
+
+    @Test
+    void parse_keepsContentUnchanged() throws IOException {
+        List<RoomEvent> streamed = new ArrayList<>();
+
+        SyncStreamParser.parse(new StringReader(SYNC), (roomId, roomEvents) -> streamed.addAll(roomEvents));
+
+        RoomEvent message = streamed.stream().filter(e -> "$1".equals(e.getEvent_id())).findFirst().get();
+        assertEquals("  line one\n  line two  ", RoomEvent.getBodyFromMessageEvent(message));
+        RoomEvent name = streamed.stream().filter(e -> "$2".equals(e.getEvent_id())).findFirst().get();
+        assertEquals("{[\"]}", name.getContent().getString("name"));
+    }
+
+    @Test
+    void parse_lazyMatchesEager() throws IOException {
+        List<RoomEvent> lazy = new ArrayList<>();
+
+        SyncStreamParser.parse(new StringReader(SYNC), (roomId, roomEvents) -> lazy.addAll(roomEvents), true);
+
+        assertTrue(lazy.stream().allMatch(e -> e instanceof LazyRoomEvent));
+        assertEquals(describe(RoomEvent.parseAllEvents(new JSONObject(SYNC))), describe(lazy));
+    }
+
+    @Test
+    void parse_reportsAccountData() throws IOException {
+        List<String> types = new ArrayList<>();
+        List<JSONObject> contents = new ArrayList<>();
+
+        SyncStreamParser.parse(new StringReader(SYNC), new SyncStreamParser.Listener() {
+            @Override
+            public void onRoomEvents(String roomId, List<RoomEvent> roomEvents) {
+            }
+
+            @Override
+            public void onAccountData(String type, JSONObject content) {
+                types.add(type);
+                contents.add(content);
+            }
+        });
+
+        assertEquals(Arrays.asList("m.direct"), types);
+        assertEquals("!x:example.org", contents.get(0).getJSONArray("@a:example.org").getString(0));
+    }
+
+    @Test
+    void parse_withoutRooms() throws IOException {
+        String nextBatch = SyncStreamParser.parse(new StringReader("{\"next_batch\":\"s1\",\"rooms\":null}"),
+                (roomId, roomEvents) -> fail("no events expected"));
+
+        assertEquals("s1", nextBatch);
+    }
+
+    private static List<String> describe(List<RoomEvent> events) {
+        return events.stream()
+                .map(e -> e.getRoom_id() + "|" + e.getType() + "|" + e.getEvent_id() + "|" + e.getSender() + "|" + e.getContent())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,687 @@
+package de.jojii.matrixclientserver.Bot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process homeserver on the JDK's HTTP server, for tests of the whole
+ * client over real sockets. It knows the endpoints the client uses: password
+ * and JWT login, whoami, filters, long polling <code>/sync</code>,
+ * <code>/send</code>, <code>/joined_members</code> and media upload.
+ * <p>
+ * Rooms and their members are set up with {@link #createRoom(String, String...)}.
+ * All events, sent or scripted with {@link #addEvent(String, String, String, JSONObject)}
+ * and {@link #script(String, String, int, long)}, go into one stream; a sync
+ * token is the position in it, and a sync returns the events after it in rooms
+ * the user is joined to. Sent events carry their transaction id for the
+ * sending device like on a real server, so a client can match its echo.
+ * <p>
+ * Latency and errors can be injected per endpoint, see
+ * {@link #setLatency(String, long, long)}, {@link #setErrorRate(String, double, int)}
+ * and {@link #failNext(String, int, int)}.
+ */
+public class FakeHomeserver implements AutoCloseable {
+
+	public static final String ALL = "*";
+	public static final String LOGIN = "login";
+	public static final String WHOAMI = "whoami";
+	public static final String FILTER = "filter";
+	public static final String SYNC = "sync";
+	public static final String SEND = "send";
+	public static final String JOINED_MEMBERS = "joined_members";
+	public static final String UPLOAD = "upload";
+
+	private static final String CLIENT = "/_matrix/client/r0/";
+
+	private final String serverName;
+	private final HttpServer server;
+	private final ExecutorService handlers;
+	private final ScheduledExecutorService timer;
+
+	private final List<StoredEvent> events = new ArrayList<>();
+	private final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
+	private final Map<String, String> users = new ConcurrentHashMap<>();
+	private final Map<String, String> sentTxnIds = new ConcurrentHashMap<>();
+	private final Map<String, byte[]> media = new ConcurrentHashMap<>();
+	private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+	private final AtomicInteger filters = new AtomicInteger();
+	private final AtomicInteger logins = new AtomicInteger();
+	private final AtomicInteger uploads = new AtomicInteger();
+	private volatile long maxPollTimeout = 5000;
+	private volatile boolean closed;
+
+	public FakeHomeserver() throws IOException {
+		this("starship-enterprise.com");
+	}
+
+	public FakeHomeserver(String serverName) throws IOException {
+		this.serverName = serverName;
+		// only read when the first server is created: without it the server's separate
+		// header and body writes wait for the client's delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		server.createContext("/_matrix/", this::handle);
+		// long polls hold their thread until they are answered
+		handlers = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "fake-homeserver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "fake-homeserver-script");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	/**
+	 * @return the base url to create clients with
+	 */
+	public String getHost() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public String getServerName() {
+		return serverName;
+	}
+
+	/**
+	 * Upper bound of the time a sync waits for events, whatever timeout the
+	 * client asked for. Defaults to 5 seconds so stopping tests do not hang on
+	 * polls.
+	 */
+	public FakeHomeserver setMaxPollTimeout(long maxPollTimeout) {
+		this.maxPollTimeout = maxPollTimeout;
+		return this;
+	}
+
+	/**
+	 * Delay the answers of an endpoint by a random time between the bounds.
+	 *
+	 * @param endpoint one of the endpoint constants, or {@link #ALL}
+	 */
+	public FakeHomeserver setLatency(String endpoint, long minMillis, long maxMillis) {
+		fault(endpoint).setLatency(minMillis, maxMillis);
+		return this;
+	}
+
+	/**
+	 * Answer the given share of the requests of an endpoint with an error.
+	 *
+	 * @param rate   between 0 and 1
+	 * @param status the status code to answer with, 429 includes a
+	 *               <code>retry_after_ms</code>
+	 */
+	public FakeHomeserver setErrorRate(String endpoint, double rate, int status) {
+		fault(endpoint).setErrorRate(rate, status);
+		return this;
+	}
+
+	/**
+	 * Answer the next <code>count</code> requests of an endpoint with an error.
+	 */
+	public FakeHomeserver failNext(String endpoint, int count, int status) {
+		fault(endpoint).failNext(count, status);
+		return this;
+	}
+
+	/**
+	 * Create a room or add members to it. Members joining get a
+	 * <code>m.room.member</code> event.
+	 */
+	public void createRoom(String roomId, String... members) {
+		Set<String> joined = rooms.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet());
+		for (String member : members) {
+			if (joined.add(member)) {
+				JSONObject content = new JSONObject();
+				content.put("membership", "join");
+				content.put("displayname", displayName(member));
+				addEvent(roomId, member, "m.room.member", content);
+			}
+		}
+	}
+
+	/**
+	 * Append an event to a room, as if sent by another client.
+	 *
+	 * @return the event id
+	 */
+	public String addEvent(String roomId, String sender, String type, JSONObject content) {
+		return append(roomId, sender, type, content, null, null);
+	}
+
+	/**
+	 * Append <code>count</code> text messages to a room, one every
+	 * <code>intervalMillis</code>.
+	 *
+	 * @return completed after the last message
+	 */
+	public CompletableFuture<Void> script(String roomId, String sender, int count, long intervalMillis) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		scriptNext(roomId, sender, 1, count, intervalMillis, done);
+		return done;
+	}
+
+	private void scriptNext(String roomId, String sender, int index, int count, long intervalMillis,
+			CompletableFuture<Void> done) {
+		if (index > count) {
+			done.complete(null);
+			return;
+		}
+		timer.schedule(() -> {
+			JSONObject content = new JSONObject();
+			content.put("msgtype", "m.text");
+			content.put("body", "scripted " + index);
+			addEvent(roomId, sender, "m.room.message", content);
+			scriptNext(roomId, sender, index + 1, count, intervalMillis, done);
+		}, index == 1 ? 0 : intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the events appended so far, sent and scripted
+	 */
+	public int getEventCount() {
+		synchronized (events) {
+			return events.size();
+		}
+	}
+
+	/**
+	 * @return the content of the event, or <code>null</code>
+	 */
+	public JSONObject getEvent(String eventId) {
+		synchronized (events) {
+			for (StoredEvent event : events) {
+				if (event.eventId.equals(eventId)) {
+					return new JSONObject(event.json).getJSONObject("content");
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the uploaded bytes, or <code>null</code>
+	 */
+	public byte[] getMedia(String mxcUri) {
+		return media.get(mxcUri);
+	}
+
+	/**
+	 * @return requests received by an endpoint, including failed ones
+	 */
+	public long getRequestCount(String endpoint) {
+		AtomicLong count = requests.get(endpoint);
+		return count != null ? count.get() : 0;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (events) {
+			events.notifyAll();
+		}
+		server.stop(0);
+		timer.shutdownNow();
+		handlers.shutdownNow();
+	}
+
+	private Fault fault(String endpoint) {
+		return faults.computeIfAbsent(endpoint, k -> new Fault());
+	}
+
+	private String append(String roomId, String sender, String type, JSONObject content, String accessToken,
+			String txnId) {
+		synchronized (events) {
+			String eventId = "$" + (events.size() + 1) + ":" + serverName;
+			JSONObject event = new JSONObject();
+			event.put("event_id", eventId);
+			event.put("sender", sender);
+			event.put("type", type);
+			event.put("origin_server_ts", System.currentTimeMillis());
+			event.put("content", content);
+			events.add(new StoredEvent(roomId, eventId, event.toString(), accessToken, txnId));
+			events.notifyAll();
+			return eventId;
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String endpoint = endpoint(path);
+			requests.computeIfAbsent(endpoint, k -> new AtomicLong()).incrementAndGet();
+			if (inject(exchange, faults.get(ALL)) || inject(exchange, faults.get(endpoint))) {
+				return;
+			}
+			switch (endpoint) {
+			case LOGIN:
+				login(exchange);
+				break;
+			case WHOAMI:
+				whoami(exchange);
+				break;
+			case FILTER:
+				filter(exchange);
+				break;
+			case SYNC:
+				sync(exchange);
+				break;
+			case SEND:
+				send(exchange, path);
+				break;
+			case JOINED_MEMBERS:
+				joinedMembers(exchange, path);
+				break;
+			case UPLOAD:
+				upload(exchange);
+				break;
+			default:
+				error(exchange, 404, "M_UNRECOGNIZED", "unknown endpoint " + path);
+			}
+		} catch (JSONException e) {
+			error(exchange, 400, "M_NOT_JSON", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.close();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			error(exchange, 500, "M_UNKNOWN", String.valueOf(e.getMessage()));
+		}
+	}
+
+	private static String endpoint(String path) {
+		if (path.startsWith("/_matrix/media/")) {
+			return path.contains("/upload") ? UPLOAD : path;
+		}
+		if (path.endsWith("/login")) {
+			return LOGIN;
+		}
+		if (path.endsWith("/account/whoami")) {
+			return WHOAMI;
+		}
+		if (path.startsWith(CLIENT + "user/") && path.endsWith("/filter")) {
+			return FILTER;
+		}
+		if (path.equals(CLIENT + "sync")) {
+			return SYNC;
+		}
+		if (path.startsWith(CLIENT + "rooms/")) {
+			if (path.contains("/send/")) {
+				return SEND;
+			}
+			if (path.endsWith("/joined_members")) {
+				return JOINED_MEMBERS;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return <code>true</code> if the request was answered with an error
+	 */
+	private boolean inject(HttpExchange exchange, Fault fault) throws IOException, InterruptedException {
+		if (fault == null) {
+			return false;
+		}
+		long latency = fault.nextLatency();
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+		int status = fault.nextError();
+		if (status == 0) {
+			return false;
+		}
+		readBody(exchange);
+		if (status == 429) {
+			JSONObject body = new JSONObject();
+			body.put("errcode", "M_LIMIT_EXCEEDED");
+			body.put("error", "injected");
+			body.put("retry_after_ms", 50);
+			respond(exchange, status, body.toString());
+		} else {
+			error(exchange, status, "M_UNKNOWN", "injected");
+		}
+		return true;
+	}
+
+	private void login(HttpExchange exchange) throws IOException {
+		JSONObject request = new JSONObject(readBody(exchange));
+		String user;
+		if ("org.matrix.login.jwt".equals(request.optString("type"))) {
+			user = request.getString("token");
+		} else {
+			user = request.getString("user");
+		}
+		if (!user.startsWith("@")) {
+			user = "@" + user + ":" + serverName;
+		}
+		int number = logins.getAndIncrement();
+		String deviceId = request.optString("device_id", "DEVICE" + number);
+		String accessToken = "token-" + number + "-" + deviceId;
+		users.put(accessToken, user);
+
+		JSONObject login = new JSONObject();
+		login.put("user_id", user);
+		login.put("access_token", accessToken);
+		login.put("device_id", deviceId);
+		login.put("home_server", serverName);
+		respond(exchange, 200, login.toString());
+	}
+
+	private void whoami(HttpExchange exchange) throws IOException {
+		String user = authenticate(exchange);
+		if (user != null) {
+			respond(exchange, 200, new JSONObject().put("user_id", user).toString());
+		}
+	}
+
+	private void filter(HttpExchange exchange) throws IOException {
+		readBody(exchange);
+		if (authenticate(exchange) != null) {
+			respond(exchange, 200, new JSONObject().put("filter_id", String.valueOf(filters.incrementAndGet())).toString());
+		}
+	}
+
+	private void sync(HttpExchange exchange) throws IOException, InterruptedException {
+		String accessToken = accessToken(exchange);
+		String user = authenticate(exchange);
+		if (user == null) {
+			return;
+		}
+		Map<String, String> query = query(exchange);
+		String filter = query.get("filter");
+		if (filter != null && !filter.startsWith("{") && !isIssuedFilter(filter)) {
+			error(exchange, 404, "M_NOT_FOUND", "no such filter " + filter);
+			return;
+		}
+		int since = query.containsKey("since") ? Integer.parseInt(query.get("since")) : 0;
+		long timeout = query.containsKey("timeout") ? Long.parseLong(query.get("timeout")) : 0;
+		long deadline = System.currentTimeMillis() + Math.min(timeout, maxPollTimeout);
+
+		Map<String, StringBuilder> timelines = new LinkedHashMap<>();
+		int next;
+		synchronized (events) {
+			while (true) {
+				next = events.size();
+				for (int i = since; i < next; i++) {
+					StoredEvent event = events.get(i);
+					Set<String> members = rooms.get(event.roomId);
+					if (members == null || !members.contains(user)) {
+						continue;
+					}
+					StringBuilder timeline = timelines.get(event.roomId);
+					if (timeline == null) {
+						timeline = new StringBuilder();
+						timelines.put(event.roomId, timeline);
+					} else {
+						timeline.append(',');
+					}
+					timeline.append(event.toJSON(accessToken));
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (!timelines.isEmpty() || wait <= 0 || closed) {
+					break;
+				}
+				since = next;
+				events.wait(wait);
+			}
+		}
+
+		StringBuilder response = new StringBuilder("{\"next_batch\":\"").append(next).append("\",\"rooms\":{\"join\":{");
+		boolean first = true;
+		for (Map.Entry<String, StringBuilder> room : timelines.entrySet()) {
+			if (!first) {
+				response.append(',');
+			}
+			first = false;
+			response.append(JSONObject.quote(room.getKey())).append(":{\"timeline\":{\"events\":[")
+					.append(room.getValue()).append("]}}");
+		}
+		response.append("}}}");
+		respond(exchange, 200, response.toString());
+	}
+
+	private boolean isIssuedFilter(String filterId) {
+		try {
+			int id = Integer.parseInt(filterId);
+			return id > 0 && id <= filters.get();
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void send(HttpExchange exchange, String path) throws IOException {
+		JSONObject content = new JSONObject(readBody(exchange));
+		String accessToken = accessToken(exchange);
+		String user = authenticate(exchange);
+		if (user == null) {
+			return;
+		}
+		// rooms/{roomId}/send/{eventType}/{txnId}
+		String[] parts = path.substring((CLIENT + "rooms/").length()).split("/");
+		String roomId = decode(parts[0]);
+		String type = decode(parts[2]);
+		String txnId = decode(parts[3]);
+		Set<String> members = rooms.get(roomId);
+		if (members == null || !members.contains(user)) {
+			error(exchange, 403, "M_FORBIDDEN", user + " is not in " + roomId);
+			return;
+		}
+		String eventId;
+		// a retried transaction gets the event of the first attempt
+		synchronized (sentTxnIds) {
+			String key = accessToken + "/" + txnId;
+			eventId = sentTxnIds.get(key);
+			if (eventId == null) {
+				eventId = append(roomId, user, type, content, accessToken, txnId);
+				sentTxnIds.put(key, eventId);
+			}
+		}
+		respond(exchange, 200, new JSONObject().put("event_id", eventId).toString());
+	}
+
+	private void joinedMembers(HttpExchange exchange, String path) throws IOException {
+		if (authenticate(exchange) == null) {
+			return;
+		}
+		String roomId = decode(path.substring((CLIENT + "rooms/").length(), path.length() - "/joined_members".length()));
+		Set<String> members = rooms.get(roomId);
+		if (members == null) {
+			error(exchange, 404, "M_NOT_FOUND", "unknown room " + roomId);
+			return;
+		}
+		JSONObject joined = new JSONObject();
+		for (String member : members) {
+			joined.put(member, new JSONObject().put("display_name", displayName(member)));
+		}
+		respond(exchange, 200, new JSONObject().put("joined", joined).toString());
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		byte[] data = readBytes(exchange);
+		if (authenticate(exchange) == null) {
+			return;
+		}
+		String mxcUri = "mxc://" + serverName + "/media" + uploads.incrementAndGet();
+		media.put(mxcUri, data);
+		respond(exchange, 200, new JSONObject().put("content_uri", mxcUri).toString());
+	}
+
+	/**
+	 * @return the user, or <code>null</code> after answering with 401
+	 */
+	private String authenticate(HttpExchange exchange) throws IOException {
+		String accessToken = accessToken(exchange);
+		String user = accessToken != null ? users.get(accessToken) : null;
+		if (user == null) {
+			error(exchange, 401, "M_UNKNOWN_TOKEN", "unknown access token");
+		}
+		return user;
+	}
+
+	private static String accessToken(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization != null && authorization.startsWith("Bearer ")) {
+			return authorization.substring("Bearer ".length());
+		}
+		return query(exchange).get("access_token");
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) {
+		Map<String, String> query = new LinkedHashMap<>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null) {
+			return query;
+		}
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+			}
+		}
+		return query;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String displayName(String user) {
+		int colon = user.indexOf(':');
+		return user.substring(1, colon > 0 ? colon : user.length());
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		return new String(readBytes(exchange), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static void error(HttpExchange exchange, int status, String errcode, String error) throws IOException {
+		JSONObject body = new JSONObject();
+		body.put("errcode", errcode);
+		body.put("error", error);
+		respond(exchange, status, body.toString());
+	}
+
+	private static void respond(HttpExchange exchange, int status, String response) throws IOException {
+		byte[] body = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+	private static class StoredEvent {
+		final String roomId;
+		final String eventId;
+		final String json;
+		final String accessToken;
+		final String txnId;
+
+		StoredEvent(String roomId, String eventId, String json, String accessToken, String txnId) {
+			this.roomId = roomId;
+			this.eventId = eventId;
+			this.json = json;
+			this.accessToken = accessToken;
+			this.txnId = txnId;
+		}
+
+		String toJSON(String accessToken) {
+			if (txnId == null || !this.accessToken.equals(accessToken)) {
+				return json;
+			}
+			// the transaction id is only shown to the device that sent the event
+			return json.substring(0, json.length() - 1) + ",\"unsigned\":{\"transaction_id\":"
+					+ JSONObject.quote(txnId) + "}}";
+		}
+	}
+
+	private static class Fault {
+		private volatile long minLatency;
+		private volatile long maxLatency;
+		private volatile double errorRate;
+		private volatile int errorStatus;
+		private final AtomicInteger failNext = new AtomicInteger();
+		private volatile int failNextStatus;
+
+		void setLatency(long minLatency, long maxLatency) {
+			this.minLatency = minLatency;
+			this.maxLatency = Math.max(minLatency, maxLatency);
+		}
+
+		void setErrorRate(double errorRate, int errorStatus) {
+			this.errorRate = errorRate;
+			this.errorStatus = errorStatus;
+		}
+
+		void failNext(int count, int status) {
+			failNextStatus = status;
+			failNext.set(count);
+		}
+
+		long nextLatency() {
+			long min = minLatency;
+			long max = maxLatency;
+			return max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+		}
+
+		/**
+		 * @return the status to fail with, or 0
+		 */
+		int nextError() {
+			if (failNext.get() > 0 && failNext.getAndDecrement() > 0) {
+				return failNextStatus;
+			}
+			double rate = errorRate;
+			return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate ? errorStatus : 0;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+import de.jojii.matrixclientserver.File.InMemorySyncTokenStore;
+
+class FakeHomeserverTest {
+
+	private static final String ROOM = "!bridge:starship-enterprise.com";
+	private static final String PICARD = "@picard:starship-enterprise.com";
+	private static final String RIKER = "@riker:starship-enterprise.com";
+
+	private FakeHomeserver server;
+	private Client client;
+	private final List<RoomEvent> received = new CopyOnWriteArrayList<>();
+
+	@BeforeEach
+	void setUp() throws IOException {
+		server = new FakeHomeserver().setMaxPollTimeout(200);
+		server.createRoom(ROOM, PICARD, RIKER);
+		client = new Client(server.getHost());
+		client.setSyncTokenStore(new InMemorySyncTokenStore());
+		client.setSyncBackoff(new SyncBackoff(10, 100));
+		client.registerRoomEventListener(received::addAll);
+	}
+
+	@AfterEach
+	void tearDown() {
+		client.stopSync();
+		server.close();
+	}
+
+	@Test
+	void sync_receivesScriptedEvents() throws Exception {
+		client.loginSync("picard", "engage");
+		server.script(ROOM, RIKER, 5, 20).get(10, TimeUnit.SECONDS);
+
+		awaitMessages(5);
+		List<String> bodies = new ArrayList<>();
+		for (RoomEvent event : received) {
+			if (event.getType().equals("m.room.message")) {
+				assertEquals(ROOM, event.getRoom_id());
+				bodies.add(event.getContent().getString("body"));
+			}
+		}
+		assertEquals("scripted 1", bodies.get(0));
+		assertEquals("scripted 5", bodies.get(4));
+	}
+
+	@Test
+	void sendRoomEvent_echoesWithTransactionId() throws Exception {
+		client.loginSync("picard", "engage");
+
+		String response = client.sendRoomEvent("m.room.message", ROOM, text("make it so")).get(10, TimeUnit.SECONDS);
+
+		String eventId = new JSONObject(response).getString("event_id");
+		awaitMessages(1);
+		RoomEvent echo = messages().get(0);
+		assertEquals(eventId, echo.getEvent_id());
+		assertEquals(PICARD, echo.getSender());
+		assertTrue(echo.getRaw().getJSONObject("unsigned").has("transaction_id"));
+	}
+
+	@Test
+	void sendRoomEvent_retriesInjectedErrorOnce() throws Exception {
+		client.loginSync("picard", "engage");
+		server.failNext(FakeHomeserver.SEND, 1, 502);
+		int before = server.getEventCount();
+
+		client.sendRoomEvent("m.room.message", ROOM, text("tea, earl grey, hot")).get(10, TimeUnit.SECONDS);
+
+		assertEquals(1, client.getSendQueue().getRetryCount());
+		assertEquals(2, server.getRequestCount(FakeHomeserver.SEND));
+		assertEquals(before + 1, server.getEventCount());
+	}
+
+	@Test
+	void sync_recoversFromInjectedFailures() throws Exception {
+		server.failNext(FakeHomeserver.SYNC, 3, 503);
+		client.loginSync("picard", "engage");
+		server.addEvent(ROOM, RIKER, "m.room.message", text("shields up"));
+
+		awaitMessages(1);
+		assertTrue(server.getRequestCount(FakeHomeserver.SYNC) >= 4);
+	}
+
+	@Test
+	void sync_keepsFilterOnUnauthorizedSync() throws Exception {
+		InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+		String filterKey = "filter/" + client.getHost() + "/" + PICARD + "/" + new SyncFilter().getHash();
+		client.setSyncTokenStore(tokens);
+		server.failNext(FakeHomeserver.SYNC, 2, 401);
+		client.loginSync("picard", "engage");
+		server.addEvent(ROOM, RIKER, "m.room.message", text("make it so"));
+
+		awaitMessages(1);
+		assertTrue(server.getRequestCount(FakeHomeserver.SYNC) >= 3);
+		assertEquals(1, server.getRequestCount(FakeHomeserver.FILTER));
+		assertEquals("1", tokens.load(filterKey));
+	}
+
+	@Test
+	void sync_restartsWhileLongPollInFlight() throws Exception {
+		server.setMaxPollTimeout(1000);
+		client.loginSync("picard", "engage");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (server.getRequestCount(FakeHomeserver.SYNC) < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		client.stopSync();
+		client.loginSync("picard", "engage");
+		Thread.sleep(1500);
+		server.addEvent(ROOM, RIKER, "m.room.message", text("red alert"));
+
+		awaitMessages(1);
+	}
+
+	@Test
+	void sync_uploadsFilterAgainWhenStoredIdIsUnknown() throws Exception {
+		InMemorySyncTokenStore tokens = new InMemorySyncTokenStore();
+		String filterKey = "filter/" + client.getHost() + "/" + PICARD + "/" + new SyncFilter().getHash();
+		tokens.store(filterKey, "1701");
+		client.setSyncTokenStore(tokens);
+		client.loginSync("picard", "engage");
+		server.addEvent(ROOM, RIKER, "m.room.message", text("hailing frequencies open"));
+
+		awaitMessages(1);
+		assertEquals(1, server.getRequestCount(FakeHomeserver.FILTER));
+		assertEquals("1", tokens.load(filterKey));
+	}
+
+	@Test
+	void sync_survivesRuntimeExceptionOfTokenStore() throws Exception {
+		AtomicBoolean failed = new AtomicBoolean();
+		client.setSyncTokenStore(new InMemorySyncTokenStore() {
+			@Override
+			public void store(String key, String token) {
+				if (!key.startsWith("filter/") && failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("disk full");
+				}
+				super.store(key, token);
+			}
+		});
+		client.loginSync("picard", "engage");
+		server.addEvent(ROOM, RIKER, "m.room.message", text("shields up"));
+
+		awaitMessages(1);
+		assertTrue(failed.get());
+	}
+
+	@Test
+	void getRoomMembersSync() throws Exception {
+		client.loginWithJWTSync("picard", "BRIDGE");
+
+		List<Member> members = client.getRoomMembersSync(ROOM);
+
+		assertEquals(2, members.size());
+	}
+
+	@Test
+	void sendFileSync_storesUpload() throws Exception {
+		server.setLatency(FakeHomeserver.UPLOAD, 10, 20);
+		client.loginWithJWTSync("picard", "BRIDGE");
+		byte[] data = "captain's log".getBytes(StandardCharsets.UTF_8);
+
+		String contentUri = client.sendFileSync("text/plain", new ByteArrayInputStream(data), null);
+
+		assertNotNull(server.getMedia(contentUri));
+		assertArrayEquals(data, server.getMedia(contentUri));
+	}
+
+	private void awaitMessages(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (messages().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, messages().size());
+	}
+
+	private List<RoomEvent> messages() {
+		List<RoomEvent> messages = new ArrayList<>();
+		for (RoomEvent event : received) {
+			if (event.getType().equals("m.room.message")) {
+				messages.add(event);
+			}
+		}
+		return messages;
+	}
+
+	private static JSONObject text(String body) {
+		JSONObject content = new JSONObject();
+		content.put("msgtype", "m.text");
+		content.put("body", body);
+		return content;
+	}
+}
@@ -0,0 +1,85 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+class ListenerRegistryTest {
+
+	private final ListenerRegistry registry = new ListenerRegistry();
+	private final List<String> calls = new ArrayList<>();
+
+	@Test
+	void route_matchesTypeGlobRoomAndSender() {
+		registry.subscribe("m.room.message", null, null, e -> calls.add("type"));
+		registry.subscribe("m.room.*", null, null, e -> calls.add("glob"));
+		registry.subscribe("m.room.mem*", null, null, e -> calls.add("partial"));
+		registry.subscribe("*", null, null, e -> calls.add("all-glob"));
+		registry.subscribe(null, "!bridge:starship-enterprise.com", null, e -> calls.add("room"));
+		registry.subscribe("m.room.message", null, "@picard:starship-enterprise.com", e -> calls.add("sender"));
+		registry.subscribe(null, null, "@data:starship-enterprise.com", e -> calls.add("only-sender"));
+		registry.subscribe(null, null, null, e -> calls.add("all"));
+
+		registry.route(event("m.room.message", "!bridge:starship-enterprise.com", "@data:starship-enterprise.com"));
+		assertEquals(sorted("type", "glob", "all-glob", "room", "only-sender", "all"), sorted(calls));
+
+		calls.clear();
+		registry.route(event("m.room.member", "!holodeck:starship-enterprise.com", "@picard:starship-enterprise.com"));
+		assertEquals(sorted("glob", "partial", "all-glob", "all"), sorted(calls));
+
+		calls.clear();
+		registry.route(event("m.room.message", "!holodeck:starship-enterprise.com", "@picard:starship-enterprise.com"));
+		assertEquals(sorted("type", "glob", "all-glob", "sender", "all"), sorted(calls));
+
+		calls.clear();
+		registry.route(event("m.typing", "!holodeck:starship-enterprise.com", ""));
+		assertEquals(sorted("all-glob", "all"), sorted(calls));
+	}
+
+	@Test
+	void cancel_stopsDelivery() {
+		ListenerRegistry.Subscription room = registry.subscribe("m.room.*", "!bridge:starship-enterprise.com", null,
+				e -> calls.add("room"));
+		ListenerRegistry.Subscription glob = registry.subscribe("m.room.*", null, null, e -> calls.add("glob"));
+		ListenerRegistry.Subscription sender = registry.subscribe(null, null, "@data:starship-enterprise.com",
+				e -> calls.add("sender"));
+
+		room.cancel();
+		glob.cancel();
+		sender.cancel();
+		registry.route(event("m.room.message", "!bridge:starship-enterprise.com", "@data:starship-enterprise.com"));
+
+		assertTrue(calls.isEmpty());
+		assertTrue(registry.isEmpty());
+	}
+
+	private static RoomEvent event(String type, String roomId, String sender) {
+		JSONObject event = new JSONObject();
+		event.put("type", type);
+		event.put("sender", sender);
+		event.put("event_id", "$1");
+		event.put("content", new JSONObject());
+		return RoomEvent.fetchRoomEvent(event, roomId);
+	}
+
+	private static List<String> sorted(String... values) {
+		List<String> list = new ArrayList<>();
+		for (String value : values) {
+			list.add(value);
+		}
+		return sorted(list);
+	}
+
+	private static List<String> sorted(List<String> values) {
+		List<String> list = new ArrayList<>(values);
+		list.sort(null);
+		return list;
+	}
+}
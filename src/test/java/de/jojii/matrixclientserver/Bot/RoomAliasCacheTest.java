@@ -0,0 +1,89 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+class RoomAliasCacheTest {
+
+	private static final String ALIAS = "#holodeck:starship-enterprise.com";
+	private static final String ROOM = "!holodeck:starship-enterprise.com";
+
+	private final RoomAliasCache cache = new RoomAliasCache();
+	private final AtomicInteger requests = new AtomicInteger();
+
+	@Test
+	void resolve_cachesKnownAndUnknownAliases() throws Exception {
+		RoomAliasCache.Resolver resolver = alias -> {
+			requests.incrementAndGet();
+			return ALIAS.equals(alias) ? ROOM : null;
+		};
+
+		assertEquals(ROOM, cache.resolve(ALIAS, resolver));
+		assertEquals(ROOM, cache.resolve(ALIAS, resolver));
+		assertNull(cache.resolve("#unknown:starship-enterprise.com", resolver));
+		assertNull(cache.resolve("#unknown:starship-enterprise.com", resolver));
+
+		assertEquals(2, requests.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getNegativeHitCount());
+		assertEquals(0.5, cache.getHitRate());
+	}
+
+	@Test
+	void resolve_sharesConcurrentLookups() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> cache.resolve(ALIAS, alias -> {
+					requests.incrementAndGet();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return ROOM;
+				})));
+			}
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<String> result : results) {
+				assertEquals(ROOM, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, requests.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void onRoomEvents_canonicalAliasInvalidatesRoom() throws Exception {
+		cache.resolve(ALIAS, alias -> ROOM);
+
+		JSONObject event = new JSONObject();
+		event.put("type", "m.room.canonical_alias");
+		event.put("event_id", "$1");
+		event.put("state_key", "");
+		event.put("content", new JSONObject().put("alias", "#bridge:starship-enterprise.com"));
+		cache.onRoomEvents(ROOM, Collections.singletonList(RoomEvent.fetchRoomEvent(event, ROOM)));
+
+		assertEquals(0, cache.size());
+		assertEquals("!new:starship-enterprise.com", cache.resolve(ALIAS, alias -> "!new:starship-enterprise.com"));
+	}
+}
@@ -0,0 +1,88 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+class RoomMemberCacheTest {
+
+	private static final String ROOM = "!bridge:starship-enterprise.com";
+
+	@Test
+	void onRoomEvents_updatesLoadedRoom() {
+		RoomMemberCache cache = new RoomMemberCache();
+		cache.load(ROOM, Collections.singletonList(new Member("@picard:starship-enterprise.com", "Picard", "")));
+
+		cache.onRoomEvents(ROOM, Arrays.asList(
+				member("@data:starship-enterprise.com", "join", "Data"),
+				member("@picard:starship-enterprise.com", "leave", null)));
+
+		assertEquals(1, cache.getMembers(ROOM).size());
+		assertEquals("Data", cache.getMember(ROOM, "@data:starship-enterprise.com").getDisplay_name());
+		assertNull(cache.getMember(ROOM, "@picard:starship-enterprise.com"));
+	}
+
+	@Test
+	void load_appliesUpdatesReceivedWhileLoading() {
+		RoomMemberCache cache = new RoomMemberCache();
+		cache.beginLoad(ROOM);
+		cache.onRoomEvents(ROOM, Collections.singletonList(member("@worf:starship-enterprise.com", "join", "Worf")));
+
+		assertNull(cache.getMembers(ROOM));
+		cache.load(ROOM, Collections.singletonList(new Member("@picard:starship-enterprise.com", "Picard", "")));
+
+		assertEquals(2, cache.getMembers(ROOM).size());
+	}
+
+	@Test
+	void load_evictsLeastRecentlyUsedRoom() {
+		RoomMemberCache cache = new RoomMemberCache(1, 0);
+		cache.load(ROOM, Collections.emptyList());
+		cache.onRoomEvents("!unknown:starship-enterprise.com",
+				Collections.singletonList(member("@q:continuum", "join", "Q")));
+		assertFalse(cache.isLoaded("!unknown:starship-enterprise.com"));
+
+		cache.load("!holodeck:starship-enterprise.com", Collections.emptyList());
+
+		assertEquals(1, cache.size());
+		assertTrue(cache.isLoaded("!holodeck:starship-enterprise.com"));
+	}
+
+	@Test
+	void beginLoad_reloadsExpiredRoom() throws InterruptedException {
+		RoomMemberCache cache = new RoomMemberCache(10, 100);
+		cache.load(ROOM, Collections.singletonList(new Member("@picard:starship-enterprise.com", "Picard", "")));
+		Thread.sleep(200);
+		assertNull(cache.getMembers(ROOM));
+
+		cache.beginLoad(ROOM);
+		cache.onRoomEvents(ROOM, Collections.singletonList(member("@worf:starship-enterprise.com", "join", "Worf")));
+		cache.load(ROOM, Collections.singletonList(new Member("@picard:starship-enterprise.com", "Picard", "")));
+
+		assertEquals(2, cache.getMembers(ROOM).size());
+	}
+
+	private static RoomEvent member(String userId, String membership, String displayName) {
+		JSONObject content = new JSONObject();
+		content.put("membership", membership);
+		if (displayName != null) {
+			content.put("displayname", displayName);
+		}
+		JSONObject event = new JSONObject();
+		event.put("type", "m.room.member");
+		event.put("event_id", "$" + userId);
+		event.put("sender", userId);
+		event.put("state_key", userId);
+		event.put("content", content);
+		return RoomEvent.fetchRoomEvent(event, ROOM);
+	}
+}
@@ -0,0 +1,147 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+
+class SendQueueTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+	private final TransactionIdGenerator txnIds = new TransactionIdGenerator();
+	private final List<String> attempts = Collections.synchronizedList(new ArrayList<>());
+
+	@AfterEach
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void enqueue_retriesWithSameTxnIdAndKeepsRoomOrder() throws Exception {
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> {
+			attempts.add(content.getString("body") + "|" + txnId);
+			if (content.getString("body").equals("first") && attempts.size() == 1) {
+				throw new IOException("connection reset");
+			}
+			return "{\"event_id\":\"$" + content.getString("body") + "\"}";
+		}, executor, 3, 1, 10);
+
+		CompletableFuture<String> first = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("first"));
+		CompletableFuture<String> second = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("second"));
+
+		assertEquals("{\"event_id\":\"$first\"}", first.get(5, TimeUnit.SECONDS));
+		assertEquals("{\"event_id\":\"$second\"}", second.get(5, TimeUnit.SECONDS));
+		assertEquals(3, attempts.size());
+		// the retry reuses the transaction id, the next event waited for it
+		assertEquals(attempts.get(0), attempts.get(1));
+		assertTrue(attempts.get(2).startsWith("second|"));
+		assertNotEquals(attempts.get(0).split("\\|")[1], attempts.get(2).split("\\|")[1]);
+		assertEquals(1, queue.getRetryCount());
+		assertEquals(0, queue.getPendingCount());
+	}
+
+	@Test
+	void enqueue_doesNotRetryRejectedEvents() throws Exception {
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> {
+			attempts.add(txnId);
+			throw new HttpStatusException(403, "{\"errcode\":\"M_FORBIDDEN\"}");
+		}, executor, 3, 1, 10);
+
+		CompletableFuture<String> send = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("hi"));
+
+		ExecutionException failure = assertThrows(ExecutionException.class, () -> send.get(5, TimeUnit.SECONDS));
+		assertTrue(failure.getCause() instanceof HttpStatusException);
+		assertEquals(1, attempts.size());
+		assertEquals(1, queue.getFailedCount());
+	}
+
+	@Test
+	void enqueue_sendsRoomsInParallel() throws Exception {
+		CompletableFuture<Void> blocked = new CompletableFuture<>();
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> {
+			if (roomId.equals("!slow")) {
+				blocked.join();
+			}
+			return "{}";
+		}, executor);
+
+		CompletableFuture<String> slow = queue.enqueue("!slow", "m.room.message", txnIds.next(), body("a"));
+		CompletableFuture<String> fast = queue.enqueue("!fast", "m.room.message", txnIds.next(), body("b"));
+
+		assertEquals("{}", fast.get(5, TimeUnit.SECONDS));
+		blocked.complete(null);
+		assertEquals("{}", slow.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void enqueue_doesNotSendOnCallerOfSaturatedExecutor() throws Exception {
+		HttpExecutor bounded = HttpExecutor.bounded(1, 1);
+		CompletableFuture<Void> blocked = new CompletableFuture<>();
+		bounded.execute(blocked::join);
+		bounded.execute(() -> {
+		});
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> {
+			attempts.add(Thread.currentThread().getName());
+			return "{}";
+		}, bounded);
+
+		CompletableFuture<String> send = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("hi"));
+
+		assertTrue(bounded.getRejectedCount() > 0);
+		assertTrue(attempts.isEmpty());
+		blocked.complete(null);
+		assertEquals("{}", send.get(5, TimeUnit.SECONDS));
+		assertNotEquals(Thread.currentThread().getName(), attempts.get(0));
+		bounded.shutdown();
+	}
+
+	@Test
+	void enqueue_sendsOnSameThreadExecutor() throws Exception {
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> {
+			attempts.add(Thread.currentThread().getName());
+			return "{}";
+		}, Runnable::run);
+
+		CompletableFuture<String> send = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("hi"));
+
+		assertEquals("{}", send.get(5, TimeUnit.SECONDS));
+		assertEquals(1, attempts.size());
+		assertNotEquals(Thread.currentThread().getName(), attempts.get(0));
+		assertEquals(0, queue.getPendingCount());
+	}
+
+	@Test
+	void enqueue_failsOnShutDownExecutor() {
+		executor.shutdown();
+		SendQueue queue = new SendQueue((roomId, eventType, txnId, content) -> "{}", executor);
+
+		CompletableFuture<String> send = queue.enqueue("!bridge", "m.room.message", txnIds.next(), body("hi"));
+
+		ExecutionException failure = assertThrows(ExecutionException.class, () -> send.get(5, TimeUnit.SECONDS));
+		assertTrue(failure.getCause() instanceof RejectedExecutionException);
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(1, queue.getFailedCount());
+	}
+
+	private static JSONObject body(String body) {
+		return new JSONObject().put("msgtype", "m.text").put("body", body);
+	}
+}
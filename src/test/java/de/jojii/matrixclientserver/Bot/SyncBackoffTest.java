@@ -0,0 +1,55 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+
+class SyncBackoffTest {
+
+	@Test
+	void onFailure_growsExponentiallyUpToMaxDelay() {
+		SyncBackoff backoff = new SyncBackoff(100, 1000);
+
+		long first = backoff.onFailure(new IOException());
+		long second = backoff.onFailure(new IOException());
+		long third = backoff.onFailure(new IOException());
+		for (int i = 0; i < 10; i++) {
+			assertTrue(backoff.onFailure(new IOException()) <= 1000);
+		}
+
+		assertTrue(first >= 50 && first <= 100);
+		assertTrue(second >= 100 && second <= 200);
+		assertTrue(third >= 200 && third <= 400);
+		assertEquals(13, backoff.getRetryCount());
+		assertEquals(13, backoff.getConsecutiveFailures());
+	}
+
+	@Test
+	void onSuccess_resetsDelay() {
+		SyncBackoff backoff = new SyncBackoff(100, 1000);
+		for (int i = 0; i < 5; i++) {
+			backoff.onFailure(new IOException());
+		}
+
+		backoff.onSuccess();
+
+		assertTrue(backoff.onFailure(new IOException()) <= 100);
+	}
+
+	@Test
+	void onFailure_honorsRetryAfter() {
+		SyncBackoff backoff = new SyncBackoff(100, 1000);
+
+		long delay = backoff.onFailure(new HttpStatusException(429,
+				"{\"errcode\":\"M_LIMIT_EXCEEDED\",\"error\":\"Too many requests\",\"retry_after_ms\":2500}"));
+
+		assertEquals(2500, delay);
+		assertEquals(1, backoff.getRateLimitedCount());
+		assertEquals(2500, backoff.getBackoffTime());
+	}
+}
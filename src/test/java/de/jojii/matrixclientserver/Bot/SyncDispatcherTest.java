@@ -0,0 +1,114 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.jojii.matrixclientserver.Bot.Events.RoomEvent;
+
+class SyncDispatcherTest {
+
+	@TempDir
+	Path spillDirectory;
+
+	@Test
+	void dispatch_keepsOrderPerRoom() throws Exception {
+		Map<String, List<String>> received = new ConcurrentHashMap<>();
+		CountDownLatch done = new CountDownLatch(400);
+		try (SyncDispatcher dispatcher = new SyncDispatcher(4, 8, SyncDispatcher.OverflowPolicy.BLOCK, null)) {
+			for (int i = 0; i < 100; i++) {
+				for (int room = 0; room < 4; room++) {
+					String roomId = "!room" + room + ":example.org";
+					dispatcher.dispatch(roomId, event(roomId, i), events -> {
+						received.computeIfAbsent(roomId, k -> Collections.synchronizedList(new ArrayList<>()))
+								.add(events.get(0).getEvent_id());
+						done.countDown();
+					});
+				}
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(400, dispatcher.getDeliveredCount());
+		}
+		for (List<String> ids : received.values()) {
+			for (int i = 0; i < 100; i++) {
+				assertEquals("$" + i, ids.get(i));
+			}
+		}
+	}
+
+	@Test
+	void dispatch_dropsWhenLaneIsFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		try (SyncDispatcher dispatcher = new SyncDispatcher(1, 2, SyncDispatcher.OverflowPolicy.DROP, null)) {
+			for (int i = 0; i < 10; i++) {
+				dispatcher.dispatch("!room:example.org", event("!room:example.org", i), events -> await(release));
+			}
+			assertTrue(dispatcher.getDroppedCount() >= 7);
+			release.countDown();
+		}
+	}
+
+	@Test
+	void dispatch_spillsAndDeliversInOrder() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(20);
+		List<String> received = Collections.synchronizedList(new ArrayList<>());
+		try (SyncDispatcher dispatcher = new SyncDispatcher(1, 2, SyncDispatcher.OverflowPolicy.SPILL, spillDirectory)) {
+			for (int i = 0; i < 20; i++) {
+				dispatcher.dispatch("!room:example.org", event("!room:example.org", i), events -> {
+					await(release);
+					received.add(events.get(0).getEvent_id());
+					done.countDown();
+				});
+			}
+			assertTrue(dispatcher.getSpilledCount() >= 17);
+			release.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < 20; i++) {
+			assertEquals("$" + i, received.get(i));
+		}
+	}
+
+	private static List<RoomEvent> event(String roomId, int index) {
+		JSONObject event = new JSONObject();
+		event.put("type", "m.room.message");
+		event.put("event_id", "$" + index);
+		event.put("sender", "@data:starship-enterprise.com");
+		event.put("content", new JSONObject().put("body", "message " + index));
+		return Collections.singletonList(RoomEvent.fetchRoomEvent(event, roomId));
+	}
+
+	@Test
+	void dispatch_deliversOnCallerWhenClosed() throws Exception {
+		List<String> threads = new ArrayList<>();
+		SyncDispatcher dispatcher = new SyncDispatcher(1, 8, SyncDispatcher.OverflowPolicy.BLOCK, null);
+		dispatcher.close();
+
+		dispatcher.dispatch("!bridge:example.org", event("!bridge:example.org", 1),
+				events -> threads.add(Thread.currentThread().getName()));
+
+		assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+		assertEquals(1, dispatcher.getDeliveredCount());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package de.jojii.matrixclientserver.Bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class SyncFilterTest {
+
+	@Test
+	void toJSON_defaultsToClassicFilter() {
+		JSONObject expected = new JSONObject(
+				"{ \"room\": { \"state\": { \"types\": [ \"m.room.*\" ] } }, \"presence\": { \"types\": [ \"m.presence\" ] }, \"event_fields\": [ \"type\", \"content\", \"sender\", \"room_id\", \"event_id\", \"state_key\" ] }");
+
+		assertTrue(expected.similar(new SyncFilter().toJSON()));
+	}
+
+	@Test
+	void toJSON_lazyLoadsMembersAndLimitsTimeline() {
+		JSONObject filter = new SyncFilter().setLazyLoadMembers(true).setTimelineLimit(20).setPresence(false)
+				.toJSON();
+		JSONObject room = filter.getJSONObject("room");
+
+		assertTrue(room.getJSONObject("state").getBoolean("lazy_load_members"));
+		assertTrue(room.getJSONObject("timeline").getBoolean("lazy_load_members"));
+		assertEquals(20, room.getJSONObject("timeline").getInt("limit"));
+		assertTrue(filter.getJSONObject("presence").getJSONArray("types").isEmpty());
+	}
+
+	@Test
+	void getHash_dependsOnContentOnly() {
+		assertEquals(new SyncFilter().setTimelineLimit(5).setLazyLoadMembers(true).getHash(),
+				new SyncFilter().setLazyLoadMembers(true).setTimelineLimit(5).getHash());
+		assertNotEquals(new SyncFilter().getHash(), new SyncFilter().setTimelineLimit(5).getHash());
+		assertFalse(new SyncFilter().getHash().isEmpty());
+	}
+}
@@ -0,0 +1,59 @@
+package de.jojii.matrixclientserver.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSyncTokenStoreTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void storeAndLoad_perKey() throws IOException {
+		FileSyncTokenStore store = new FileSyncTokenStore(directory, 0, true);
+		store.store("@data:starship-enterprise.com/DEVICE", "s1_2");
+		store.store("@picard:starship-enterprise.com/DEVICE", "s3_4");
+		store.store("@data:starship-enterprise.com/DEVICE", "s5_6");
+
+		FileSyncTokenStore reopened = new FileSyncTokenStore(directory, 0, true);
+		assertEquals("s5_6", reopened.load("@data:starship-enterprise.com/DEVICE"));
+		assertEquals("s3_4", reopened.load("@picard:starship-enterprise.com/DEVICE"));
+		assertNull(reopened.load("@geordi:starship-enterprise.com/DEVICE"));
+		try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+			assertEquals(2, files.count());
+		}
+	}
+
+	@Test
+	void store_batchesWritesWithinFlushInterval() throws IOException {
+		FileSyncTokenStore store = new FileSyncTokenStore(directory, 60000, false);
+		store.store("@data:starship-enterprise.com", "s1");
+		store.store("@data:starship-enterprise.com", "s2");
+
+		assertEquals("s2", store.load("@data:starship-enterprise.com"));
+		assertEquals("s1", new FileSyncTokenStore(directory).load("@data:starship-enterprise.com"));
+
+		store.flush();
+		assertEquals("s2", new FileSyncTokenStore(directory).load("@data:starship-enterprise.com"));
+	}
+
+	@Test
+	void remove_deletesWrittenAndPendingTokens() throws IOException {
+		FileSyncTokenStore store = new FileSyncTokenStore(directory, 60000, false);
+		store.store("filter/@data:starship-enterprise.com/1", "42");
+		store.store("filter/@data:starship-enterprise.com/1", "43");
+
+		store.remove("filter/@data:starship-enterprise.com/1");
+		store.flush();
+
+		assertNull(store.load("filter/@data:starship-enterprise.com/1"));
+		assertNull(new FileSyncTokenStore(directory).load("filter/@data:starship-enterprise.com/1"));
+	}
+}
@@ -0,0 +1,156 @@
+package de.jojii.matrixclientserver.File;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MediaCacheTest {
+
+	@TempDir
+	Path directory;
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Test
+	void get_servesHitsFromDisk() throws IOException {
+		MediaCache cache = new MediaCache(directory);
+		byte[] image = bytes(100_000);
+
+		assertEquals("image/png", get(cache, "mxc://starship-enterprise.com/logo", image).contentType);
+		Result hit = get(cache, "mxc://starship-enterprise.com/logo", image);
+
+		assertEquals("image/png", hit.contentType);
+		assertArrayEquals(image, hit.body);
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getHitCount());
+
+		// entries survive a restart
+		MediaCache reopened = new MediaCache(directory);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		reopened.get(MediaCache.key("mxc://starship-enterprise.com/logo", null), out, cacheOut -> {
+			fail("expected a hit");
+			return null;
+		});
+		assertArrayEquals(image, out.toByteArray());
+	}
+
+	@Test
+	void get_evictsLeastRecentlyUsed() throws IOException {
+		MediaCache cache = new MediaCache(directory, 2500);
+		get(cache, "mxc://a/1", bytes(1000));
+		get(cache, "mxc://a/2", bytes(1000));
+		get(cache, "mxc://a/1", bytes(1000));
+		get(cache, "mxc://a/3", bytes(1000));
+
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(1, cache.getEvictionCount());
+		get(cache, "mxc://a/1", bytes(1000));
+		assertEquals(3, loads.get());
+		get(cache, "mxc://a/2", bytes(1000));
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	void reopen_keepsRecencyOfHitsAndDeletesUnfinishedDownloads() throws IOException {
+		MediaCache cache = new MediaCache(directory, 2500);
+		get(cache, "mxc://a/1", bytes(1000));
+		get(cache, "mxc://a/2", bytes(1000));
+		try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				java.nio.file.Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+			}
+		}
+		get(cache, "mxc://a/1", bytes(1000));
+		Path unfinished = java.nio.file.Files.createTempFile(directory, "download", ".tmp");
+
+		MediaCache reopened = new MediaCache(directory, 2500);
+		get(reopened, "mxc://a/3", bytes(1000));
+		get(reopened, "mxc://a/1", bytes(1000));
+
+		assertEquals(3, loads.get());
+		assertEquals(1, reopened.getEvictionCount());
+		assertFalse(java.nio.file.Files.exists(unfinished));
+	}
+
+	@Test
+	void get_collapsesConcurrentMisses() throws Exception {
+		MediaCache cache = new MediaCache(directory);
+		CountDownLatch release = new CountDownLatch(1);
+		byte[] video = bytes(50_000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					cache.get(MediaCache.key("mxc://a/video", null), out, cacheOut -> {
+						loads.incrementAndGet();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						cacheOut.write(video);
+						return "video/mp4";
+					});
+					return out.toByteArray();
+				}));
+			}
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<byte[]> result : results) {
+				assertArrayEquals(video, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, loads.get());
+			assertEquals(3, cache.getCollapsedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Result get(MediaCache cache, String mxcUri, byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String contentType = cache.get(MediaCache.key(mxcUri, null), out, cacheOut -> {
+			loads.incrementAndGet();
+			cacheOut.write(content);
+			return "image/png";
+		});
+		return new Result(contentType, out.toByteArray());
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+
+	private static class Result {
+		final String contentType;
+		final byte[] body;
+
+		Result(String contentType, byte[] body) {
+			this.contentType = contentType;
+			this.body = body;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package de.jojii.matrixclientserver.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboxTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void getPending_replaysUnacknowledgedAfterRestart() throws IOException {
+		try (Outbox outbox = new Outbox(directory)) {
+			Outbox.Entry first = outbox.append("!bridge", "m.room.message", "t.1", message("engage"));
+			outbox.append("!bridge", "m.room.message", "t.2", message("make it so"));
+			outbox.acknowledge(first.getId());
+		}
+
+		try (Outbox outbox = new Outbox(directory)) {
+			List<Outbox.Entry> pending = outbox.getPending();
+			assertEquals(1, pending.size());
+			assertEquals("t.2", pending.get(0).getTxnId());
+			assertEquals("make it so", pending.get(0).getContent().getString("body"));
+
+			// ids keep growing across restarts
+			assertTrue(outbox.append("!bridge", "m.room.message", "t.3", message("tea")).getId() > pending.get(0)
+					.getId());
+		}
+	}
+
+	@Test
+	void acknowledge_isWrittenBeforeClose() throws IOException {
+		try (Outbox outbox = new Outbox(directory)) {
+			Outbox.Entry first = outbox.append("!bridge", "m.room.message", "t.1", message("engage"));
+			outbox.acknowledge(first.getId());
+
+			Path segment;
+			try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+				segment = files.findFirst().get();
+			}
+			String log = new String(java.nio.file.Files.readAllBytes(segment), StandardCharsets.UTF_8);
+			assertTrue(log.endsWith("{\"op\":\"ack\",\"id\":" + first.getId() + "}\n"));
+		}
+	}
+
+	@Test
+	void getPending_ignoresTornLastLine() throws IOException {
+		try (Outbox outbox = new Outbox(directory)) {
+			outbox.append("!bridge", "m.room.message", "t.1", message("engage"));
+		}
+		Path segment;
+		try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+			segment = files.findFirst().get();
+		}
+		java.nio.file.Files.write(segment, "{\"op\":\"send\",\"id\":2,\"ro".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		try (Outbox outbox = new Outbox(directory)) {
+			assertEquals(1, outbox.getPendingCount());
+		}
+	}
+
+	@Test
+	void acknowledge_deletesAcknowledgedSegments() throws IOException {
+		try (Outbox outbox = new Outbox(directory, 256, false)) {
+			List<Outbox.Entry> entries = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				entries.add(outbox.append("!bridge", "m.room.message", "t." + i, message("message " + i)));
+			}
+			assertTrue(outbox.getSegmentCount() > 2);
+
+			for (Outbox.Entry entry : entries) {
+				outbox.acknowledge(entry.getId());
+			}
+
+			assertEquals(1, outbox.getSegmentCount());
+			try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+				assertEquals(1, files.count());
+			}
+		}
+	}
+
+	@Test
+	void append_groupsConcurrentAppendsIntoFewerSyncs() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try (Outbox outbox = new Outbox(directory)) {
+			List<Future<Outbox.Entry>> appends = new ArrayList<>();
+			for (int i = 0; i < 400; i++) {
+				String txnId = "t." + i;
+				appends.add(executor.submit(() -> outbox.append("!bridge", "m.room.message", txnId, message("hi"))));
+			}
+			for (Future<Outbox.Entry> append : appends) {
+				append.get();
+			}
+
+			assertEquals(400, outbox.getPendingCount());
+			assertTrue(outbox.getSyncCount() <= 400);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static JSONObject message(String body) {
+		return new JSONObject().put("msgtype", "m.text").put("body", body);
+	}
+}
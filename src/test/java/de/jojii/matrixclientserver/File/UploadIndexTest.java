@@ -0,0 +1,105 @@
+package de.jojii.matrixclientserver.File;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UploadIndexTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void get_findsRecordedUploadsAfterRestart() throws IOException {
+		Path file = directory.resolve("uploads.idx");
+		UploadIndex index = new UploadIndex(file);
+		byte[] logo = hash("image/png", "logo");
+		index.put(logo, "mxc://starship-enterprise.com/logo");
+		index.put(hash("image/png", "report"), "mxc://starship-enterprise.com/report");
+		index.close();
+
+		UploadIndex reopened = new UploadIndex(file);
+
+		assertEquals(2, reopened.size());
+		assertEquals("mxc://starship-enterprise.com/logo", reopened.get(logo));
+		assertNull(reopened.get(hash("image/png", "warp core")));
+		assertEquals(1, reopened.getHitCount());
+		assertEquals(1, reopened.getMissCount());
+	}
+
+	@Test
+	void load_dropsTornRecord() throws IOException {
+		Path file = directory.resolve("uploads.idx");
+		UploadIndex index = new UploadIndex(file);
+		byte[] logo = hash("image/png", "logo");
+		index.put(logo, "mxc://starship-enterprise.com/logo");
+		index.put(hash("image/png", "report"), "mxc://starship-enterprise.com/report");
+		index.close();
+		try (RandomAccessFile data = new RandomAccessFile(file.toFile(), "rw")) {
+			data.setLength(data.length() - 3);
+		}
+
+		UploadIndex reopened = new UploadIndex(file);
+
+		assertEquals(1, reopened.size());
+		assertEquals("mxc://starship-enterprise.com/logo", reopened.get(logo));
+		reopened.put(hash("image/png", "report"), "mxc://starship-enterprise.com/report");
+		assertEquals("mxc://starship-enterprise.com/report", reopened.get(hash("image/png", "report")));
+	}
+
+	@Test
+	void put_keepsNewerHalfWhenFull() throws IOException {
+		UploadIndex index = new UploadIndex(directory.resolve("uploads.idx"), 4);
+		for (int i = 0; i < 5; i++) {
+			index.put(hash("text/plain", "log " + i), "mxc://a/" + i);
+		}
+
+		assertEquals(3, index.size());
+		assertNull(index.get(hash("text/plain", "log 1")));
+		assertEquals("mxc://a/2", index.get(hash("text/plain", "log 2")));
+		assertEquals("mxc://a/4", index.get(hash("text/plain", "log 4")));
+	}
+
+	@Test
+	void load_compactsIndexWrittenWithLargerMaximum() throws IOException {
+		Path file = directory.resolve("uploads.idx");
+		UploadIndex index = new UploadIndex(file, 100);
+		for (int i = 0; i < 50; i++) {
+			index.put(hash("text/plain", "log " + i), "mxc://a/" + i);
+		}
+		index.close();
+
+		UploadIndex reopened = new UploadIndex(file, 10);
+
+		assertEquals(5, reopened.size());
+		assertNull(reopened.get(hash("text/plain", "log 44")));
+		assertEquals("mxc://a/45", reopened.get(hash("text/plain", "log 45")));
+		assertEquals("mxc://a/49", reopened.get(hash("text/plain", "log 49")));
+	}
+
+	@Test
+	void spool_hashesLikeFile() throws IOException {
+		Path spool = directory.resolve("spool");
+		byte[] hash = UploadIndex.spool("image/png",
+				new ByteArrayInputStream("logo".getBytes(StandardCharsets.UTF_8)), spool);
+
+		assertArrayEquals(UploadIndex.hash("image/png", spool), hash);
+		assertNotEquals(new String(UploadIndex.hash("image/jpeg", spool), StandardCharsets.ISO_8859_1),
+				new String(hash, StandardCharsets.ISO_8859_1));
+	}
+
+	private byte[] hash(String contentType, String content) throws IOException {
+		return UploadIndex.spool(contentType, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+				directory.resolve("spool"));
+	}
+}
@@ -0,0 +1,78 @@
+package de.jojii.matrixclientserver.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import de.jojii.matrixclientserver.Networking.HttpExecutor;
+import de.jojii.matrixclientserver.Networking.HttpHelper;
+import de.jojii.matrixclientserver.Networking.HttpStatusException;
+import de.jojii.matrixclientserver.Networking.PooledHttpTransport;
+
+class ClientMetricsTest {
+
+    @Test
+    void httpHelper_recordsLatencyAndErrorsPerEndpoint() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_matrix/client/r0/rooms/", exchange -> {
+            boolean missing = exchange.getRequestURI().getPath().contains("unknown");
+            byte[] body = (missing ? "{\"errcode\":\"M_NOT_FOUND\"}" : "{\"joined\":{}}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(missing ? 404 : 200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            ClientMetrics metrics = new ClientMetrics();
+            HttpHelper httpHelper = new HttpHelper(() -> "token", HttpExecutor.bounded(1, 1), new PooledHttpTransport());
+            httpHelper.setMetrics(metrics);
+            String host = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+            httpHelper.sendRequest(host, HttpHelper.URLs.rooms + "!bridge:starship-enterprise.com/joined_members", null,
+                    true, "GET", HttpHelper::readResponse);
+            httpHelper.sendRequest(host, HttpHelper.URLs.rooms + "!ten:starship-enterprise.com/joined_members", null,
+                    true, "GET", HttpHelper::readResponse);
+            assertThrows(HttpStatusException.class, () -> httpHelper.sendRequest(host,
+                    HttpHelper.URLs.rooms + "!unknown:starship-enterprise.com/joined_members", null, true, "GET",
+                    HttpHelper::readResponse));
+
+            Histogram latency = metrics.getLatency("GET", "/_matrix/client/r0/rooms/{id}/joined_members");
+            assertEquals(3, latency.getCount());
+            assertTrue(latency.getPercentile(50) > 0);
+            assertEquals(Long.valueOf(1), metrics.getErrorCounts().get(404));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void registerMBean_exportsValues() throws JMException {
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.onRequest("/_matrix/client/r0/sync", "GET", 200, 2000000);
+        metrics.onSyncIteration(3000000, 12);
+        metrics.onDispatchQueue(4, 10);
+
+        ObjectName name = metrics.registerMBean("starship-enterprise");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "GET /_matrix/client/r0/sync count"));
+            assertEquals(12L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "sync events max"));
+            assertEquals(4L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "dispatch queue depth"));
+        } finally {
+            ClientMetrics.unregisterMBean(name);
+        }
+    }
+}
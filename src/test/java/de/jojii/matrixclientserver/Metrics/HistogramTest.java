@@ -0,0 +1,54 @@
+package de.jojii.matrixclientserver.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+    @Test
+    void getPercentile_isWithinOnePercent() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertWithin(50000, histogram.getPercentile(50));
+        assertWithin(99000, histogram.getPercentile(99));
+        assertWithin(99900, histogram.getPercentile(99.9));
+        assertEquals(100000, histogram.getPercentile(100));
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    void record_countsSmallValuesExactly() {
+        Histogram histogram = new Histogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-5);
+
+        assertEquals(0, histogram.getPercentile(25));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(99));
+    }
+
+    @Test
+    void index_coversEveryValue() {
+        long previous = -1;
+        for (int i = 0; i < 2048; i++) {
+            long highest = Histogram.highestEquivalent(i);
+            assertEquals(i, Histogram.index(highest));
+            assertEquals(i, Histogram.index(previous + 1));
+            previous = highest;
+        }
+        assertEquals(Histogram.MAX_VALUE, previous);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(Math.abs(expected - actual) <= expected / 64, expected + " vs " + actual);
+    }
+}
@@ -0,0 +1,167 @@
+package de.jojii.matrixclientserver.Networking;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+class ContentCodingTest {
+
+    private HttpServer server;
+    private HttpHelper httpHelper;
+    private final AtomicReference<String> responseEncoding = new AtomicReference<>("gzip");
+    private final AtomicReference<String> acceptEncoding = new AtomicReference<>();
+    private final AtomicReference<String> receivedEncoding = new AtomicReference<>();
+    private final AtomicReference<String> received = new AtomicReference<>();
+    private String json;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            events.append("{\"type\":\"m.room.message\",\"content\":{\"body\":\"Make it so\"}},");
+        }
+        json = "{\"events\":[" + events.substring(0, events.length() - 1) + "]}";
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_matrix/client/r0/rooms/", this::handle);
+        server.start();
+        httpHelper = new HttpHelper(() -> "token", HttpExecutor.bounded(1, 1), new PooledHttpTransport());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        acceptEncoding.set(exchange.getRequestHeaders().getFirst("Accept-encoding"));
+        String requestEncoding = exchange.getRequestHeaders().getFirst("Content-encoding");
+        receivedEncoding.set(requestEncoding);
+        if ("gzip".equals(requestEncoding) && exchange.getRequestURI().getPath().contains("plain")) {
+            exchange.sendResponseHeaders(415, -1);
+            exchange.close();
+            return;
+        }
+        InputStream requestBody = "gzip".equals(requestEncoding) ? new GZIPInputStream(exchange.getRequestBody())
+                : exchange.getRequestBody();
+        received.set(new String(readAll(requestBody), StandardCharsets.UTF_8));
+
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        String encoding = responseEncoding.get();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        if ("gzip".equals(encoding)) {
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+        } else if ("deflate".equals(encoding) || "raw".equals(encoding)) {
+            try (OutputStream out = new DeflaterOutputStream(compressed,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, "raw".equals(encoding)))) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            encoding = "deflate";
+        }
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    @Test
+    void sendRequest_decodesCompressedResponses() throws IOException {
+        for (String encoding : new String[] { "gzip", "deflate", "raw", null }) {
+            responseEncoding.set(encoding);
+
+            String response = httpHelper.sendRequest(host(), "_matrix/client/r0/rooms/!bridge:starship-enterprise.com/messages",
+                    null, true, "GET", HttpHelper::readResponse);
+
+            assertTrue(new JSONObject(json).similar(new JSONObject(response)), String.valueOf(encoding));
+            assertEquals("gzip, deflate", acceptEncoding.get());
+        }
+        TransferStats stats = httpHelper.getTransferStats().get("/_matrix/client/r0/rooms/{id}/messages");
+        assertEquals(4, stats.getRequestCount());
+        assertEquals(3, stats.getCompressedResponseCount());
+        assertEquals(4L * json.length(), stats.getResponseDecodedBytes());
+        assertTrue(stats.getResponseWireBytes() < 2L * json.length());
+    }
+
+    @Test
+    void sendRequest_compressesLargeJsonBodies() throws IOException {
+        httpHelper.setRequestCompression(1024);
+        JSONObject state = new JSONObject(json);
+
+        httpHelper.sendRequest(host(), "_matrix/client/r0/rooms/!bridge:starship-enterprise.com/state/m.room.topic/",
+                state, true, "PUT");
+
+        assertEquals("gzip", receivedEncoding.get());
+        assertTrue(state.similar(new JSONObject(received.get())));
+        TransferStats stats = httpHelper.getTransferStats()
+                .get("/_matrix/client/r0/rooms/{id}/state/m.room.topic");
+        assertTrue(stats.getRequestWireBytes() < stats.getRequestBytes());
+
+        // small bodies stay uncompressed
+        httpHelper.sendRequest(host(), "_matrix/client/r0/rooms/!bridge:starship-enterprise.com/state/m.room.topic/",
+                new JSONObject().put("topic", "Engage"), true, "PUT");
+        assertNull(receivedEncoding.get());
+    }
+
+    @Test
+    void sendRequest_fallsBackToPlainBodiesOn415() throws IOException {
+        httpHelper.setRequestCompression(0);
+        JSONObject state = new JSONObject(json);
+
+        String response = httpHelper.sendRequest(host(), "_matrix/client/r0/rooms/!plain:starship-enterprise.com/state/m.room.topic/",
+                state, true, "PUT");
+
+        assertNull(receivedEncoding.get());
+        assertTrue(state.similar(new JSONObject(received.get())));
+        assertTrue(new JSONObject(json).similar(new JSONObject(response)));
+    }
+
+    @Test
+    void endpoint_replacesIds() throws IOException {
+        assertEquals("/_matrix/client/r0/rooms/{id}/send/m.room.message/{txnId}", ContentCoding.endpoint(
+                new URL("https://example.org/_matrix/client/r0/rooms/%21abc%3Aexample.org/send/m.room.message/t1.2")));
+        assertEquals("/_matrix/media/r0/download/{server}/{mediaId}",
+                ContentCoding.endpoint(new URL("https://example.org/_matrix/media/r0/download/example.org/AbCd?x=1")));
+        assertEquals("/_matrix/client/r0/sync",
+                ContentCoding.endpoint(new URL("https://example.org/_matrix/client/r0/sync?since=s1")));
+    }
+
+    private String host() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+package de.jojii.matrixclientserver.Networking;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class HttpExecutorTest {
+
+    @Test
+    void bounded_reportsQueueDepthAndActiveCount() throws InterruptedException {
+        HttpExecutor executor = HttpExecutor.bounded(1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getActiveCount());
+        assertEquals(2, executor.getQueueDepth());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.getExecutorService().awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getActiveCount());
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(3, executor.getCompletedCount());
+    }
+
+    @Test
+    void bounded_runsOnCallerWhenQueueIsFull() throws InterruptedException {
+        HttpExecutor executor = HttpExecutor.bounded(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Thread> runner = new AtomicReference<>();
+
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(() -> { });
+        executor.execute(() -> runner.set(Thread.currentThread()));
+
+        assertEquals(Thread.currentThread(), runner.get());
+        assertEquals(1, executor.getRejectedCount());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    void bounded_rejectsAfterShutdown() {
+        HttpExecutor executor = HttpExecutor.bounded(1, 1);
+        executor.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
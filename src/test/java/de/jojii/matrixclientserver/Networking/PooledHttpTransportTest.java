@@ -0,0 +1,264 @@
+package de.jojii.matrixclientserver.Networking;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+class PooledHttpTransportTest {
+
+    private HttpServer server;
+    private PooledHttpTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/echo", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.createContext("/chunked", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < 3; i++) {
+                    os.write(("part" + i).getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            }
+        });
+        server.createContext("/missing", exchange -> {
+            byte[] body = "{\"errcode\":\"M_NOT_FOUND\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/moved", exchange -> redirect(exchange, 302, "/echo"));
+        server.createContext("/see-other", exchange -> redirect(exchange, 303, "/echo"));
+        server.createContext("/temporary", exchange -> redirect(exchange, 307, "/echo"));
+        server.start();
+        transport = new PooledHttpTransport();
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    void execute_reusesConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            HttpTransport.Request request = new HttpTransport.Request("POST", url("/echo"))
+                    .setBody(HttpTransport.RequestBody.of(("hello" + i).getBytes(StandardCharsets.UTF_8)));
+            try (HttpTransport.Response response = transport.execute(request)) {
+                assertEquals(200, response.getStatusCode());
+                assertEquals("hello" + i, new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(1, transport.getMissCount());
+        assertEquals(4, transport.getHitCount());
+        assertEquals(1, transport.getIdleConnectionCount());
+        assertEquals(0, transport.getLeasedConnectionCount());
+    }
+
+    @Test
+    void execute_chunkedResponse() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url("/chunked")))) {
+                assertEquals("part0part1part2", new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(1, transport.getHitCount());
+    }
+
+    @Test
+    void execute_chunkedRequest() throws IOException {
+        HttpTransport.Request request = new HttpTransport.Request("PUT", url("/echo"))
+                .setBody(new HttpTransport.RequestBody() {
+                    @Override
+                    public long getContentLength() {
+                        return -1;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream os) throws IOException {
+                        os.write("abc".getBytes(StandardCharsets.UTF_8));
+                        os.write("def".getBytes(StandardCharsets.UTF_8));
+                    }
+                });
+        try (HttpTransport.Response response = transport.execute(request)) {
+            assertEquals("abcdef", new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void execute_errorStatus() throws IOException {
+        try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url("/missing")))) {
+            assertEquals(404, response.getStatusCode());
+            assertEquals("{\"errcode\":\"M_NOT_FOUND\"}", new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void execute_retriesStaleConnection() throws IOException {
+        try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url("/echo")))) {
+            readAll(response.getBody());
+        }
+        server.stop(0);
+        int port = server.getAddress().getPort();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/echo", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url("/echo")))) {
+            assertEquals(204, response.getStatusCode());
+        }
+        assertEquals(1, transport.getRetryCount());
+    }
+
+    @Test
+    void execute_failsWhenNoConnectionFreesUp() throws IOException {
+        PooledHttpTransport limited = new PooledHttpTransport(1, PooledHttpTransport.DEFAULT_IDLE_TIMEOUT,
+                new UrlConnectionTransport());
+        limited.setLeaseTimeout(100);
+        try (HttpTransport.Response held = limited.execute(new HttpTransport.Request("GET", url("/chunked")))) {
+            assertEquals(200, held.getStatusCode());
+            assertThrows(SocketTimeoutException.class,
+                    () -> limited.execute(new HttpTransport.Request("GET", url("/echo"))));
+        }
+        try (HttpTransport.Response response = limited.execute(new HttpTransport.Request("GET", url("/echo")))) {
+            assertEquals(200, response.getStatusCode());
+        }
+        limited.close();
+    }
+
+    @Test
+    void reserveConnections_raisesAndRestoresHostLimit() throws IOException {
+        PooledHttpTransport limited = new PooledHttpTransport(1, PooledHttpTransport.DEFAULT_IDLE_TIMEOUT,
+                new UrlConnectionTransport());
+        limited.setLeaseTimeout(100);
+        int port = server.getAddress().getPort();
+        limited.reserveConnections("http", "127.0.0.1", port, 1);
+        try (HttpTransport.Response held = limited.execute(new HttpTransport.Request("GET", url("/chunked")));
+             HttpTransport.Response second = limited.execute(new HttpTransport.Request("GET", url("/echo")))) {
+            assertEquals(200, held.getStatusCode());
+            assertEquals(200, second.getStatusCode());
+        }
+
+        limited.reserveConnections("http", "127.0.0.1", port, -1);
+        assertEquals(0, limited.getReservedConnections("http", "127.0.0.1", port));
+        try (HttpTransport.Response held = limited.execute(new HttpTransport.Request("GET", url("/chunked")))) {
+            assertEquals(200, held.getStatusCode());
+            assertThrows(SocketTimeoutException.class,
+                    () -> limited.execute(new HttpTransport.Request("GET", url("/echo"))));
+        }
+        limited.close();
+    }
+
+    @Test
+    void execute_followsRedirects() throws IOException {
+        try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url("/moved")))) {
+            assertEquals(200, response.getStatusCode());
+        }
+        HttpTransport.Request seeOther = new HttpTransport.Request("POST", url("/see-other"))
+                .setBody(HttpTransport.RequestBody.of("dropped".getBytes(StandardCharsets.UTF_8)));
+        try (HttpTransport.Response response = transport.execute(seeOther)) {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("", new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+        }
+        HttpTransport.Request temporary = new HttpTransport.Request("POST", url("/temporary"))
+                .setBody(HttpTransport.RequestBody.of("kept".getBytes(StandardCharsets.UTF_8)));
+        try (HttpTransport.Response response = transport.execute(temporary)) {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("kept", new String(readAll(response.getBody()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void execute_doesNotRepeatPostOnClosedConnection() throws Exception {
+        // answers the first request, then reads the next one and drops the connection
+        AtomicInteger connections = new AtomicInteger();
+        try (ServerSocket dropping = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = dropping.accept();
+                        connections.incrementAndGet();
+                        InputStream in = socket.getInputStream();
+                        readHead(in);
+                        socket.getOutputStream().write("HTTP/1.1 204 No Content\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                        readHead(in);
+                        socket.close();
+                    }
+                } catch (IOException ignore) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            URL url = new URL("http://127.0.0.1:" + dropping.getLocalPort() + "/send");
+
+            try (HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", url))) {
+                assertEquals(204, response.getStatusCode());
+            }
+            HttpTransport.Request request = new HttpTransport.Request("POST", url)
+                    .setBody(HttpTransport.RequestBody.of("once".getBytes(StandardCharsets.UTF_8)));
+            assertThrows(IOException.class, () -> transport.execute(request));
+            assertEquals(1, connections.get());
+            assertEquals(0, transport.getRetryCount());
+        }
+    }
+
+    private static void readHead(InputStream in) throws IOException {
+        int matched = 0;
+        int b;
+        while (matched < 4 && (b = in.read()) != -1) {
+            matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+        }
+    }
+
+    private static void redirect(HttpExchange exchange, int status, String location) throws IOException {
+        readAll(exchange.getRequestBody());
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
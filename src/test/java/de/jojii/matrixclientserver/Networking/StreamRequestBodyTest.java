@@ -0,0 +1,99 @@
+package de.jojii.matrixclientserver.Networking;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+class StreamRequestBodyTest {
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+    private HttpHelper httpHelper;
+    private final AtomicReference<byte[]> received = new AtomicReference<>();
+    private final AtomicReference<String> transferEncoding = new AtomicReference<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", exchange -> {
+            transferEncoding.set(exchange.getRequestHeaders().getFirst("Transfer-encoding"));
+            received.set(readAll(exchange.getRequestBody()));
+            byte[] body = "{\"content_uri\":\"mxc://example.org/1\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        httpHelper = new HttpHelper(() -> "token", HttpExecutor.bounded(1, 1), new PooledHttpTransport());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void sendFile_streamsWholeFileWithProgress() throws IOException {
+        byte[] content = new byte[TransferBuffers.BUFFER_SIZE * 2 + 123];
+        new Random(7).nextBytes(content);
+        Path file = directory.resolve("upload.bin");
+        java.nio.file.Files.write(file, content);
+        AtomicLong lastProgress = new AtomicLong();
+        AtomicLong total = new AtomicLong();
+
+        String response = httpHelper.sendFile(host(), "upload", "application/octet-stream", file, true, "POST",
+                (sent, length) -> {
+                    lastProgress.set(sent);
+                    total.set(length);
+                });
+
+        assertEquals("{\"content_uri\":\"mxc://example.org/1\"}", response);
+        assertArrayEquals(content, received.get());
+        assertEquals(content.length, lastProgress.get());
+        assertEquals(content.length, total.get());
+    }
+
+    @Test
+    void sendStream_unknownLengthIsChunked() throws IOException {
+        byte[] content = "make it so".getBytes(StandardCharsets.UTF_8);
+
+        httpHelper.sendStream(host(), "upload", "text/plain", new ByteArrayInputStream(content), -1, true, "POST",
+                null);
+
+        assertArrayEquals(content, received.get());
+        assertEquals("chunked", transferEncoding.get());
+    }
+
+    private String host() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}